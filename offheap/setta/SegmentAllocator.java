@@ -0,0 +1,111 @@
+package setta;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+// OffHeap's allocator on the foreign memory API. Every array gets its own
+// shared arena, so it can be freed on its own as soon as its set is dead,
+// from whichever thread notices.
+//
+// The API is a preview in JDK 21: this file is compiled and run with
+// --enable-preview, and OffHeap keeps every set on the heap when it can't be
+// loaded.
+final class SegmentAllocator implements OffHeap.Allocator {
+    @Override
+    public LongArray longs(int length) {
+        return new Longs(length);
+    }
+
+    @Override
+    public IntArray ints(int length) {
+        return new Ints(length);
+    }
+
+    private static final class Longs extends LongArray {
+        private final Arena arena = Arena.ofShared();
+        private final MemorySegment segment;
+        private final int length;
+
+        Longs(int length) {
+            this.segment = arena.allocateArray(ValueLayout.JAVA_LONG, length);
+            this.length = length;
+        }
+
+        @Override
+        int length() {
+            return length;
+        }
+
+        @Override
+        long get(int i) {
+            return segment.getAtIndex(ValueLayout.JAVA_LONG, i);
+        }
+
+        @Override
+        void set(int i, long value) {
+            segment.setAtIndex(ValueLayout.JAVA_LONG, i, value);
+        }
+
+        @Override
+        boolean isOffHeap() {
+            return true;
+        }
+
+        @Override
+        void free() {
+            arena.close();
+        }
+
+        @Override
+        LongArray copyOf(int length, int count) {
+            LongArray copy = allocate(length);
+            if (!(copy instanceof Longs)) return super.copyOf(length, count);
+            MemorySegment.copy(segment, 0, ((Longs) copy).segment, 0, (long) count * Long.BYTES);
+            return copy;
+        }
+    }
+
+    private static final class Ints extends IntArray {
+        private final Arena arena = Arena.ofShared();
+        private final MemorySegment segment;
+        private final int length;
+
+        Ints(int length) {
+            this.segment = arena.allocateArray(ValueLayout.JAVA_INT, length);
+            this.length = length;
+        }
+
+        @Override
+        int length() {
+            return length;
+        }
+
+        @Override
+        int get(int i) {
+            return segment.getAtIndex(ValueLayout.JAVA_INT, i);
+        }
+
+        @Override
+        void set(int i, int value) {
+            segment.setAtIndex(ValueLayout.JAVA_INT, i, value);
+        }
+
+        @Override
+        IntArray copy() {
+            Ints copy = new Ints(length);
+            MemorySegment.copy(segment, 0, copy.segment, 0, (long) length * Integer.BYTES);
+            return copy;
+        }
+
+        @Override
+        boolean isOffHeap() {
+            return true;
+        }
+
+        @Override
+        void free() {
+            arena.close();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package setta;
+
+// A run went over one of its SettaLimits. Reported like any runtime error,
+// but as a SettaError of kind LIMIT, so callers can tell a script that is
+// too expensive from one that is wrong.
+public final class BudgetExceededError extends RuntimeError {
+  private static final long serialVersionUID = 1L;
+
+  BudgetExceededError(SettaToken token, String message) {
+    super(token, message);
+  }
+
+}
@@ -0,0 +1,200 @@
+package setta;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+// The native functions every script can call. They are defined in the
+// global environment, which is shared (read-only) by every run.
+final class Builtins {
+    private Builtins() {
+    }
+
+    static void define(Environment globals) {
+        globals.define("powerset", new Native("powerset", 1, (interpreter, arguments) -> {
+            Object set = arguments[0];
+            if (!(set instanceof Set<?>)) {
+                throw new RuntimeError(null, "Argument to 'powerset' must be a set.");
+            }
+            return new PowerSet((Set<?>) set);
+        }));
+        globals.define("flush", new Native("flush", 0, (interpreter, arguments) -> {
+            interpreter.flush();
+            return null;
+        }));
+        globals.define("first", new Native("first", 1,
+            (interpreter, arguments) -> component("first", arguments[0], 1)));
+        globals.define("second", new Native("second", 1,
+            (interpreter, arguments) -> component("second", arguments[0], 2)));
+        globals.define("nth", new Native("nth", 2, (interpreter, arguments) -> {
+            Object position = arguments[1];
+            if (!(position instanceof Long)) {
+                throw new RuntimeError(null, "Second argument to 'nth' must be a whole number.");
+            }
+            return component("nth", arguments[0], (Long) position);
+        }));
+        defineAggregates(globals);
+    }
+
+    //#region Aggregates
+    // Each takes a set or an unbuilt comprehension and computes its result in
+    // one pass over the elements, without building the comprehension. A
+    // comprehension that may produce the same element twice is deduplicated
+    // on the way, since every element of a set counts once.
+    private static void defineAggregates(Environment globals) {
+        globals.define("count", new Native("count", 1, true, (interpreter, arguments) -> {
+            Object set = setArgument("count", arguments[0]);
+            if (set instanceof PowerSet) return ((PowerSet) set).cardinality();
+            return SettaNumber.of(count(set));
+        }));
+        globals.define("sum", new Native("sum", 1, true,
+            (interpreter, arguments) -> sum("sum", setArgument("sum", arguments[0]))));
+        globals.define("avg", new Native("avg", 1, true,
+            (interpreter, arguments) -> average(setArgument("avg", arguments[0]))));
+        globals.define("min", new Native("min", 1, true,
+            (interpreter, arguments) -> extreme("min", arguments[0], -1)));
+        globals.define("max", new Native("max", 1, true,
+            (interpreter, arguments) -> extreme("max", arguments[0], 1)));
+    }
+
+    private static Object setArgument(String name, Object value) {
+        if (value instanceof Set<?> || value instanceof SetPipeline) return value;
+        throw new RuntimeError(null, "Argument to '" + name + "' must be a set.");
+    }
+
+    private static long count(Object set) {
+        if (set instanceof SetPipeline) return ((SetPipeline) set).count();
+        return ((Set<?>) set).size();
+    }
+
+    private static Object sum(String name, Object set) {
+        if (set instanceof LongSet) {
+            LongSet longs = (LongSet) set;
+            long total = 0;
+            for (int i = 0; i < longs.size(); i++) {
+                long next = total + longs.longAt(i);
+                // overflowed: start over through SettaNumber, which switches to doubles
+                if (((total ^ next) & (longs.longAt(i) ^ next)) < 0) return sumOf(name, set);
+                total = next;
+            }
+            return SettaNumber.of(total);
+        }
+        return sumOf(name, set);
+    }
+
+    private static Object sumOf(String name, Object set) {
+        Object[] total = {SettaNumber.of(0L)};
+        forEachDistinct(set, element -> {
+            total[0] = SettaNumber.add(total[0], number(name, element));
+            return true;
+        });
+        return total[0];
+    }
+
+    // an unbuilt comprehension is summed and counted in the same pass
+    private static Object average(Object set) {
+        Object total;
+        long count;
+        if (set instanceof SetPipeline) {
+            Object[] sum = {SettaNumber.of(0L)};
+            long[] elements = {0};
+            forEachDistinct(set, element -> {
+                sum[0] = SettaNumber.add(sum[0], number("avg", element));
+                elements[0]++;
+                return true;
+            });
+            total = sum[0];
+            count = elements[0];
+        } else {
+            count = ((Set<?>) set).size();
+            total = count == 0 ? null : sum("avg", set);
+        }
+        if (count == 0) throw new RuntimeError(null, "Cannot take 'avg' of an empty set.");
+        return SettaNumber.divide(total, SettaNumber.of(count));
+    }
+
+    // direction -1 finds the smallest element, 1 the largest
+    private static Object extreme(String name, Object argument, int direction) {
+        Object set = setArgument(name, argument);
+        Object[] best = {null};
+        SetPipeline.forEachOf(set, element -> {
+            number(name, element);
+            if (best[0] == null
+                    || (direction < 0 ? SettaNumber.less(element, best[0]) : SettaNumber.greater(element, best[0]))) {
+                best[0] = element;
+            }
+            return true;
+        });
+        if (best[0] == null) throw new RuntimeError(null, "Cannot take '" + name + "' of an empty set.");
+        return best[0];
+    }
+
+    private static void forEachDistinct(Object set, Predicate<Object> sink) {
+        if (set instanceof SetPipeline && !((SetPipeline) set).isDistinct()) {
+            Set<Object> seen = new HashSet<>();
+            SetPipeline.forEachOf(set, element -> !seen.add(element) || sink.test(element));
+            return;
+        }
+        SetPipeline.forEachOf(set, sink);
+    }
+
+    private static Object number(String name, Object element) {
+        if (SettaNumber.isNumber(element)) return element;
+        throw new RuntimeError(null, "Elements passed to '" + name + "' must be numbers.");
+    }
+    //#endregion
+
+    // the tuple's element at a 1-based position
+    private static Object component(String name, Object tuple, long position) {
+        if (!(tuple instanceof Tuple)) {
+            throw new RuntimeError(null, "Argument to '" + name + "' must be a tuple.");
+        }
+        Tuple t = (Tuple) tuple;
+        if (position < 1 || position > t.size()) {
+            throw new RuntimeError(null, "Tuple of size " + t.size() + " has no element " + position + ".");
+        }
+        return t.get((int) (position - 1));
+    }
+
+    private interface Body {
+        Object call(Interpreter interpreter, Object[] arguments);
+    }
+
+    private static class Native implements SettaCallable {
+        private final String name;
+        private final int arity;
+        private final boolean streams;
+        private final Body body;
+
+        Native(String name, int arity, Body body) {
+            this(name, arity, false, body);
+        }
+
+        Native(String name, int arity, boolean streams, Body body) {
+            this.name = name;
+            this.arity = arity;
+            this.streams = streams;
+            this.body = body;
+        }
+
+        @Override
+        public int arity() {
+            return arity;
+        }
+
+        @Override
+        public boolean streamsArguments() {
+            return streams;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, Object[] arguments) {
+            return body.call(interpreter, arguments);
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn " + name + ">";
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package setta;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static setta.SettaTokenType.*;
+
+// Evaluates repeated set expressions once. When a program is compiled,
+// analyze() looks through its statements for pure expressions that are costly to evaluate
+// (set operators, |...| of anything but a variable, set literals) and that
+// are evaluated more than once with the same inputs: the same expression
+// appears again before any of its variables is assigned or defined again,
+// or it sits in a comprehension's body or conditions without using the
+// comprehension's variables, so it would be evaluated once per element.
+// Those are wrapped in an Expr.Cached.
+//
+// The interpreter keeps their results here, with the Environment.Cell and
+// version of every variable they read; a result is only used again while
+// none of those has been set since, so the cache is always right even where
+// the analysis guessed wrong. Results are retained like variables, which
+// keeps anything from updating them in place, and the least recently used
+// are dropped past CAPACITY. Calls, comprehensions and assignments are never
+// cached, and function bodies are left alone. -Dsetta.cse=false turns this
+// off.
+final class CommonSubexpressions {
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("setta.cse", "true"));
+    private static final int CAPACITY = 64;
+    // expressions reading more variables than this aren't worth tracking
+    private static final int MAX_INPUTS = 16;
+
+    // keyed by the shapes of the last analysis
+    private final Map<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            if (size() <= CAPACITY) return false;
+            SettaSet.release(eldest.getValue().value);
+            return true;
+        }
+    };
+
+    //#region Analysis
+    // What analyze() knows about a pure expression other than a literal, a
+    // variable or a grouping; IMPURE for the rest.
+    private static final class Node {
+        final int shape;
+        final boolean costly;
+        // the variables it reads, sorted; null if more than MAX_INPUTS
+        final String[] inputs;
+
+        Node(int shape, boolean costly, String[] inputs) {
+            this.shape = shape;
+            this.costly = costly;
+            this.inputs = inputs;
+        }
+    }
+
+    private static final Node IMPURE = new Node(-1, false, null);
+    private static final String[] NO_INPUTS = new String[0];
+
+    // a variable among the children in a key
+    private static final class Input {
+        final String name;
+
+        Input(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Input && ((Input) other).name.equals(name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+
+    // and another expression's shape
+    private static final class Shape {
+        final int shape;
+
+        Shape(int shape) {
+            this.shape = shape;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Shape && ((Shape) other).shape == shape;
+        }
+
+        @Override
+        public int hashCode() {
+            return shape;
+        }
+    }
+
+    // The statements with the expressions worth caching wrapped. Their keys
+    // only mean something within the one program, so the cache is cleared
+    // before each run.
+    static List<Stmt> analyze(List<Stmt> statements) {
+        // structural key -> shape, which equal expressions share
+        Map<List<Object>, Integer> shapes = new HashMap<>();
+        Map<Expr, Node> nodes = new IdentityHashMap<>();
+        for (Stmt statement : statements) {
+            Expr root = expressionOf(statement);
+            if (root != null) describe(root, shapes, nodes);
+        }
+
+        // how often each expression is evaluated with the same versions of its inputs
+        Map<Expr, String> occurrences = new IdentityHashMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, Integer> epochs = new HashMap<>();
+        for (Stmt statement : statements) {
+            Expr root = expressionOf(statement);
+            Set<String> assigned = assignedBy(statement);
+            if (root != null) count(root, nodes, assigned, epochs, occurrences, counts);
+            for (String name : assigned) {
+                epochs.merge(name, 1, Integer::sum);
+            }
+        }
+        if (counts.values().stream().allMatch(count -> count < 2)) return statements;
+
+        List<Stmt> result = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            Expr root = expressionOf(statement);
+            Expr rewritten = root == null ? null : wrap(root, nodes, occurrences, counts);
+            result.add(rewritten == root ? statement : withExpression(statement, rewritten));
+        }
+        return result;
+    }
+
+    // fills in nodes for everything in root, children first
+    private static void describe(Expr root, Map<List<Object>, Integer> shapes, Map<Expr, Node> nodes) {
+        List<Expr> order = preorder(root);
+        for (int i = order.size() - 1; i >= 0; i--) {
+            Expr expr = order.get(i);
+            if (!(expr instanceof Expr.Grouping)) nodes.put(expr, node(expr, shapes, nodes));
+        }
+    }
+
+    private static boolean isLeaf(Expr expr) {
+        return expr instanceof Expr.Literal || expr instanceof Expr.Variable;
+    }
+
+    // The key of an expression is what it is (an operator, or a kind of
+    // literal) followed by its children: literals as their values, variables
+    // as Inputs and the rest as their shapes. Building it out of the values
+    // themselves keeps large set literals from being turned into text.
+    private static Node node(Expr expr, Map<List<Object>, Integer> shapes, Map<Expr, Node> nodes) {
+        List<Expr> children = Subexpressions.children(expr);
+        List<Object> key = new ArrayList<>(children.size() + 1);
+        if (expr instanceof Expr.Unary) {
+            // told apart from a binary operator by its one child
+            key.add(((Expr.Unary) expr).operator.type);
+        } else if (expr instanceof Expr.Binary) {
+            key.add(((Expr.Binary) expr).operator.type);
+        } else if (expr instanceof Expr.SetLiteral) {
+            key.add("S");
+        } else if (expr instanceof Expr.TupleLiteral) {
+            key.add("T");
+        } else if (expr instanceof Expr.Cardinality) {
+            key.add("C");
+        } else if (expr instanceof Expr.Conditional) {
+            key.add("?");
+        } else {
+            return IMPURE;
+        }
+
+        Set<String> inputs = null;
+        boolean wide = false;
+        for (Expr child : children) {
+            child = unwrap(child);
+            if (child instanceof Expr.Literal) {
+                key.add(((Expr.Literal) child).value);
+                continue;
+            }
+            if (inputs == null) inputs = new TreeSet<>();
+            if (child instanceof Expr.Variable) {
+                String name = ((Expr.Variable) child).name.lexeme;
+                key.add(new Input(name));
+                inputs.add(name);
+                continue;
+            }
+            Node node = nodes.get(child);
+            if (node == IMPURE) return IMPURE;
+            if (node.inputs == null) {
+                wide = true;
+            } else {
+                inputs.addAll(Arrays.asList(node.inputs));
+            }
+            key.add(new Shape(node.shape));
+        }
+        int shape = shapes.computeIfAbsent(key, k -> shapes.size());
+        if (inputs == null) return new Node(shape, isCostly(expr), NO_INPUTS);
+        wide |= inputs.size() > MAX_INPUTS;
+        return new Node(shape, isCostly(expr), wide ? null : inputs.toArray(new String[0]));
+    }
+
+    private static boolean isCostly(Expr expr) {
+        if (expr instanceof Expr.SetLiteral) return !((Expr.SetLiteral) expr).elements.isEmpty();
+        if (expr instanceof Expr.Cardinality) return !(unwrap(((Expr.Cardinality) expr).expression) instanceof Expr.Variable);
+        if (!(expr instanceof Expr.Binary)) return false;
+        Expr.Binary binary = (Expr.Binary) expr;
+        switch (binary.operator.type) {
+            case UNION:
+            case INTERSECT:
+            case SYMDIFF:
+            case TIMES:
+            case SUBSETEQ:
+                return true;
+            case MINUS:
+                // with a number on either side it is most likely arithmetic
+                return !(unwrap(binary.left) instanceof Expr.Literal) && !(unwrap(binary.right) instanceof Expr.Literal);
+            default:
+                return false;
+        }
+    }
+
+    // Counts the costly expressions in root under the versions of their
+    // inputs so far. Inside a comprehension's body and conditions an
+    // expression counts twice, as it is evaluated for every element; one
+    // that reads the comprehension's variables, or a variable the statement
+    // itself sets, isn't counted at all.
+    private static void count(Expr root, Map<Expr, Node> nodes, Set<String> assigned, Map<String, Integer> epochs,
+                              Map<Expr, String> occurrences, Map<String, Integer> counts) {
+        Deque<Context> pending = new ArrayDeque<>();
+        pending.push(new Context(root, false, Set.of()));
+        while (!pending.isEmpty()) {
+            Context context = pending.pop();
+            Expr expr = context.expr;
+            Node node = nodes.get(expr);
+            if (node != null && node.costly && node.inputs != null
+                    && none(node.inputs, context.bound) && none(node.inputs, assigned)) {
+                StringBuilder occurrence = new StringBuilder().append(node.shape);
+                for (String input : node.inputs) {
+                    occurrence.append('@').append(input).append('=').append(epochs.getOrDefault(input, 0));
+                }
+                occurrences.put(expr, occurrence.toString());
+                counts.merge(occurrence.toString(), context.perElement ? 2 : 1, Integer::sum);
+            }
+
+            List<Expr> children = Subexpressions.children(expr);
+            if (!(expr instanceof Expr.Comprehension)) {
+                for (Expr child : children) {
+                    if (!isLeaf(child)) pending.push(new Context(child, context.perElement, context.bound));
+                }
+                continue;
+            }
+            // the first domain is evaluated once, before any variable is bound
+            Expr.Comprehension comprehension = (Expr.Comprehension) expr;
+            Set<String> bound = new HashSet<>(context.bound);
+            for (SettaToken variable : comprehension.variables) {
+                bound.add(variable.lexeme);
+            }
+            pending.push(new Context(children.get(1), context.perElement, context.bound));
+            for (Expr child : children) {
+                if (child != children.get(1)) pending.push(new Context(child, true, bound));
+            }
+        }
+    }
+
+    private static final class Context {
+        final Expr expr;
+        final boolean perElement;
+        final Set<String> bound;
+
+        Context(Expr expr, boolean perElement, Set<String> bound) {
+            this.expr = expr;
+            this.perElement = perElement;
+            this.bound = bound;
+        }
+    }
+
+    private static boolean none(String[] names, Set<String> of) {
+        for (String name : names) {
+            if (of.contains(name)) return false;
+        }
+        return true;
+    }
+
+    // root with its outermost repeated expressions wrapped, rebuilt along the
+    // way down to them; root itself if there are none
+    private static Expr wrap(Expr root, Map<Expr, Node> nodes, Map<Expr, String> occurrences, Map<String, Integer> counts) {
+        Map<Expr, Expr> replaced = new IdentityHashMap<>();
+        Set<Expr> wrapped = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Expr> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Expr expr = pending.pop();
+            String occurrence = occurrences.get(expr);
+            if (occurrence != null && counts.get(occurrence) >= 2) {
+                wrapped.add(expr);
+            } else {
+                for (Expr child : Subexpressions.children(expr)) {
+                    if (!isLeaf(child)) pending.push(child);
+                }
+            }
+        }
+        if (wrapped.isEmpty()) return root;
+
+        List<Expr> order = preorder(root);
+        for (int i = order.size() - 1; i >= 0; i--) {
+            Expr expr = order.get(i);
+            if (wrapped.contains(expr)) {
+                Node node = nodes.get(expr);
+                replaced.put(expr, new Expr.Cached(expr, node.shape, Arrays.asList(node.inputs)));
+                continue;
+            }
+            List<Expr> children = Subexpressions.children(expr);
+            boolean changed = false;
+            for (int c = 0; c < children.size(); c++) {
+                Expr child = replaced.get(children.get(c));
+                if (child != null) {
+                    children.set(c, child);
+                    changed = true;
+                }
+            }
+            if (changed) replaced.put(expr, Subexpressions.withChildren(expr, children));
+        }
+        return replaced.getOrDefault(root, root);
+    }
+
+    // root and everything in it but literals and variables, which nothing
+    // needs to be done for, every expression before the ones inside it
+    private static List<Expr> preorder(Expr root) {
+        List<Expr> order = new ArrayList<>();
+        Deque<Expr> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Expr expr = pending.pop();
+            if (isLeaf(expr)) continue;
+            order.add(expr);
+            for (Expr child : Subexpressions.children(expr)) {
+                if (!isLeaf(child)) pending.push(child);
+            }
+        }
+        return order;
+    }
+
+    private static Expr unwrap(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping) expr).expression;
+        }
+        return expr;
+    }
+
+    private static Expr expressionOf(Stmt statement) {
+        if (statement instanceof Stmt.Print) return ((Stmt.Print) statement).expression;
+        if (statement instanceof Stmt.Expression) return ((Stmt.Expression) statement).expression;
+        if (statement instanceof Stmt.Let) return ((Stmt.Let) statement).value;
+        return null;
+    }
+
+    private static Stmt withExpression(Stmt statement, Expr expr) {
+        if (statement instanceof Stmt.Print) return new Stmt.Print(expr);
+        if (statement instanceof Stmt.Expression) return new Stmt.Expression(expr);
+        return new Stmt.Let(((Stmt.Let) statement).name, expr);
+    }
+
+    // every variable the statement may set: its let or def name, the targets
+    // of its assignments and its comprehensions' variables
+    private static Set<String> assignedBy(Stmt statement) {
+        Set<String> names = new HashSet<>();
+        if (statement instanceof Stmt.Let) names.add(((Stmt.Let) statement).name.lexeme);
+        if (statement instanceof Stmt.Fun) names.add(((Stmt.Fun) statement).name.lexeme);
+        Expr root = expressionOf(statement);
+        if (root == null) return names;
+        for (Expr expr : preorder(root)) {
+            if (expr instanceof Expr.Assign) {
+                names.add(((Expr.Assign) expr).name.lexeme);
+            } else if (expr instanceof Expr.Comprehension) {
+                for (SettaToken variable : ((Expr.Comprehension) expr).variables) {
+                    names.add(variable.lexeme);
+                }
+            }
+        }
+        return names;
+    }
+    //#endregion
+
+    //#region Cache
+    private static final class Entry {
+        final Object value;
+        final Environment.Cell[] cells;
+        final long[] versions;
+
+        Entry(Object value, Environment.Cell[] cells, long[] versions) {
+            this.value = value;
+            this.cells = cells;
+            this.versions = versions;
+        }
+
+        // every input is still the same variable, not set since
+        boolean isCurrent(List<String> inputs, Environment environment) {
+            for (int i = 0; i < cells.length; i++) {
+                if (environment.cell(inputs.get(i)) != cells[i] || cells[i].version() != versions[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    void clear() {
+        for (Entry entry : entries.values()) {
+            SettaSet.release(entry.value);
+        }
+        entries.clear();
+    }
+
+    // expr's result from an earlier evaluation, or null if there is none or
+    // an input has changed since
+    Object lookup(Expr.Cached expr, Environment environment) {
+        Entry entry = entries.get(expr.key);
+        if (entry == null) return null;
+        if (entry.isCurrent(expr.inputs, environment)) return entry.value;
+        entries.remove(expr.key);
+        SettaSet.release(entry.value);
+        return null;
+    }
+
+    void store(Expr.Cached expr, Environment environment, Object value) {
+        if (value == null) return;
+        Environment.Cell[] cells = new Environment.Cell[expr.inputs.size()];
+        long[] versions = new long[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = environment.cell(expr.inputs.get(i));
+            if (cells[i] == null) return;
+            versions[i] = cells[i].version();
+        }
+        SettaSet.retain(value);
+        Entry previous = entries.put(expr.key, new Entry(value, cells, versions));
+        if (previous != null) SettaSet.release(previous.value);
+    }
+    //#endregion
+}
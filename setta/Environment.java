@@ -1,11 +1,37 @@
 package setta;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 public class Environment {
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    private final Map<String, Cell> values = new HashMap<>();
+    // a frozen environment is shared between runs and can no longer change
+    private boolean frozen = false;
+
+    // A variable. Its version goes up every time it is set, which is how
+    // cached results (see CommonSubexpressions) tell that an input changed.
+    static final class Cell {
+        private Object value;
+        private long version;
+
+        long version() {
+            return version;
+        }
+
+        Object value() {
+            return value;
+        }
+
+        private void set(Object value) {
+            SettaSet.retain(value);
+            SettaSet.release(this.value);
+            this.value = value;
+            version++;
+        }
+    }
 
     Environment() {
         enclosing = null;
@@ -16,12 +42,33 @@ public class Environment {
     }
 
     void define(String name, Object value) {
-        values.put(name, value);
+        if (frozen) throw new IllegalStateException("Environment is frozen.");
+        Cell cell = values.get(name);
+        if (cell == null) {
+            cell = new Cell();
+            values.put(name, cell);
+        }
+        cell.set(value);
+    }
+
+    // values shared between runs must never be updated in place
+    void freeze() {
+        frozen = true;
+        for (Cell cell : values.values()) {
+            SettaSet.pin(cell.value);
+        }
+    }
+
+    Set<String> names() {
+        Set<String> names = enclosing == null ? new HashSet<>() : enclosing.names();
+        names.addAll(values.keySet());
+        return names;
     }
 
     Object get(SettaToken name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+        Cell cell = values.get(name.lexeme);
+        if (cell != null) {
+            return cell.value;
         }
 
         if (enclosing != null) return enclosing.get(name);
@@ -30,9 +77,26 @@ public class Environment {
             "Undefined variable '" + name.lexeme + ".'");
     }
 
+    // the variable defined in this environment itself, or null
+    Cell own(String name) {
+        return values.get(name);
+    }
+
+    // the variable this name refers to here, or null if there is none
+    Cell cell(String name) {
+        Cell cell = values.get(name);
+        if (cell != null || enclosing == null) return cell;
+        return enclosing.cell(name);
+    }
+
     void assign(SettaToken name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+        Cell cell = values.get(name.lexeme);
+        if (cell != null) {
+            if (frozen) {
+                throw new RuntimeError(name,
+                    "Cannot assign to library value '" + name.lexeme + "'.");
+            }
+            cell.set(value);
             return;
         }
         if (enclosing != null) {
@@ -40,5 +104,5 @@ public class Environment {
             return;
         }
     }
-    
+
 }
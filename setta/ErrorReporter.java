@@ -0,0 +1,9 @@
+package setta;
+
+// Where the scanner, parser and interpreter send their errors. The command
+// line prints them straight to stderr, SettaEngine collects them per run.
+interface ErrorReporter {
+    void error(int line, String message);
+
+    void runtimeError(RuntimeError error);
+}
@@ -11,9 +11,12 @@ abstract class Expr {
     R visitVariableExpr(Variable expr);
     R visitGroupingExpr(Grouping expr);
     R visitSetLiteralExpr(SetLiteral expr);
+    R visitTupleLiteralExpr(TupleLiteral expr);
     R visitComprehensionExpr(Comprehension expr);
     R visitCardinalityExpr(Cardinality expr);
     R visitCallExpr(Call expr);
+    R visitConditionalExpr(Conditional expr);
+    R visitCachedExpr(Cached expr);
   }
   static class Assign extends Expr {
     Assign(SettaToken name, Expr value) {
@@ -142,12 +145,29 @@ abstract class Expr {
       return "SetLiteral(" + elements + ")";
     }
   }
+  static class TupleLiteral extends Expr {
+    TupleLiteral(List<Expr> elements) {
+      this.elements = elements;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitTupleLiteralExpr(this);
+    }
+
+    final List<Expr> elements;
+
+    @Override
+    public String toString() {
+      return "TupleLiteral(" + elements + ")";
+    }
+  }
   static class Comprehension extends Expr {
-    Comprehension(Expr expr, SettaToken variable, Expr inSet, Expr condition) {
+    Comprehension(Expr expr, List<SettaToken> variables, List<Expr> domains, List<Expr> conditions) {
       this.expr = expr;
-      this.variable = variable;
-      this.inSet = inSet;
-      this.condition = condition;
+      this.variables = variables;
+      this.domains = domains;
+      this.conditions = conditions;
     }
 
     @Override
@@ -156,13 +176,13 @@ abstract class Expr {
     }
 
     final Expr expr;
-    final SettaToken variable;
-    final Expr inSet;
-    final Expr condition;
+    final List<SettaToken> variables;
+    final List<Expr> domains;
+    final List<Expr> conditions;
 
     @Override
     public String toString() {
-      return "Comprehension(" + expr + ", " + variable + ", " + inSet + ", " + condition + ")";
+      return "Comprehension(" + expr + ", " + variables + ", " + domains + ", " + conditions + ")";
     }
   }
   static class Cardinality extends Expr {
@@ -203,6 +223,48 @@ abstract class Expr {
       return "Call(" + callee + ", " + paren + ", " + arguments + ")";
     }
   }
+  static class Conditional extends Expr {
+    Conditional(Expr condition, Expr thenBranch, Expr elseBranch) {
+      this.condition = condition;
+      this.thenBranch = thenBranch;
+      this.elseBranch = elseBranch;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitConditionalExpr(this);
+    }
+
+    final Expr condition;
+    final Expr thenBranch;
+    final Expr elseBranch;
+
+    @Override
+    public String toString() {
+      return "Conditional(" + condition + ", " + thenBranch + ", " + elseBranch + ")";
+    }
+  }
+  static class Cached extends Expr {
+    Cached(Expr expression, int key, List<String> inputs) {
+      this.expression = expression;
+      this.key = key;
+      this.inputs = inputs;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCachedExpr(this);
+    }
+
+    final Expr expression;
+    final int key;
+    final List<String> inputs;
+
+    @Override
+    public String toString() {
+      return "Cached(" + expression + ", " + key + ", " + inputs + ")";
+    }
+  }
 
   abstract <R> R accept(Visitor<R> visitor);
 }
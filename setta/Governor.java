@@ -0,0 +1,125 @@
+package setta;
+
+// Enforces a run's SettaLimits. The interpreter counts a step for every
+// expression it evaluates; whatever builds a set reports the elements it
+// adds, in batches (see SetBuilder), and the size of what it made. Time is
+// checked along with those counts, so the checks are an increment and a
+// compare on the hot paths.
+//
+// Code deep in the set operators has no interpreter at hand, so the governor
+// of the run on the current thread is found through a thread local, like
+// OffHeap's owner. Work done on other threads is reported when it is joined.
+final class Governor {
+    // steps between clock reads
+    private static final int CLOCK_EVERY = 1024;
+
+    private static final ThreadLocal<Governor> CURRENT = new ThreadLocal<>();
+
+    private final SettaLimits limits;
+    // steps taken before the current batch, the batch's size and what is
+    // left of it: step() only has to count down
+    private long steps;
+    private long granted;
+    private long batch;
+    private long elements;
+    private long deadline;
+
+    Governor(SettaLimits limits) {
+        this.limits = limits;
+    }
+
+    // starts a run: counts from zero, and makes this the thread's governor
+    // until the returned one is restored
+    Governor enter() {
+        steps = 0;
+        batch = grant();
+        elements = 0;
+        deadline = limits.millis == 0 ? 0 : System.nanoTime() + limits.millis * 1_000_000;
+        Governor previous = CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    static void exit(Governor previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    //#region Counting
+    void step() {
+        if (--batch < 0) nextBatch();
+    }
+
+    // the whole batch and the step that ran past it are used up
+    private void nextBatch() {
+        steps += granted + 1;
+        if (steps > limits.steps) stepLimit();
+        checkTime();
+        batch = grant();
+    }
+
+    private void step(long count) {
+        steps += granted - batch + count;
+        if (steps > limits.steps) stepLimit();
+        checkTime();
+        batch = grant();
+    }
+
+    private long grant() {
+        granted = Math.min(CLOCK_EVERY, limits.steps - steps);
+        return granted;
+    }
+
+    private void stepLimit() {
+        throw new BudgetExceededError(null, "The run went over its limit of " + limits.steps + " steps.");
+    }
+
+    private void checkTime() {
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            throw new BudgetExceededError(null, "The run went over its time limit of " + limits.millis + " ms.");
+        }
+    }
+
+    private void add(long count, long size) {
+        elements += count;
+        if (elements > limits.elements) {
+            throw new BudgetExceededError(null, "The run went over its limit of " + limits.elements + " set elements.");
+        }
+        checkSize(size);
+        checkTime();
+    }
+
+    private void checkSize(long size) {
+        if (size > limits.cardinality) {
+            throw new BudgetExceededError(null, "A set went over the limit of " + limits.cardinality + " elements.");
+        }
+    }
+
+    // count more elements were put into a set that now holds size
+    static void added(long count, long size) {
+        Governor governor = CURRENT.get();
+        if (governor != null) governor.add(count, size);
+    }
+
+    // count steps' worth of work done without the interpreter: a value
+    // NumericKernel computes counts as one step
+    static void stepped(long count) {
+        Governor governor = CURRENT.get();
+        if (governor != null) governor.step(count);
+    }
+
+    // A X B would hold this many tuples: refuses it before anything is built
+    static void product(SettaToken operator, long left, long right) {
+        Governor governor = CURRENT.get();
+        if (governor == null) return;
+        long size = right != 0 && left > Long.MAX_VALUE / right ? Long.MAX_VALUE : left * right;
+        if (size > governor.limits.cardinality || size > governor.limits.elements - governor.elements) {
+            throw new BudgetExceededError(operator, "A product of " + left + " and " + right
+                + " elements is over the run's limits.");
+        }
+    }
+    //#endregion
+}
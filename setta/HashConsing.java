@@ -0,0 +1,34 @@
+package setta;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// Optional hash-consing of nested values, switched on with
+// -Dsetta.hashcons=true. Every set or tuple that becomes an element of a set
+// is swapped for the first structurally equal instance seen, so equal nested
+// values share memory and usually compare equal by reference. The table only
+// holds its values weakly.
+final class HashConsing {
+    static final boolean ENABLED = Boolean.getBoolean("setta.hashcons");
+
+    private static final Map<Object, WeakReference<Object>> table =
+        Collections.synchronizedMap(new WeakHashMap<>());
+
+    private HashConsing() {
+    }
+
+    static Object intern(Object value) {
+        if (!ENABLED || !(value instanceof SettaSet || value instanceof Tuple)) return value;
+        // only ever called on values that are about to be pinned, so the key can't change
+        SettaSet.pin(value);
+        synchronized (table) {
+            WeakReference<Object> existing = table.get(value);
+            Object canonical = existing == null ? null : existing.get();
+            if (canonical != null) return canonical;
+            table.put(value, new WeakReference<>(value));
+            return value;
+        }
+    }
+}
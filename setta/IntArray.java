@@ -0,0 +1,58 @@
+package setta;
+
+// The open-addressing index of a LongSet, zeroed when allocated. Like
+// LongArray, it moves off the heap together with the set's values.
+abstract class IntArray {
+    static IntArray allocate(int length) {
+        if (length >= OffHeap.THRESHOLD) {
+            IntArray offHeap = OffHeap.ints(length);
+            if (offHeap != null) return offHeap;
+        }
+        return new Heap(new int[length]);
+    }
+
+    abstract int length();
+
+    abstract int get(int i);
+
+    abstract void set(int i, int value);
+
+    // a new array with the same length and contents
+    abstract IntArray copy();
+
+    boolean isOffHeap() {
+        return false;
+    }
+
+    // gives off-heap memory back; the array can't be used afterwards
+    void free() {
+    }
+
+    static final class Heap extends IntArray {
+        private final int[] values;
+
+        Heap(int[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int length() {
+            return values.length;
+        }
+
+        @Override
+        int get(int i) {
+            return values[i];
+        }
+
+        @Override
+        void set(int i, int value) {
+            values[i] = value;
+        }
+
+        @Override
+        IntArray copy() {
+            return new Heap(values.clone());
+        }
+    }
+}
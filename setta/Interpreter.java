@@ -1,91 +1,330 @@
 package setta;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedHashSet;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.Set;
 
+import static setta.SettaTokenType.*;
+
 public class Interpreter implements Expr.Visitor<Object> , Stmt.Visitor<Void> {
-    private Environment environment = new Environment();
+    private final Environment environment;
+    private final OutputSink out;
+    private final ErrorReporter reporter;
+    // the off-heap and spilled sets this interpreter's scripts built
+    private final OffHeap.Owner offHeap = new OffHeap.Owner();
+    // every interpret() call is a run with its own limits' worth of work
+    private final Governor governor;
+    // the def function whose body is running and its frame (see
+    // SettaFunction), or null outside of any call
+    private SettaFunction function;
+    private Object[] frame;
+    // keeps let bindings up to date, with -Dsetta.reactive=true
+    private final Reactive reactive;
+    // the names each expression binds, reads and assigns (see inWrittenOrder)
+    private final NameUses uses = new NameUses();
+    // results of expressions the statements repeat, or null with -Dsetta.cse=false
+    private final CommonSubexpressions common =
+        CommonSubexpressions.ENABLED ? new CommonSubexpressions() : null;
+
+    // globals is the shared library; everything a script defines lives in
+    // this interpreter's own environment on top of it
+    Interpreter(Environment globals, OutputSink out, ErrorReporter reporter) {
+        this(globals, out, reporter, SettaLimits.defaults());
+    }
+
+    Interpreter(Environment globals, OutputSink out, ErrorReporter reporter, SettaLimits limits) {
+        this.environment = new Environment(globals);
+        this.out = out;
+        this.reporter = reporter;
+        this.governor = new Governor(limits);
+        this.reactive = Reactive.ENABLED ? new Reactive(this, environment) : null;
+    }
 
 void interpret(List<Stmt> statements) {
-        try {
+        run(() -> {
+            if (common != null) common.clear();
             for (Stmt statement : statements) {
                 execute(statement);
+                endStatement();
             }
+        });
+    }
+
+    // Runs one program: its statements, or a compiled script's (see
+    // SettaRuntime). A runtime error ends it and is reported.
+    void run(Runnable program) {
+        OffHeap.Owner previous = OffHeap.enter(offHeap);
+        Governor previousGovernor = governor.enter();
+        try {
+            program.run();
         } catch (RuntimeError error) {
-            Setta.runtimeError(error);
+            // what the script printed comes before its error
+            out.flush();
+            reporter.runtimeError(error);
+        } catch (StackOverflowError error) {
+            out.flush();
+            reporter.runtimeError(new RuntimeError(null, tooDeep(error)));
+        } finally {
+            offHeap.releaseUnbound();
+            OffHeap.exit(previous);
+            Governor.exit(previousGovernor);
         }
     }
 
-    // Executes a single statement
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    // Operators nest without limit, but calls and set literals, tuples and
+    // comprehensions inside each other still take Java stack. Whether the
+    // frames at the overflow include function calls tells which ran out.
+    private static String tooDeep(StackOverflowError error) {
+        for (StackTraceElement element : error.getStackTrace()) {
+            if (element.getMethodName().equals("call") && (element.getClassName().equals(SettaFunction.class.getName())
+                    || element.getClassName().equals(SettaRuntime.Function.class.getName()))) {
+                return "Function calls are nested too deeply.";
+            }
+        }
+        return "Expression is nested too deeply.";
     }
 
+    // frees what the statement built and didn't bind
+    void endStatement() {
+        offHeap.releaseUnbound();
+    }
 
-private String stringify(Object object) {
-    if (object == null) return "nil";
+    // the script's own variables, for SettaRuntime
+    Environment environment() {
+        return environment;
+    }
 
-    if (object instanceof Double) {
-      String text = object.toString();
-      if (text.endsWith(".0")) {
-        text = text.substring(0, text.length() - 2);
-      }
-      return text;
+    void flush() {
+        out.flush();
     }
 
-    if (object instanceof Set<?>) {
-      Set<?> set = (Set<?>) object;
-      StringBuilder sb = new StringBuilder("{");
-      boolean first = true;
-      for (Object element : set) {
-        if (!first) sb.append(", ");
-        sb.append(stringify(element));
-        first = false;
-      }
-      sb.append("}");
-      return sb.toString();
+    // Frees the off-heap memory of every set the scripts built; the
+    // variables can't be used afterwards.
+    void close() {
+        offHeap.releaseAll();
+    }
+
+    // Executes a single statement
+    void execute(Stmt stmt) {
+        stmt.accept(this);
     }
 
-    return object.toString();
-  }
 
 //#region VISITOR METHODS FOR EXPR
   @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+        return evaluateOperators(expr);
+  }
+
+    // Operator expressions (binary and prefix operators in any nesting of
+    // parentheses) are evaluated with an explicit stack of the operations
+    // still waiting for an operand, so they can nest arbitrarily deep on
+    // either side without one Java call per level.
+    private Object evaluateOperators(Expr expr) {
+        Deque<Operation> pending = new ArrayDeque<>();
+        Expr next = unwrap(expr);
+        boolean lazy = true;
+        while (true) {
+            if (next instanceof Expr.Binary || next instanceof Expr.Unary) {
+                if (!pending.isEmpty()) governor.step();
+                Operation operation = new Operation(next, lazy);
+                pending.push(operation);
+                next = unwrap(operation.operand);
+                lazy = operation.operandLazy;
+                continue;
+            }
+            Object value = lazy ? evaluateLazy(next) : evaluate(next);
+            // hand the value up until an operation needs another operand
+            while (true) {
+                if (pending.isEmpty()) return value;
+                Operation operation = pending.peek();
+                if (operation.accept(value)) break;
+                pending.pop();
+                value = operation.lazy ? operation.left : materialize(operation.left);
+            }
+            next = unwrap(pending.peek().operand);
+            lazy = pending.peek().operandLazy;
+        }
+    }
+
+    // One operator expression part way through. The parser nests chains like
+    // A1 - A2 - ... - An to the left; their whole spine is one Operation,
+    // applied in a loop as the right operands come in. A run of prefix
+    // operators like - - - x is one as well.
+    private final class Operation {
+        // whether the value may stay an unbuilt pipeline
+        final boolean lazy;
+        final Deque<Expr.Binary> spine = new ArrayDeque<>();
+        final Deque<SettaToken> prefixes = new ArrayDeque<>();
+        // the operand to evaluate next, and whether it may stay unbuilt
+        Expr operand;
+        boolean operandLazy;
+        // the value so far, and the operator waiting for its right operand
+        Object left;
+        Expr.Binary waiting;
+        // the sets of an n-way union, intersect or "-" being collected
+        List<Set<?>> sets;
+        int stages;
+
+        Operation(Expr expr, boolean lazy) {
+            this.lazy = lazy;
+            operand = expr;
+            if (expr instanceof Expr.Unary) {
+                while (operand instanceof Expr.Unary) {
+                    prefixes.push(((Expr.Unary) operand).operator);
+                    operand = unwrap(((Expr.Unary) operand).right);
+                }
+                operandLazy = false;
+            } else {
+                while (operand instanceof Expr.Binary) {
+                    Expr.Binary binary = (Expr.Binary) operand;
+                    spine.push(binary);
+                    operand = unwrap(binary.left);
+                }
+                operandLazy = fuses(spine.peek().operator);
+            }
+        }
 
-        switch (expr.operator.type) {
+        // Takes the value of operand. True when another operand is needed;
+        // otherwise left is the result.
+        boolean accept(Object value) {
+            if (!prefixes.isEmpty()) {
+                while (!prefixes.isEmpty()) {
+                    value = applyUnary(prefixes.pop(), value);
+                }
+                left = value;
+                return false;
+            }
+            if (sets != null) {
+                checkSetOperands(left, value);
+                if (sets.isEmpty()) sets.add((Set<?>) left);
+                sets.add((Set<?>) value);
+                if (!spine.isEmpty() && spine.peek().operator.type == waiting.operator.type) {
+                    waiting = spine.pop();
+                    operand = waiting.right;
+                    return true;
+                }
+                left = chainAll(waiting.operator.type, sets);
+                sets = null;
+            } else if (waiting != null) {
+                left = applyBinary(waiting.operator, left, value);
+            } else {
+                left = value;
+            }
+
+            if (spine.isEmpty()) return false;
+            // pipeline stages nest (and recurse when run), so long chains are built part-way
+            if (left instanceof SetPipeline && ++stages > SetPipeline.MAX_STAGES) {
+                left = materialize(left);
+                stages = 0;
+            }
+            waiting = spine.pop();
+            operand = waiting.right;
+            governor.step();
+            SettaTokenType type = waiting.operator.type;
+            if ((type == UNION || type == INTERSECT || (type == MINUS && isSetValue(left)))
+                    && !spine.isEmpty() && spine.peek().operator.type == type) {
+                // A1 union A2 union ... union An (or the same with intersect or
+                // "-"), computed as one n-way operation instead of n - 1
+                // intermediate sets
+                left = materialize(left);
+                sets = new ArrayList<>();
+                operandLazy = false;
+                return true;
+            }
+            operandLazy = fuses(waiting.operator)
+                && !inWrittenOrder(uses, waiting);
+            if (!operandLazy) left = materialize(left);
+            return true;
+        }
+    }
+
+    // these operators know how to stream a comprehension without building it
+    static boolean fuses(SettaToken operator) {
+        return fuses(operator.type);
+    }
+
+    // A comprehension left unbuilt runs after operands written to its right,
+    // or only part way for a membership test, which would leave its variables
+    // bound differently than building it in place does. When one operand
+    // reads or assigns a variable of a comprehension in the other, the left
+    // operand is built before the right is evaluated, and the right is built
+    // too. (Comprehensions that assign are never left unbuilt.)
+    static boolean inWrittenOrder(NameUses uses, Expr.Binary expr) {
+        NameUses.Names left = uses.of(expr.left);
+        NameUses.Names right = uses.of(expr.right);
+        return !Collections.disjoint(left.comprehensionVariables, right.free)
+            || !Collections.disjoint(right.comprehensionVariables, left.free);
+    }
+
+    static boolean fuses(SettaTokenType type) {
+        switch (type) {
+            case UNION:
+            case INTERSECT:
+            case IN:
+            case MINUS:
+            case SYMDIFF:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static Object chainAll(SettaTokenType type, List<Set<?>> sets) {
+        switch (type) {
+            case UNION:
+                return SetOps.unionAll(sets);
+            case INTERSECT:
+                return SetOps.intersectAll(sets);
+            default:
+                // A - B1 - ... - Bn is A - (B1 union ... union Bn)
+                Set<?> removed = SetOps.unionAll(sets.subList(1, sets.size()));
+                return SetOps.difference(sets.get(0), removed);
+        }
+    }
+
+    private static Expr unwrap(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping) expr).expression;
+        }
+        return expr;
+    }
+
+    Object applyBinary(SettaToken operator, Object left, Object right) {
+        switch (operator.type) {
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left - (double)right;
+                if (isSetValue(left) || isSetValue(right))
+                    return differenceValues(left, right);
+                checkNumberOperands(operator, left, right);
+                return SettaNumber.subtract(left, right);
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left / (double)right;
+                checkNumberOperands(operator, left, right);
+                return SettaNumber.divide(left, right);
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left * (double)right;
+                checkNumberOperands(operator, left, right);
+                return SettaNumber.multiply(left, right);
             case PLUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left + (double)right; //we don't have to worry about concatenating strings for our language
+                checkNumberOperands(operator, left, right);
+                return SettaNumber.add(left, right); //we don't have to worry about concatenating strings for our language
             case PERCENT: //for determining even / odd 
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left % (double)right;
+                checkNumberOperands(operator, left, right);
+                return SettaNumber.modulo(left, right);
                 //instead of saying "...| x is even" we say "...| x % 2 == 0"
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left > (double)right;
+                checkNumberOperands(operator, left, right);
+                return SettaNumber.greater(left, right);
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left >= (double)right;
+                checkNumberOperands(operator, left, right);
+                return SettaNumber.greaterEqual(left, right);
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left < (double)right;
+                checkNumberOperands(operator, left, right);
+                return SettaNumber.less(left, right);
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left <= (double)right;
+                checkNumberOperands(operator, left, right);
+                return SettaNumber.lessEqual(left, right);
 
             case BANG_EQUAL: 
                 return !isEqual(left, right);
@@ -97,12 +336,14 @@ private String stringify(Object object) {
                 return unionValues(left,right);
             case INTERSECT:
                 return intersectValues(left,right);
+            case SYMDIFF:
+                return symmetricDifferenceValues(left, right);
             case SUBSETEQ:
                 return subseteqValues(left, right);
             case IN:
                 return inValues(left, right);
             case TIMES: 
-                return cartesian(left, right);
+                return cartesian(operator, left, right);
             default:
                 break;
 
@@ -113,12 +354,14 @@ private String stringify(Object object) {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-       Object right = evaluate(expr.right);
+        return evaluateOperators(expr);
+    }
 
-       switch (expr.operator.type) {
+    Object applyUnary(SettaToken operator, Object right) {
+       switch (operator.type) {
         case MINUS:
-            checkNumberOperand(expr.operator, right);
-            return -(double)right;
+            checkNumberOperand(operator, right);
+            return SettaNumber.negate(right);
         case BANG:
             return !isTrue(right);
         default:
@@ -135,12 +378,21 @@ private String stringify(Object object) {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
+        if (frame != null) {
+            int slot = function.slotOf(expr.name.lexeme);
+            if (slot >= 0) {
+                Object value = frame[slot];
+                // a comprehension variable of the body its comprehension hasn't
+                // bound yet still means the script's variable
+                if (value != null || slot < function.arity()) return value;
+            }
+        }
         return environment.get(expr.name);
     }
 
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
-        return evaluate(expr.expression);
+        return evaluateOperators(expr);
     }
 
     @Override
@@ -151,80 +403,261 @@ private String stringify(Object object) {
 
     @Override
     public Object visitSetLiteralExpr(Expr.SetLiteral expr) {
-        Set<Object> result = new LinkedHashSet<>();
+        SetBuilder result = new SetBuilder(expr.elements.size());
 
         for (Expr elementExpr : expr.elements) {
             Object value = evaluate(elementExpr);
             result.add(value);
         }
-        return result;
+        return result.build();
     }
 
     @Override
-    public Object visitComprehensionExpr(Expr.Comprehension expr) {
-        Object inSetValue = evaluate(expr.inSet);
-        if (!(inSetValue instanceof Set<?>)) {
-            throw new RuntimeError(expr.variable, "Right operand of 'in' must be a set.");
+    public Object visitTupleLiteralExpr(Expr.TupleLiteral expr) {
+        Object[] values = new Object[expr.elements.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = evaluate(expr.elements.get(i));
         }
+        return Tuple.of(values);
+    }
 
-        Set<Object> result = new LinkedHashSet<>();
-        for (Object item : (Set<?>) inSetValue) {
-            environment.define(expr.variable.lexeme, item);
-
-            if (expr.condition != null) {
-                Object conditionValue = evaluate(expr.condition);
-                if (!isTrue(conditionValue)) {
-                    continue;
-                }
-            }
+    @Override
+    public Object visitComprehensionExpr(Expr.Comprehension expr) {
+        // one that assigns is built where it stands, so its assignments all
+        // happen, and before anything written after it
+        boolean inPlace = uses.of(expr).assigns;
+        if (expr.variables.size() > 1) {
+            SetPipeline join = new SetPipeline.Join(this, expr.expr, JoinPlanner.plan(this, expr));
+            return inPlace ? join.materialize() : join;
+        }
 
-            Object exprValue = evaluate(expr.expr);
-            result.add(exprValue);
+        Object inSetValue = evaluateLazy(expr.domains.get(0));
+        if (!(inSetValue instanceof Set<?>) && !(inSetValue instanceof SetPipeline)) {
+            throw new RuntimeError(expr.variables.get(0), "Right operand of 'in' must be a set.");
         }
-        return result;
+
+        // built later, fused with whatever consumes it (see SetPipeline)
+        SetPipeline comprehension = new SetPipeline.Comprehension(this, expr, inSetValue);
+        return inPlace ? comprehension.materialize() : comprehension;
     }
 
     @Override
     public Object visitCardinalityExpr(Expr.Cardinality expr) {
-        Object value = evaluate(expr.expression);
+        return cardinality(evaluateLazy(expr.expression));
+    }
+
+    static Object cardinality(Object value) {
+        if (value instanceof SetPipeline)
+            return SettaNumber.of(((SetPipeline) value).count());
+        if (value instanceof PowerSet)
+            return ((PowerSet) value).cardinality();
         if (!(value instanceof Set<?>))
             throw new RuntimeError(null, "Operand must be a set for cardinality.");
-        return (double) ((Set<?>) value).size();
+        return SettaNumber.of((long) ((Set<?>) value).size());
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
         Object callee = evaluate(expr.callee);
-        
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
-        }
+        return call(expr.paren, callee, arguments(expr, callee));
+    }
 
+    Object call(SettaToken paren, Object callee, Object[] arguments) {
         if(!(callee instanceof SettaCallable)){
-            throw new RuntimeError (expr.paren, "Can only call functions and classes.");
+            throw new RuntimeError (paren, "Can only call functions and classes.");
         }
-
         SettaCallable function = (SettaCallable)callee;
+        checkArity(paren, function, arguments);
         return function.call(this, arguments);
     }
 
+    // evaluated straight into the array the callee gets
+    private Object[] arguments(Expr.Call expr, Object callee) {
+        boolean streams = callee instanceof SettaCallable && ((SettaCallable) callee).streamsArguments();
+        Object[] arguments = new Object[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            Expr argument = expr.arguments.get(i);
+            arguments[i] = streams ? evaluateLazy(argument) : evaluate(argument);
+        }
+        return arguments;
+    }
+
+    static void checkArity(SettaToken paren, SettaCallable function, Object[] arguments) {
+        if (arguments.length != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
+                function.arity() + " arguments but got " +
+                arguments.length + ".");
+        }
+    }
+
+    // Runs a def function's body in a frame of its own. A call of the
+    // function to itself in tail position (the body, or a branch of a
+    // conditional in tail position) doesn't nest: the parameters are bound
+    // to the new arguments and the body starts over, so recursion that
+    // loops runs in constant stack.
+    Object call(SettaFunction callee, Object[] arguments) {
+        SettaFunction callerFunction = function;
+        Object[] callerFrame = frame;
+        function = callee;
+        frame = new Object[callee.frameSize()];
+        try {
+            bindParameters(arguments);
+            Expr expr = callee.body();
+            while (true) {
+                expr = unwrap(expr);
+                if (expr instanceof Expr.Conditional) {
+                    governor.step();
+                    Expr.Conditional conditional = (Expr.Conditional) expr;
+                    expr = isTrue(evaluate(conditional.condition)) ? conditional.thenBranch : conditional.elseBranch;
+                } else if (callee.callsItself(expr) && evaluate(((Expr.Call) expr).callee) == callee) {
+                    Expr.Call call = (Expr.Call) expr;
+                    Object[] next = arguments(call, callee);
+                    checkArity(call.paren, callee, next);
+                    bindParameters(next);
+                    expr = callee.body();
+                } else {
+                    return evaluate(expr);
+                }
+            }
+        } finally {
+            for (Object value : frame) {
+                SettaSet.release(value);
+            }
+            function = callerFunction;
+            frame = callerFrame;
+        }
+    }
+
+    // runs work as if at the top of the script, outside of any call
+    void atTopLevel(Runnable work) {
+        SettaFunction callerFunction = function;
+        Object[] callerFrame = frame;
+        function = null;
+        frame = null;
+        try {
+            work.run();
+        } finally {
+            function = callerFunction;
+            frame = callerFrame;
+        }
+    }
+
+    private void bindParameters(Object[] arguments) {
+        for (int i = 0; i < arguments.length; i++) {
+            setSlot(i, arguments[i]);
+        }
+    }
+
+    // slots count as bindings, like variables (see SettaSet)
+    private void setSlot(int slot, Object value) {
+        SettaSet.retain(value);
+        SettaSet.release(frame[slot]);
+        frame[slot] = value;
+    }
+
+    @Override
+    public Object visitCachedExpr(Expr.Cached expr) {
+        Object value = common.lookup(expr, environment);
+        if (value == null) {
+            value = evaluate(expr.expression);
+            common.store(expr, environment, value);
+        }
+        return value;
+    }
+
+    @Override
+    public Object visitConditionalExpr(Expr.Conditional expr) {
+        return evaluateLazy(isTrue(evaluate(expr.condition)) ? expr.thenBranch : expr.elseBranch);
+    }
+
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
-        Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
+        int slot = frame != null ? function.slotOf(expr.name.lexeme) : -1;
+        if (reactive != null && slot < 0 && reactive.watches(expr.name.lexeme)) return reactive.assign(expr);
+        Object value = updateInPlace(expr);
+        if (value == null) value = evaluate(expr.value);
+        if (slot >= 0) {
+            setSlot(slot, value);
+        } else {
+            environment.assign(expr.name, value);
+        }
         return value;
     }
+
+    // S = S union R (or intersect, -). If S's set isn't bound anywhere else,
+    // this assignment is its last use, so it's updated in place rather than
+    // copied. Returns null, having evaluated nothing, when the shape doesn't
+    // match or S is shared; visible values never change.
+    private Object updateInPlace(Expr.Assign expr) {
+        Expr.Binary binary = inPlaceUpdate(expr);
+        if (binary == null) return null;
+
+        Object left = evaluate(binary.left);
+        if (!isUniquelyBound(left)) return null;
+        return update(binary.operator, (SettaSet) left, evaluate(binary.right));
+    }
+
+    // the S op R of an assignment to S that has the shape updateInPlace takes
+    static Expr.Binary inPlaceUpdate(Expr.Assign expr) {
+        if (!(expr.value instanceof Expr.Binary)) return null;
+        Expr.Binary binary = (Expr.Binary) expr.value;
+        SettaTokenType op = binary.operator.type;
+        if (op != UNION && op != INTERSECT && op != MINUS) return null;
+        if (!(binary.left instanceof Expr.Variable)
+                || !((Expr.Variable) binary.left).name.lexeme.equals(expr.name.lexeme)) return null;
+        return binary;
+    }
+
+    static boolean isUniquelyBound(Object value) {
+        return value instanceof SettaSet && ((SettaSet) value).isUniquelyBound();
+    }
+
+    // target op right, where target was uniquely bound before right was evaluated
+    Object update(SettaToken operator, SettaSet target, Object right) {
+        SettaTokenType op = operator.type;
+        // evaluating R may have aliased, pinned or replaced the set
+        if (right instanceof Set<?> && target.isUniquelyBound()) {
+            Set<?> other = (Set<?>) right;
+            boolean updated = op == UNION ? SetOps.unionInPlace(target, other)
+                : op == INTERSECT ? SetOps.intersectInPlace(target, other)
+                : SetOps.differenceInPlace(target, other);
+            if (updated) return target;
+        }
+        return materialize(applyBinary(operator, target, right));
+    }
 //#endregion 
 
 
 //#region HELPER METHODS
 
-private Object evaluate(Expr expr) {
+// Always a real value: comprehensions are built here if nothing fused them.
+Object evaluate(Expr expr) {
+        governor.step();
+        return materialize(expr.accept(this));
+  }
+
+// May return an unbuilt SetPipeline; only for callers that handle one.
+private Object evaluateLazy(Expr expr) {
+        governor.step();
         return expr.accept(this);
   }
 
-private boolean isTrue(Object object) {
+static Object materialize(Object value) {
+        if (value instanceof SetPipeline) return ((SetPipeline) value).materialize();
+        return value;
+  }
+
+// binds a comprehension variable, for SetPipeline
+void bind(String name, Object value) {
+        int slot = frame != null ? function.slotOf(name) : -1;
+        if (slot >= 0) {
+            setSlot(slot, value);
+        } else {
+            environment.define(name, value);
+        }
+  }
+
+boolean isTrue(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean) object;
         if (object instanceof Set && ((Set<?>) object).isEmpty()) return false;
@@ -239,59 +672,101 @@ private boolean isEqual(Object a, Object b) {
     }
     
 private Object unionValues(Object left, Object right) {
+    if (left instanceof SetPipeline && right instanceof Set<?>
+            && ((Set<?>) right).size() <= SetPipeline.SMALL_UNION) {
+        return new SetPipeline.Union(left, right);
+    }
+    if (left instanceof Set<?> && right instanceof SetPipeline) {
+        return new SetPipeline.Union(left, right);
+    }
+    left = materialize(left);
+    right = materialize(right);
     checkSetOperands(left, right);
-    Set<Object> result = new LinkedHashSet<>((Set<?>) left);
-    result.addAll((Set<?>) right);
-    return result;
+    if (isTemporary(left) && SetOps.unionInPlace((SettaSet) left, (Set<?>) right))
+        return left;
+    return SetOps.union((Set<?>) left, (Set<?>) right);
 }
 
 private Object intersectValues(Object left, Object right) {
+    right = materialize(right);
+    if (left instanceof SetPipeline && right instanceof Set<?>) {
+        return new SetPipeline.Intersect((SetPipeline) left, (Set<?>) right);
+    }
+    left = materialize(left);
     checkSetOperands(left, right);
-    Set<Object> result = new LinkedHashSet<>((Set<?>) left);
-    result.retainAll((Set<?>) right);
-    return result;
+    if (isTemporary(left) && SetOps.intersectInPlace((SettaSet) left, (Set<?>) right))
+        return left;
+    return SetOps.intersect((Set<?>) left, (Set<?>) right);
 }
 
 private Object subseteqValues(Object left, Object right) {
     checkSetOperands(left, right);
-    return ((Set<?>) right).containsAll((Set<?>) left);
+    return SetOps.subseteq((Set<?>) left, (Set<?>) right);
+}
+
+// Both stay unbuilt (see SetPipeline) so |A - B| can be counted directly.
+private Object differenceValues(Object left, Object right) {
+    right = materialize(right);
+    if (left instanceof SetPipeline && right instanceof Set<?>)
+        return new SetPipeline.Difference(left, (Set<?>) right);
+    left = materialize(left);
+    checkSetOperands(left, right);
+    return new SetPipeline.Difference(left, (Set<?>) right);
+}
+
+private Object symmetricDifferenceValues(Object left, Object right) {
+    left = materialize(left);
+    right = materialize(right);
+    checkSetOperands(left, right);
+    return new SetPipeline.SymmetricDifference((Set<?>) left, (Set<?>) right);
+}
+
+// a set only the current expression holds, which may be updated in place
+private static boolean isTemporary(Object value) {
+    return value instanceof SettaSet && ((SettaSet) value).isTemporary();
+}
+
+static boolean isSetValue(Object value) {
+    return value instanceof Set<?> || value instanceof SetPipeline;
 }
 
 private Object inValues(Object left, Object right) {
+    left = materialize(left);
+    if (right instanceof SetPipeline)
+        return ((SetPipeline) right).contains(left);
     if (!(right instanceof Set<?>))
         throw new RuntimeError(null, "Right operand must be a set for 'in'.");
     return ((Set<?>) right).contains(left);
 }
 
-private void checkSetOperands(Object left, Object right) {
+static void checkSetOperands(Object left, Object right) {
     if (!(left instanceof Set<?>) || !(right instanceof Set<?>)) {
         throw new RuntimeError(null, "Operands must be sets.");
     }
 }
 
-private Object cartesian(Object left, Object right) {
+private Object cartesian(SettaToken operator, Object left, Object right) {
     checkSetOperands(left, right);
-    Set<Object> result = new LinkedHashSet<>();
+    Governor.product(operator, ((Set<?>) left).size(), ((Set<?>) right).size());
+    Set<Object> result = new ObjectSet();
 
     for (Object a : (Set<?>) left) {
         for (Object b : (Set<?>) right) {
-            List<Object> pair = new ArrayList<>();
-            pair.add(a);
-            pair.add(b);
-            result.add(pair);
+            result.add(Tuple.of(a, b));
         }
+        Governor.added(((Set<?>) right).size(), result.size());
     }
     return result;
 }
 
     // from book
     private void checkNumberOperand(SettaToken operator, Object operand) {
-        if (operand instanceof Double) return;
+        if (SettaNumber.isNumber(operand)) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
     private void checkNumberOperands(SettaToken operator, Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) return;
+        if (SettaNumber.isNumber(left) && SettaNumber.isNumber(right)) return;
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
@@ -304,20 +779,29 @@ private Object cartesian(Object left, Object right) {
     public Void visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
       //  System.out.println(value);
-        System.out.println(stringify(value));
+        print(value);
         return null;
     }
 
+    void print(Object value) {
+        out.println(value);
+    }
+
     @Override
     public Void visitLetStmt(Stmt.Let stmt) {
         Object value = evaluate(stmt.value);
-        environment.define(stmt.name.lexeme, value);
+        if (reactive != null) {
+            reactive.define(stmt, value);
+        } else {
+            environment.define(stmt.name.lexeme, value);
+        }
         return null;
     }
 
     @Override
     public Void visitFunStmt(Stmt.Fun stmt) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        environment.define(stmt.name.lexeme, new SettaFunction(stmt));
+        return null;
     }
 //#endregion
 
@@ -0,0 +1,378 @@
+package setta;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static setta.SettaTokenType.*;
+
+// Plans comprehensions with more than one generator, such as
+//   { (x, y) | x in A, y in B, x == y + 1 }
+// without building A X B first.
+//
+// Every condition is checked at the first generator where all of the
+// comprehension variables it mentions are bound. A condition on a single
+// variable whose domain doesn't depend on the others filters that domain
+// once, before any looping. Generators are then placed greedily, cheapest
+// first: an equality whose other side is already bound turns a generator into
+// a hash lookup, a membership test "y in E" lets it walk E instead of its own
+// domain when E is smaller, and otherwise the smaller (filtered) domain goes
+// first. A generator whose domain mentions an earlier variable always comes
+// after it; when a domain mentions its own or a later variable (which then
+// still means the outer one) the generators run in the written order.
+//
+// The result holds the same elements as nested loops in the written order
+// would; only the order they are added in may differ.
+final class JoinPlanner {
+    // each condition checked at a level is assumed to keep this share of it
+    private static final double SELECTIVITY = 0.5;
+
+    private JoinPlanner() {
+    }
+
+    // One generator in the order the plan runs them.
+    static final class Level {
+        final SettaToken variable;
+        final Expr domainExpr;
+        // evaluated (and filtered) up front when it depends on no other variable
+        Set<?> domain;
+        final List<Expr> filters = new ArrayList<>();
+        // hash join: key (over this variable) == probe (over earlier ones)
+        Expr joinKey;
+        Expr joinProbe;
+        private Map<Object, List<Object>> index;
+        // membership: variable in source (over earlier variables)
+        Expr source;
+
+        Level(SettaToken variable, Expr domainExpr) {
+            this.variable = variable;
+            this.domainExpr = domainExpr;
+        }
+
+        // Pushes every value this variable can take given the earlier bindings.
+        boolean forEachCandidate(Interpreter interpreter, Predicate<Object> sink) {
+            Set<?> values = domain != null ? domain : evaluateDomain(interpreter, variable, domainExpr);
+
+            if (joinKey != null) {
+                Object probe = interpreter.evaluate(joinProbe);
+                if (joinKey instanceof Expr.Variable) {
+                    return !values.contains(probe) || sink.test(probe);
+                }
+                if (domain != null) {
+                    List<Object> matches = index(interpreter).get(probe);
+                    if (matches == null) return true;
+                    for (Object match : matches) {
+                        if (!sink.test(match)) return false;
+                    }
+                    return true;
+                }
+            }
+
+            if (source != null) {
+                Object sourceValue = interpreter.evaluate(source);
+                if (sourceValue instanceof Set<?> && ((Set<?>) sourceValue).size() < values.size()) {
+                    for (Object value : (Set<?>) sourceValue) {
+                        if (values.contains(value) && !sink.test(value)) return false;
+                    }
+                    return true;
+                }
+            }
+
+            for (Object value : values) {
+                if (!sink.test(value)) return false;
+            }
+            return true;
+        }
+
+        // joinKey's value -> the domain elements giving it, built on first use
+        private Map<Object, List<Object>> index(Interpreter interpreter) {
+            if (index == null) {
+                index = new HashMap<>();
+                for (Object value : domain) {
+                    interpreter.bind(variable.lexeme, value);
+                    index.computeIfAbsent(interpreter.evaluate(joinKey), key -> new ArrayList<>()).add(value);
+                }
+            }
+            return index;
+        }
+    }
+
+    static Set<?> evaluateDomain(Interpreter interpreter, SettaToken variable, Expr domainExpr) {
+        Object value = interpreter.evaluate(domainExpr);
+        if (!(value instanceof Set<?>)) {
+            throw new RuntimeError(variable, "Right operand of 'in' must be a set.");
+        }
+        return (Set<?>) value;
+    }
+
+    static List<Level> plan(Interpreter interpreter, Expr.Comprehension expr) {
+        int count = expr.variables.size();
+        Set<String> names = new HashSet<>();
+        for (SettaToken variable : expr.variables) {
+            names.add(variable.lexeme);
+        }
+
+        // comprehension variables each domain and condition mentions
+        List<Set<String>> domainUses = new ArrayList<>();
+        boolean reorder = true;
+        for (int i = 0; i < count; i++) {
+            Set<String> uses = mentions(expr.domains.get(i), names);
+            domainUses.add(uses);
+            // a domain naming a later variable means an outer one; keep the written order
+            for (int j = i; j < count; j++) {
+                if (uses.contains(expr.variables.get(j).lexeme)) reorder = false;
+            }
+        }
+        List<Expr> conditions = new ArrayList<>(expr.conditions);
+        List<Set<String>> conditionUses = new ArrayList<>();
+        for (Expr condition : conditions) {
+            conditionUses.add(mentions(condition, names));
+        }
+
+        // independent domains are evaluated now, with their own filters applied once
+        List<Level> pending = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Level level = new Level(expr.variables.get(i), expr.domains.get(i));
+            if (domainUses.get(i).isEmpty()) {
+                level.domain = evaluateDomain(interpreter, level.variable, level.domainExpr);
+                List<Expr> own = new ArrayList<>();
+                for (int c = 0; c < conditions.size(); ) {
+                    Set<String> uses = conditionUses.get(c);
+                    if (uses.size() == 1 && uses.contains(level.variable.lexeme)) {
+                        own.add(conditions.remove(c));
+                        conditionUses.remove(c);
+                    } else {
+                        c++;
+                    }
+                }
+                if (!own.isEmpty()) level.domain = filter(interpreter, level, own);
+            }
+            pending.add(level);
+        }
+
+        List<Level> levels = new ArrayList<>();
+        Set<String> bound = new HashSet<>();
+        while (!pending.isEmpty()) {
+            // without reordering the next written generator runs, its domain
+            // seeing whatever its names are bound to at that point
+            int best = 0;
+            if (reorder) {
+                double bestCost = Double.MAX_VALUE;
+                for (int i = 0; i < pending.size(); i++) {
+                    Level level = pending.get(i);
+                    int written = expr.variables.indexOf(level.variable);
+                    if (!bound.containsAll(domainUses.get(written))) continue;
+                    double cost = cost(level, bound, conditions, conditionUses);
+                    if (cost < bestCost) {
+                        best = i;
+                        bestCost = cost;
+                    }
+                }
+            }
+
+            Level level = pending.remove(best);
+            bound.add(level.variable.lexeme);
+            for (int c = 0; c < conditions.size(); ) {
+                if (!bound.containsAll(conditionUses.get(c))) {
+                    c++;
+                    continue;
+                }
+                Expr condition = conditions.remove(c);
+                Set<String> uses = conditionUses.remove(c);
+                level.filters.add(condition);
+                if (level.joinKey == null && level.source == null) {
+                    useForAccess(level, condition, uses, bound);
+                }
+            }
+            levels.add(level);
+        }
+        return levels;
+    }
+
+    // rough number of candidates a level produces for each outer binding
+    private static double cost(Level level, Set<String> bound, List<Expr> conditions,
+                               List<Set<String>> conditionUses) {
+        Set<String> after = new HashSet<>(bound);
+        after.add(level.variable.lexeme);
+        Level probe = new Level(level.variable, level.domainExpr);
+        probe.domain = level.domain;
+        double cost = level.domain != null ? level.domain.size() : Integer.MAX_VALUE;
+        for (int c = 0; c < conditions.size(); c++) {
+            if (!after.containsAll(conditionUses.get(c))) continue;
+            if (probe.joinKey == null && probe.source == null) {
+                useForAccess(probe, conditions.get(c), conditionUses.get(c), after);
+                if (probe.joinKey != null) return 1;
+            }
+            cost *= SELECTIVITY;
+        }
+        return cost;
+    }
+
+    // Makes the level a hash lookup or membership walk if condition allows it.
+    private static void useForAccess(Level level, Expr condition, Set<String> uses, Set<String> bound) {
+        if (!(condition instanceof Expr.Binary)) return;
+        Expr.Binary binary = (Expr.Binary) condition;
+        String name = level.variable.lexeme;
+        if (!uses.contains(name)) return;
+
+        if (binary.operator.type == EQUAL_EQUAL) {
+            Set<String> names = new HashSet<>(bound);
+            Set<String> left = mentions(binary.left, names);
+            Set<String> right = mentions(binary.right, names);
+            if (left.equals(Set.of(name)) && !right.contains(name)) {
+                level.joinKey = unwrap(binary.left);
+                level.joinProbe = binary.right;
+            } else if (right.equals(Set.of(name)) && !left.contains(name)) {
+                level.joinKey = unwrap(binary.right);
+                level.joinProbe = binary.left;
+            }
+            // only a plain variable can be looked up in a domain that isn't known up front
+            if (level.joinKey != null && level.domain == null && !(level.joinKey instanceof Expr.Variable)) {
+                level.joinKey = null;
+                level.joinProbe = null;
+            }
+        } else if (binary.operator.type == IN) {
+            Expr left = unwrap(binary.left);
+            if (left instanceof Expr.Variable && ((Expr.Variable) left).name.lexeme.equals(name)
+                    && !mentions(binary.right, Set.of(name)).contains(name)) {
+                level.source = binary.right;
+            }
+        }
+    }
+
+    private static Set<?> filter(Interpreter interpreter, Level level, List<Expr> conditions) {
+        SetBuilder result = new SetBuilder();
+        for (Object value : level.domain) {
+            interpreter.bind(level.variable.lexeme, value);
+            boolean keep = true;
+            for (Expr condition : conditions) {
+                if (!interpreter.isTrue(interpreter.evaluate(condition))) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) result.add(value);
+        }
+        return result.build();
+    }
+
+    private static Expr unwrap(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping) expr).expression;
+        }
+        return expr;
+    }
+
+    //#region Variable uses
+    // which of names the expression refers to (a nested comprehension's own
+    // variables are counted too, which only makes the plan more cautious)
+    static Set<String> mentions(Expr expr, Set<String> names) {
+        Uses uses = new Uses(names);
+        expr.accept(uses);
+        return uses.found;
+    }
+
+    private static class Uses implements Expr.Visitor<Void> {
+        private final Set<String> names;
+        final Set<String> found = new HashSet<>();
+
+        Uses(Set<String> names) {
+            this.names = names;
+        }
+
+        private void visitAll(List<Expr> exprs) {
+            for (Expr expr : exprs) {
+                expr.accept(this);
+            }
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            if (names.contains(expr.name.lexeme)) found.add(expr.name.lexeme);
+            expr.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            if (names.contains(expr.name.lexeme)) found.add(expr.name.lexeme);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitSetLiteralExpr(Expr.SetLiteral expr) {
+            visitAll(expr.elements);
+            return null;
+        }
+
+        @Override
+        public Void visitTupleLiteralExpr(Expr.TupleLiteral expr) {
+            visitAll(expr.elements);
+            return null;
+        }
+
+        @Override
+        public Void visitComprehensionExpr(Expr.Comprehension expr) {
+            expr.expr.accept(this);
+            visitAll(expr.domains);
+            visitAll(expr.conditions);
+            return null;
+        }
+
+        @Override
+        public Void visitCardinalityExpr(Expr.Cardinality expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            expr.callee.accept(this);
+            visitAll(expr.arguments);
+            return null;
+        }
+
+        @Override
+        public Void visitConditionalExpr(Expr.Conditional expr) {
+            expr.condition.accept(this);
+            expr.thenBranch.accept(this);
+            expr.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitCachedExpr(Expr.Cached expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+    }
+    //#endregion
+}
@@ -0,0 +1,104 @@
+package setta;
+
+import java.util.Arrays;
+
+// The values of a LongSet. Small and medium sets keep them in a long[];
+// allocate() hands out off-heap memory instead once a set is past
+// OffHeap.THRESHOLD and the offheap/ backend is available.
+abstract class LongArray {
+    static LongArray allocate(int length) {
+        if (length >= OffHeap.THRESHOLD) {
+            LongArray offHeap = OffHeap.longs(length);
+            if (offHeap != null) return offHeap;
+        }
+        return new Heap(new long[length]);
+    }
+
+    abstract int length();
+
+    abstract long get(int i);
+
+    abstract void set(int i, long value);
+
+    // the backing long[], or null when the values aren't on the heap
+    long[] array() {
+        return null;
+    }
+
+    boolean isOffHeap() {
+        return false;
+    }
+
+    // gives off-heap memory back; the array can't be used afterwards
+    void free() {
+    }
+
+    // a new array of the given length starting with this one's first count values
+    LongArray copyOf(int length, int count) {
+        LongArray copy = allocate(length);
+        for (int i = 0; i < count; i++) {
+            copy.set(i, get(i));
+        }
+        return copy;
+    }
+
+    // Arrays.binarySearch over the first size values
+    int binarySearch(int size, long value) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long found = get(middle);
+            if (found < value) {
+                low = middle + 1;
+            } else if (found > value) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    static final class Heap extends LongArray {
+        private final long[] values;
+
+        Heap(long[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int length() {
+            return values.length;
+        }
+
+        @Override
+        long get(int i) {
+            return values[i];
+        }
+
+        @Override
+        void set(int i, long value) {
+            values[i] = value;
+        }
+
+        @Override
+        long[] array() {
+            return values;
+        }
+
+        @Override
+        LongArray copyOf(int length, int count) {
+            LongArray copy = allocate(length);
+            long[] target = copy.array();
+            if (target == null) return super.copyOf(length, count);
+            System.arraycopy(values, 0, target, 0, count);
+            return copy;
+        }
+
+        @Override
+        int binarySearch(int size, long value) {
+            return Arrays.binarySearch(values, 0, size, value);
+        }
+    }
+}
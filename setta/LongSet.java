@@ -0,0 +1,311 @@
+package setta;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.LongPredicate;
+
+// A set of whole numbers kept as primitive longs, used for any set whose
+// elements are all Longs (see SetBuilder). Values sit in insertion order in
+// one array, so iteration and printing match a LinkedHashSet exactly.
+//
+// While values keep arriving in ascending order (literals like {1, 2, 3},
+// filters and differences of ascending sets) the array is also sorted: new
+// values are appended without hashing, membership uses binary search and the
+// set operators can merge two of them in a single linear pass. Once a value
+// arrives out of order an open-addressing index is built and used instead.
+//
+// Both arrays are usually on the heap; very large sets keep them off it
+// (see OffHeap).
+final class LongSet extends SettaSet {
+    // small ascending sets are searched, bigger ones get an index on first lookup
+    private static final int SEARCH_LIMIT = 64;
+
+    private LongArray values;
+    private int size = 0;
+    private boolean ascending = true;
+    // slot -> position + 1 (0 = empty). Built lazily; volatile because a
+    // lookup on a shared, finished set may build it from another thread.
+    private volatile IntArray index;
+    // registered with OffHeap once any of the memory is off the heap
+    private boolean tracked = false;
+
+    LongSet() {
+        this(8);
+    }
+
+    LongSet(int capacity) {
+        setValues(LongArray.allocate(Math.max(capacity, 4)));
+    }
+
+    private LongSet(LongSet other) {
+        setValues(other.values.copyOf(Math.max(other.size, 4), other.size));
+        size = other.size;
+        ascending = other.ascending;
+        IntArray otherIndex = other.index;
+        if (otherIndex != null) setIndex(otherIndex.copy());
+    }
+
+    // a set holding values[0..size), which the caller guarantees are distinct;
+    // the array is taken over, not copied
+    static LongSet fromDistinct(long[] values, int size) {
+        LongSet set = new LongSet(0);
+        set.values = new LongArray.Heap(values);
+        set.size = size;
+        for (int i = 1; i < size && set.ascending; i++) {
+            set.ascending = values[i - 1] < values[i];
+        }
+        return set;
+    }
+
+    // the same for values built elsewhere (see ParallelOps), whose order the
+    // caller knows too
+    static LongSet fromDistinct(LongArray values, int size, boolean ascending) {
+        LongSet set = new LongSet(0);
+        set.setValues(values);
+        set.size = size;
+        set.ascending = ascending;
+        return set;
+    }
+
+    LongSet copy() {
+        return new LongSet(this);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    boolean isAscending() {
+        return ascending;
+    }
+
+    long longAt(int position) {
+        return values.get(position);
+    }
+
+    // the backing array, or null if it is off the heap; only the first
+    // size() values belong to the set
+    long[] array() {
+        return values.array();
+    }
+
+    private void setValues(LongArray array) {
+        values = array;
+        if (array.isOffHeap()) track();
+    }
+
+    private void setIndex(IntArray table) {
+        index = table;
+        if (table.isOffHeap()) track();
+    }
+
+    private void track() {
+        if (!tracked) {
+            tracked = true;
+            OffHeap.track(this);
+        }
+    }
+
+    @Override
+    void free() {
+        values.free();
+        IntArray table = index;
+        if (table != null) table.free();
+    }
+
+    //#region LOOKUP
+    boolean containsLong(long value) {
+        return indexOf(value) >= 0;
+    }
+
+    // position of value in insertion order, or -1
+    int indexOf(long value) {
+        IntArray table = index;
+        if (table == null) {
+            if (ascending && size <= SEARCH_LIMIT) {
+                int found = values.binarySearch(size, value);
+                return found >= 0 ? found : -1;
+            }
+            table = lazyIndex();
+        }
+        int mask = table.length() - 1;
+        for (int slot = hash(value) & mask; ; slot = (slot + 1) & mask) {
+            int entry = table.get(slot);
+            if (entry == 0) return -1;
+            if (values.get(entry - 1) == value) return entry - 1;
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Long && containsLong((Long) o);
+    }
+
+    // Builds the index now if lookups will need one, before several threads
+    // look values up at once.
+    void prepareLookups() {
+        if (index == null && !(ascending && size <= SEARCH_LIMIT)) lazyIndex();
+    }
+
+    // for an ascending set: the position of the first value >= value
+    int searchAscending(long value) {
+        int found = values.binarySearch(size, value);
+        return found >= 0 ? found : -found - 1;
+    }
+    //#endregion
+
+    //#region INSERTION
+    boolean addLong(long value) {
+        if (ascending && index == null) {
+            if (size == 0 || value > values.get(size - 1)) {
+                append(value);
+                return true;
+            }
+            if (values.binarySearch(size, value) >= 0) return false;
+        } else if (indexOf(value) >= 0) {
+            return false;
+        }
+        addUnique(value);
+        return true;
+    }
+
+    // Adds a value the caller knows is not in the set yet.
+    void addUnique(long value) {
+        if (size > 0 && value <= values.get(size - 1)) ascending = false;
+        append(value);
+        IntArray table = index;
+        if (table == null) {
+            if (!ascending) buildIndex();
+        } else if (size * 2 > table.length()) {
+            buildIndex();
+        } else {
+            insert(table, size - 1);
+        }
+    }
+
+    @Override
+    public boolean add(Object o) {
+        if (!(o instanceof Long)) throw new UnsupportedOperationException("LongSet only holds Longs.");
+        return addLong((Long) o);
+    }
+
+    private void append(long value) {
+        if (size == values.length()) {
+            LongArray old = values;
+            setValues(old.copyOf(size * 2, size));
+            old.free();
+        }
+        values.set(size++, value);
+        invalidateHash();
+    }
+
+    // a finished set may be looked up from several threads; only one builds
+    private synchronized IntArray lazyIndex() {
+        IntArray table = index;
+        return table != null ? table : buildIndex();
+    }
+
+    private IntArray buildIndex() {
+        int capacity = Integer.highestOneBit(Math.max(size, 4) * 2) * 2;
+        IntArray table = IntArray.allocate(capacity);
+        for (int position = 0; position < size; position++) {
+            insert(table, position);
+        }
+        IntArray old = index;
+        setIndex(table);
+        if (old != null) old.free();
+        return table;
+    }
+
+    private void insert(IntArray table, int position) {
+        int mask = table.length() - 1;
+        int slot = hash(values.get(position)) & mask;
+        while (table.get(slot) != 0) slot = (slot + 1) & mask;
+        table.set(slot, position + 1);
+    }
+
+    private static int hash(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+    //#endregion
+
+    // Keeps only the values keep accepts, in their current order.
+    void retainIf(LongPredicate keep) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            long value = values.get(i);
+            if (keep.test(value)) values.set(kept++, value);
+        }
+        if (kept == size) return;
+        size = kept;
+        invalidateHash();
+        IntArray old = index;
+        index = null;
+        if (old != null) old.free();
+        if (!ascending) buildIndex();
+    }
+
+    // The values at the given sorted positions (keep) or all the other values
+    // (!keep), in insertion order.
+    LongSet select(int[] positions, boolean keep) {
+        if (keep) {
+            LongSet result = new LongSet(positions.length);
+            for (int position : positions) {
+                result.addUnique(values.get(position));
+            }
+            return result;
+        }
+        LongSet result = new LongSet(size - positions.length);
+        int next = 0;
+        for (int i = 0; i < size; i++) {
+            if (next < positions.length && positions[next] == i) {
+                next++;
+            } else {
+                result.addUnique(values.get(i));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Iterator<Object>() {
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return position < size;
+            }
+
+            @Override
+            public Object next() {
+                if (position >= size) throw new NoSuchElementException();
+                return SettaNumber.of(values.get(position++));
+            }
+        };
+    }
+
+    // same value AbstractSet computes, without boxing every element
+    @Override
+    int computeHash() {
+        int h = 0;
+        for (int i = 0; i < size; i++) {
+            h += Long.hashCode(values.get(i));
+        }
+        return h;
+    }
+
+    @Override
+    boolean containsEvery(Set<?> other) {
+        if (!(other instanceof LongSet)) return super.containsEvery(other);
+        LongSet longs = (LongSet) other;
+        if (ParallelOps.pays(longs.size)) return ParallelOps.containsAll(this, longs);
+        for (int i = 0; i < longs.size; i++) {
+            if (!containsLong(longs.values.get(i))) return false;
+        }
+        return true;
+    }
+}
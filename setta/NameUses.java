@@ -0,0 +1,113 @@
+package setta;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+// For every subexpression of a tree: the variables its comprehensions bind,
+// the names it reads or assigns outside of a comprehension binding them, and
+// whether it assigns anywhere. Worked out bottom-up in one pass and kept per
+// expression, so asking at every operator of a deeply nested expression
+// costs no more than asking once.
+final class NameUses {
+    static final Names NONE = new Names(Set.of(), Set.of(), false);
+
+    static final class Names {
+        final Set<String> comprehensionVariables;
+        // a comprehension's first domain is outside of its variables
+        final Set<String> free;
+        final boolean assigns;
+
+        Names(Set<String> comprehensionVariables, Set<String> free, boolean assigns) {
+            this.comprehensionVariables = comprehensionVariables;
+            this.free = free;
+            this.assigns = assigns;
+        }
+    }
+
+    private final Map<Expr, Names> names = new WeakHashMap<>();
+
+    Names of(Expr root) {
+        if (root == null) return NONE;
+        Names known = names.get(root);
+        if (known != null) return known;
+
+        // post-order with an explicit stack: an expression is combined once
+        // all of its children have been
+        Deque<Expr> pending = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        pending.push(root);
+        expanded.push(false);
+        while (!pending.isEmpty()) {
+            Expr expr = pending.pop();
+            boolean ready = expanded.pop();
+            if (names.containsKey(expr)) continue;
+            if (ready) {
+                names.put(expr, combine(expr));
+                continue;
+            }
+            pending.push(expr);
+            expanded.push(true);
+            for (Expr child : Subexpressions.children(expr)) {
+                if (child != null && !names.containsKey(child)) {
+                    pending.push(child);
+                    expanded.push(false);
+                }
+            }
+        }
+        return names.get(root);
+    }
+
+    private Names combine(Expr expr) {
+        List<Expr> children = Subexpressions.children(expr);
+        Set<String> variables = Set.of();
+        Set<String> free = Set.of();
+        boolean assigns = expr instanceof Expr.Assign;
+        for (Expr child : children) {
+            Names inner = of(child);
+            variables = union(variables, inner.comprehensionVariables);
+            assigns |= inner.assigns;
+        }
+
+        if (expr instanceof Expr.Variable) {
+            free = Set.of(((Expr.Variable) expr).name.lexeme);
+        } else if (expr instanceof Expr.Comprehension) {
+            Expr.Comprehension comprehension = (Expr.Comprehension) expr;
+            Set<String> own = new HashSet<>();
+            for (SettaToken variable : comprehension.variables) {
+                own.add(variable.lexeme);
+            }
+            variables = union(variables, own);
+            // children() puts the first domain right after the body
+            Set<String> inside = Set.of();
+            for (int i = 0; i < children.size(); i++) {
+                if (i != 1) inside = union(inside, of(children.get(i)).free);
+            }
+            if (!own.containsAll(inside)) {
+                Set<String> outside = new HashSet<>(inside);
+                outside.removeAll(own);
+                free = outside;
+            }
+            free = union(free, of(comprehension.domains.get(0)).free);
+        } else {
+            if (expr instanceof Expr.Assign) free = Set.of(((Expr.Assign) expr).name.lexeme);
+            for (Expr child : children) {
+                free = union(free, of(child).free);
+            }
+        }
+        return new Names(variables, free, assigns);
+    }
+
+    // shares a side when the other adds nothing
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        if (a.containsAll(b)) return a;
+        if (b.containsAll(a)) return b;
+        Set<String> both = new HashSet<>(a);
+        both.addAll(b);
+        return both;
+    }
+}
@@ -0,0 +1,316 @@
+package setta;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static setta.SettaTokenType.*;
+
+// A comprehension over a LongSet whose conditions and body are plain
+// arithmetic (+ - * %, unary -) and comparisons on the loop variable and
+// whole-number literals, e.g. { x * x | x in S, x % 2 == 0, x > 10 }. These
+// run as one loop over the set's primitive array instead of binding the
+// variable and interpreting the expressions for every element.
+//
+// The loop itself is a Backend. The default one is scalar; when the classes
+// under simd/ are on the class path and jdk.incubator.vector is available
+// (see the README), VectorBackend runs several elements per instruction.
+//
+// Setta numbers don't wrap: a whole value beyond 2^53 becomes a double, and
+// some zero results are -0.0. A kernel is only compiled when the domain's range
+// proves neither can happen; anything else falls back to the interpreter.
+final class NumericKernel {
+    static final Backend BACKEND = loadBackend();
+
+    interface Backend {
+        // Writes body(x) (or x itself when body is null) for every value that
+        // passes all conditions to out, in order; returns how many it wrote.
+        // out has room for size + SLACK values, or is null to only count them.
+        int run(long[] values, int size, Node[] conditions, Node body, long[] out);
+    }
+
+    // room a backend may write past its last result (a vector's worth of lanes)
+    static final int SLACK = 64;
+
+    private static Backend loadBackend() {
+        if (!Boolean.parseBoolean(System.getProperty("setta.simd", "true"))) return new Scalar();
+        try {
+            return (Backend) Class.forName("setta.VectorBackend").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // not compiled in, or the incubator module isn't enabled
+            return new Scalar();
+        }
+    }
+
+    //#region Expression nodes
+    static final int VAR = 0;
+    static final int CONST = 1;
+    static final int ADD = 2;
+    static final int SUB = 3;
+    static final int MUL = 4;
+    static final int MOD = 5;
+    static final int NEG = 6;
+    static final int EQ = 7;
+    static final int NE = 8;
+    static final int LT = 9;
+    static final int LE = 10;
+    static final int GT = 11;
+    static final int GE = 12;
+
+    static final class Node {
+        final int op;
+        final long value;
+        final Node left;
+        final Node right;
+
+        Node(int op, long value, Node left, Node right) {
+            this.op = op;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+        }
+
+        long eval(long x) {
+            switch (op) {
+                case VAR: return x;
+                case CONST: return value;
+                case ADD: return left.eval(x) + right.eval(x);
+                case SUB: return left.eval(x) - right.eval(x);
+                case MUL: return left.eval(x) * right.eval(x);
+                case MOD: return left.eval(x) % right.value;
+                case NEG: return -left.eval(x);
+                default: throw new IllegalStateException("not arithmetic: " + op);
+            }
+        }
+
+        boolean test(long x) {
+            long a = left.eval(x);
+            long b = right.eval(x);
+            switch (op) {
+                case EQ: return a == b;
+                case NE: return a != b;
+                case LT: return a < b;
+                case LE: return a <= b;
+                case GT: return a > b;
+                case GE: return a >= b;
+                default: throw new IllegalStateException("not a comparison: " + op);
+            }
+        }
+    }
+    //#endregion
+
+    private final LongSet domain;
+    private final Node[] conditions;
+    // null when the body is the loop variable itself
+    private final Node body;
+
+    private NumericKernel(LongSet domain, Node[] conditions, Node body) {
+        this.domain = domain;
+        this.conditions = conditions;
+        this.body = body;
+    }
+
+    boolean isFilter() {
+        return body == null;
+    }
+
+    LongSet materialize() {
+        long[] out = new long[domain.size() + SLACK];
+        int count = BACKEND.run(domain.array(), domain.size(), conditions, body, out);
+        // a filter keeps distinct values; a body may repeat one
+        if (body == null) return LongSet.fromDistinct(out, count);
+        LongSet result = new LongSet(count);
+        for (int i = 0; i < count; i++) {
+            result.addLong(out[i]);
+        }
+        return result;
+    }
+
+    // only meaningful for filters, whose results are distinct
+    long count() {
+        return BACKEND.run(domain.array(), domain.size(), conditions, null, null);
+    }
+
+    //#region Compiling
+    // null unless every condition and the body qualify
+    static NumericKernel compile(Expr.Comprehension expr, LongSet domain) {
+        if (domain.size() == 0 || domain.array() == null) return null;
+        String variable = expr.variables.get(0).lexeme;
+        long[] range = range(domain);
+
+        List<Node> conditions = new ArrayList<>();
+        for (Expr condition : expr.conditions) {
+            Node node = comparison(condition, variable);
+            if (node == null || !fits(node.left, range) || !fits(node.right, range)) return null;
+            conditions.add(node);
+        }
+
+        Node body = null;
+        Expr bodyExpr = unwrap(expr.expr);
+        if (!(bodyExpr instanceof Expr.Variable && ((Expr.Variable) bodyExpr).name.lexeme.equals(variable))) {
+            body = arithmetic(bodyExpr, variable);
+            if (body == null || !fits(body, range)) return null;
+        }
+        return new NumericKernel(domain, conditions.toArray(new Node[0]), body);
+    }
+
+    private static Node comparison(Expr expr, String variable) {
+        expr = unwrap(expr);
+        if (!(expr instanceof Expr.Binary)) return null;
+        Expr.Binary binary = (Expr.Binary) expr;
+        int op;
+        switch (binary.operator.type) {
+            case EQUAL_EQUAL: op = EQ; break;
+            case BANG_EQUAL: op = NE; break;
+            case LESS: op = LT; break;
+            case LESS_EQUAL: op = LE; break;
+            case GREATER: op = GT; break;
+            case GREATER_EQUAL: op = GE; break;
+            default: return null;
+        }
+        Node left = arithmetic(binary.left, variable);
+        Node right = arithmetic(binary.right, variable);
+        if (left == null || right == null) return null;
+        return new Node(op, 0, left, right);
+    }
+
+    private static Node arithmetic(Expr expr, String variable) {
+        expr = unwrap(expr);
+        if (expr instanceof Expr.Variable) {
+            return ((Expr.Variable) expr).name.lexeme.equals(variable) ? new Node(VAR, 0, null, null) : null;
+        }
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            return value instanceof Long ? new Node(CONST, (Long) value, null, null) : null;
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (unary.operator.type != MINUS) return null;
+            Node operand = arithmetic(unary.right, variable);
+            return operand == null ? null : new Node(NEG, 0, operand, null);
+        }
+        if (!(expr instanceof Expr.Binary)) return null;
+        Expr.Binary binary = (Expr.Binary) expr;
+        int op;
+        switch (binary.operator.type) {
+            case PLUS: op = ADD; break;
+            case MINUS: op = SUB; break;
+            case STAR: op = MUL; break;
+            case PERCENT: op = MOD; break;
+            default: return null;
+        }
+        Node left = arithmetic(binary.left, variable);
+        Node right = arithmetic(binary.right, variable);
+        if (left == null || right == null) return null;
+        // only a positive literal divisor, so there is no division by zero
+        if (op == MOD && (right.op != CONST || right.value <= 0)) return null;
+        return new Node(op, 0, left, right);
+    }
+
+    private static Expr unwrap(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping) expr).expression;
+        }
+        return expr;
+    }
+    //#endregion
+
+    //#region Range analysis
+    private static long[] range(LongSet domain) {
+        if (domain.isAscending()) return new long[] {domain.longAt(0), domain.longAt(domain.size() - 1)};
+        long low = Long.MAX_VALUE;
+        long high = Long.MIN_VALUE;
+        long[] values = domain.array();
+        for (int i = 0; i < domain.size(); i++) {
+            low = Math.min(low, values[i]);
+            high = Math.max(high, values[i]);
+        }
+        return new long[] {low, high};
+    }
+
+    // true if node, for x in range, always gives a long that Setta would too
+    // (no overflow to double, no -0.0)
+    private static boolean fits(Node node, long[] range) {
+        try {
+            return bounds(node, range) != null;
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    // [low, high] of node's value, or null if it may not be a plain long;
+    // beyond 2^53 Setta rounds like a double would
+    private static long[] bounds(Node node, long[] range) {
+        long[] bounds = unchecked(node, range);
+        if (bounds == null || bounds[0] < -SettaNumber.EXACT || bounds[1] > SettaNumber.EXACT) return null;
+        return bounds;
+    }
+
+    private static long[] unchecked(Node node, long[] range) {
+        switch (node.op) {
+            case VAR:
+                return range;
+            case CONST:
+                return new long[] {node.value, node.value};
+            case NEG: {
+                long[] a = bounds(node.left, range);
+                // -0 is -0.0
+                if (a == null || (a[0] <= 0 && a[1] >= 0)) return null;
+                return new long[] {Math.negateExact(a[1]), Math.negateExact(a[0])};
+            }
+            case ADD: {
+                long[] a = bounds(node.left, range);
+                long[] b = bounds(node.right, range);
+                if (a == null || b == null) return null;
+                return new long[] {Math.addExact(a[0], b[0]), Math.addExact(a[1], b[1])};
+            }
+            case SUB: {
+                long[] a = bounds(node.left, range);
+                long[] b = bounds(node.right, range);
+                if (a == null || b == null) return null;
+                return new long[] {Math.subtractExact(a[0], b[1]), Math.subtractExact(a[1], b[0])};
+            }
+            case MUL: {
+                long[] a = bounds(node.left, range);
+                long[] b = bounds(node.right, range);
+                if (a == null || b == null) return null;
+                // 0 times a negative is -0.0, except in a square
+                boolean square = node.left.op == VAR && node.right.op == VAR;
+                if (!square && ((a[0] <= 0 && a[1] >= 0 && b[0] < 0) || (b[0] <= 0 && b[1] >= 0 && a[0] < 0))) {
+                    return null;
+                }
+                long p1 = Math.multiplyExact(a[0], b[0]);
+                long p2 = Math.multiplyExact(a[0], b[1]);
+                long p3 = Math.multiplyExact(a[1], b[0]);
+                long p4 = Math.multiplyExact(a[1], b[1]);
+                return new long[] {Math.min(Math.min(p1, p2), Math.min(p3, p4)),
+                                   Math.max(Math.max(p1, p2), Math.max(p3, p4))};
+            }
+            case MOD: {
+                long[] a = bounds(node.left, range);
+                // a negative multiple of the divisor gives -0.0
+                if (a == null || a[0] < 0) return null;
+                return new long[] {0, Math.min(a[1], node.right.value - 1)};
+            }
+            default:
+                return null;
+        }
+    }
+    //#endregion
+
+    private static final class Scalar implements Backend {
+        @Override
+        public int run(long[] values, int size, Node[] conditions, Node body, long[] out) {
+            int count = 0;
+            next:
+            for (int i = 0; i < size; i++) {
+                long x = values[i];
+                for (Node condition : conditions) {
+                    if (!condition.test(x)) continue next;
+                }
+                if (out != null) out[count] = body == null ? x : body.eval(x);
+                count++;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package setta;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// The general set representation: any mix of elements, in insertion order.
+// Sets of whole numbers only use LongSet instead (see SetBuilder).
+final class ObjectSet extends SettaSet {
+    private final LinkedHashSet<Object> elements;
+
+    ObjectSet() {
+        elements = new LinkedHashSet<>();
+    }
+
+    ObjectSet(Collection<?> initial) {
+        elements = new LinkedHashSet<>(Math.max(initial.size() * 2, 16));
+        addAll(initial);
+    }
+
+    @Override
+    public int size() {
+        return elements.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return elements.contains(o);
+    }
+
+    // read-only, so every change goes through the methods below
+    @Override
+    public Iterator<Object> iterator() {
+        return Collections.unmodifiableSet(elements).iterator();
+    }
+
+    // a set stored inside another value can no longer be changed in place
+    @Override
+    public boolean add(Object value) {
+        value = HashConsing.intern(value);
+        SettaSet.pin(value);
+        if (!elements.add(value)) return false;
+        invalidateHash();
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!elements.remove(o)) return false;
+        invalidateHash();
+        return true;
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> other) {
+        if (!elements.retainAll(other)) return false;
+        invalidateHash();
+        return true;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> other) {
+        if (!elements.removeAll(other)) return false;
+        invalidateHash();
+        return true;
+    }
+
+    @Override
+    int computeHash() {
+        int h = 0;
+        for (Object element : elements) {
+            if (element != null) h += element.hashCode();
+        }
+        return h;
+    }
+
+    @Override
+    boolean containsEvery(Set<?> other) {
+        for (Object element : other) {
+            if (!elements.contains(element)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,104 @@
+package setta;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// Keeps very large LongSets outside the Java heap, so the collector never
+// copies them and the heap doesn't have to be sized for them. A set moves
+// off the heap when it is allocated or grows to at least THRESHOLD elements
+// (-Dsetta.offheap.threshold, 16M by default) while a script is running.
+//
+// The memory comes from the optional offheap/ sources, which use the
+// foreign memory API (a preview in JDK 21; see the README for the flags).
+// Without them every set stays on the heap.
+//
+// Off-heap memory is released deterministically rather than by the
+// collector. Every interpreter owns the off-heap sets its scripts build: at
+// the end of each statement it frees those no variable holds anymore (an
+// unbound set can't be reached once the statement that made it is done), and
+// the rest when its session is closed. Sets built outside a script, and sets
+// inside other sets, are only freed with the session.
+final class OffHeap {
+    static final long THRESHOLD = Long.getLong("setta.offheap.threshold", 1L << 24);
+
+    interface Allocator {
+        LongArray longs(int length);
+
+        IntArray ints(int length);
+    }
+
+    private static final Allocator ALLOCATOR = loadAllocator();
+
+    // the owner of the script running on this thread, if any
+    private static final ThreadLocal<Owner> CURRENT = new ThreadLocal<>();
+
+    private OffHeap() {
+    }
+
+    private static Allocator loadAllocator() {
+        try {
+            return (Allocator) Class.forName("setta.SegmentAllocator").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // not compiled in, or compiled for a preview the JVM wasn't started with
+            return null;
+        }
+    }
+
+    // off-heap memory, or null to use the heap: there is no allocator, or no
+    // script to own the memory
+    static LongArray longs(int length) {
+        return ALLOCATOR != null && CURRENT.get() != null ? ALLOCATOR.longs(length) : null;
+    }
+
+    static IntArray ints(int length) {
+        return ALLOCATOR != null && CURRENT.get() != null ? ALLOCATOR.ints(length) : null;
+    }
+
+    // called by a set the first time any of its memory is off the heap, or
+    // when it is spilled to disk (see Spill); spill files built outside a
+    // script are only deleted when the JVM exits
+    static void track(SettaSet set) {
+        Owner owner = CURRENT.get();
+        if (owner != null) owner.sets.add(set);
+    }
+
+    // Makes owner responsible for the off-heap sets built on this thread
+    // until the returned owner is restored.
+    static Owner enter(Owner owner) {
+        Owner previous = CURRENT.get();
+        CURRENT.set(owner);
+        return previous;
+    }
+
+    static void exit(Owner previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    static final class Owner {
+        private final List<SettaSet> sets = new ArrayList<>();
+
+        // only between statements, when no expression holds a set
+        void releaseUnbound() {
+            if (sets.isEmpty()) return;
+            for (Iterator<SettaSet> it = sets.iterator(); it.hasNext(); ) {
+                SettaSet set = it.next();
+                if (set.isTemporary()) {
+                    set.free();
+                    it.remove();
+                }
+            }
+        }
+
+        void releaseAll() {
+            for (SettaSet set : sets) {
+                set.free();
+            }
+            sets.clear();
+        }
+    }
+}
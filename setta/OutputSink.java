@@ -0,0 +1,149 @@
+package setta;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Set;
+
+// Where print sends its output. Values are written piece by piece into one
+// large buffer while they are walked, so printing a huge set never builds its
+// whole string form, and many small prints don't each cost a synchronized,
+// flushing println. The buffer is only written out when it fills up, when the
+// run ends (or hits an error), and on flush().
+final class OutputSink {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Writer writer;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position = 0;
+    // digits of a long, written backwards
+    private final char[] digits = new char[20];
+
+    OutputSink(PrintStream out) {
+        this.writer = new OutputStreamWriter(out, out.charset());
+    }
+
+    void println(Object value) {
+        write(value);
+        write('\n');
+    }
+
+    void flush() {
+        try {
+            drain();
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //#region Formatting
+    private void write(Object value) {
+        if (value == null) {
+            write("nil");
+        } else if (value instanceof Long) {
+            write((long) (Long) value);
+        } else if (value instanceof Double) {
+            write((double) (Double) value);
+        } else if (value instanceof Tuple) {
+            Tuple tuple = (Tuple) value;
+            write('(');
+            for (int i = 0; i < tuple.size(); i++) {
+                if (i > 0) write(", ");
+                write(tuple.get(i));
+            }
+            write(')');
+        } else if (value instanceof LongSet) {
+            LongSet set = (LongSet) value;
+            write('{');
+            for (int i = 0; i < set.size(); i++) {
+                if (i > 0) write(", ");
+                write(set.longAt(i));
+            }
+            write('}');
+        } else if (value instanceof SpilledSet) {
+            SpillFile.Cursor cursor = ((SpilledSet) value).cursor();
+            write('{');
+            for (boolean first = true; cursor.next(); first = false) {
+                if (!first) write(", ");
+                write(cursor.value());
+            }
+            write('}');
+        } else if (value instanceof Set<?>) {
+            write('{');
+            boolean first = true;
+            for (Object element : (Set<?>) value) {
+                if (!first) write(", ");
+                write(element);
+                first = false;
+            }
+            write('}');
+        } else {
+            write(value.toString());
+        }
+    }
+
+    private void write(long value) {
+        // from 10^7 up Double.toString switches to 1.0E7, which is how
+        // numbers printed when they were all doubles
+        if (value <= -10_000_000 || value >= 10_000_000) {
+            write(Double.toString(value));
+            return;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (count > 0) {
+            write(digits[--count]);
+        }
+    }
+
+    // Whole values print without ".0". Canonical numbers only reach the last
+    // branch when they aren't whole, are beyond 2^53, or are -0.0.
+    private void write(double value) {
+        if (SettaNumber.isWhole(value)) {
+            write((long) value);
+        } else if (value == 0) {
+            write("-0");
+        } else {
+            write(Double.toString(value));
+        }
+    }
+    //#endregion
+
+    //#region Buffer
+    private void write(char c) {
+        if (position == buffer.length) drain();
+        buffer[position++] = c;
+    }
+
+    private void write(String text) {
+        int length = text.length();
+        int offset = 0;
+        while (offset < length) {
+            if (position == buffer.length) drain();
+            int chunk = Math.min(length - offset, buffer.length - position);
+            text.getChars(offset, offset + chunk, buffer, position);
+            position += chunk;
+            offset += chunk;
+        }
+    }
+
+    private void drain() {
+        try {
+            writer.write(buffer, 0, position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        position = 0;
+    }
+    //#endregion
+}
@@ -0,0 +1,233 @@
+package setta;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+
+// Multi-core versions of SetOps' LongSet paths, for sets with millions of
+// elements. One operand's positions are cut into chunks that run on the
+// common fork/join pool. Each chunk looks its values up in the other
+// operand, through that set's hash index or, when both are ascending, by
+// merging with the matching range of it, and marks them in a bitmap (chunks
+// are whole 64-bit words of it, so no two share one). Results are then
+// written by the same chunks straight into one array, each at an offset from
+// the counts of the chunks before it, which gives exactly the order of the
+// single-threaded paths.
+//
+// Below THRESHOLD elements (-Dsetta.parallel.threshold, 1M by default), or
+// with a single-threaded pool, SetOps doesn't come here.
+final class ParallelOps {
+    static final long THRESHOLD = Long.getLong("setta.parallel.threshold", 1L << 20);
+    // below this a chunk isn't worth a task
+    private static final int MIN_CHUNK = 1 << 14;
+
+    private ParallelOps() {
+    }
+
+    // splitting work over this many elements pays off
+    static boolean pays(long elements) {
+        return elements >= THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1;
+    }
+
+    //#region Operators
+    static LongSet intersect(LongSet a, LongSet b) {
+        Chunks chunks = new Chunks(a.size());
+        int[] found = new int[chunks.count];
+        return select(a, chunks, matches(a, b, chunks, found), found, true);
+    }
+
+    static LongSet difference(LongSet a, LongSet b) {
+        Chunks chunks = new Chunks(a.size());
+        int[] found = new int[chunks.count];
+        return select(a, chunks, matches(a, b, chunks, found), found, false);
+    }
+
+    // a's values, then b's that aren't in a
+    static LongSet union(LongSet a, LongSet b) {
+        Chunks chunks = new Chunks(b.size());
+        int[] found = new int[chunks.count];
+        return concat(a, b, chunks, matches(b, a, chunks, found), found);
+    }
+
+    // a's values, then b's; the caller knows they have none in common
+    static LongSet concat(LongSet a, LongSet b) {
+        Chunks chunks = new Chunks(b.size());
+        return concat(a, b, chunks, new long[words(b.size())], new int[chunks.count]);
+    }
+
+    static long intersectionSize(LongSet a, LongSet b) {
+        LongSet small = a.size() <= b.size() ? a : b;
+        LongSet big = small == a ? b : a;
+        Chunks chunks = new Chunks(small.size());
+        int[] found = new int[chunks.count];
+        matches(small, big, chunks, found);
+        long count = 0;
+        for (int n : found) {
+            count += n;
+        }
+        return count;
+    }
+
+    // every value of b is in a; stops all chunks at the first one that isn't
+    static boolean containsAll(LongSet a, LongSet b) {
+        if (b.size() > a.size()) return false;
+        if (a.isAscending() && b.isAscending()) return intersectionSize(a, b) == b.size();
+        a.prepareLookups();
+        Chunks chunks = new Chunks(b.size());
+        AtomicBoolean missing = new AtomicBoolean();
+        each(chunks.count, c -> {
+            for (int i = chunks.start(c); i < chunks.end(c) && !missing.get(); i++) {
+                if (!a.containsLong(b.longAt(i))) missing.set(true);
+            }
+        });
+        return !missing.get();
+    }
+    //#endregion
+
+    //#region Chunks
+    // A bitmap over a's positions with the bit of every value b contains;
+    // found[c] is how many bits chunk c set.
+    private static long[] matches(LongSet a, LongSet b, Chunks chunks, int[] found) {
+        long[] bits = new long[words(a.size())];
+        boolean merge = a.isAscending() && b.isAscending();
+        // built here, not by whichever chunk looks something up first
+        if (!merge) b.prepareLookups();
+        each(chunks.count, c -> {
+            int start = chunks.start(c);
+            int end = chunks.end(c);
+            int count = 0;
+            if (merge) {
+                int j = b.searchAscending(a.longAt(start));
+                int i = start;
+                while (i < end && j < b.size()) {
+                    long x = a.longAt(i);
+                    long y = b.longAt(j);
+                    if (x < y) {
+                        i++;
+                    } else if (x > y) {
+                        j++;
+                    } else {
+                        bits[i >>> 6] |= 1L << i;
+                        count++;
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (int i = start; i < end; i++) {
+                    if (b.containsLong(a.longAt(i))) {
+                        bits[i >>> 6] |= 1L << i;
+                        count++;
+                    }
+                }
+            }
+            found[c] = count;
+        });
+        return bits;
+    }
+
+    // a's values whose bit is set (keep) or clear (!keep), in a's order
+    private static LongSet select(LongSet a, Chunks chunks, long[] bits, int[] found, boolean keep) {
+        int[] offsets = new int[chunks.count];
+        int size = 0;
+        for (int c = 0; c < chunks.count; c++) {
+            offsets[c] = size;
+            size += keep ? found[c] : chunks.end(c) - chunks.start(c) - found[c];
+        }
+        LongArray values = LongArray.allocate(Math.max(size, 4));
+        each(chunks.count, c -> {
+            int next = offsets[c];
+            for (int i = chunks.start(c); i < chunks.end(c); i++) {
+                if (((bits[i >>> 6] & (1L << i)) != 0) == keep) values.set(next++, a.longAt(i));
+            }
+        });
+        return LongSet.fromDistinct(values, size, a.isAscending());
+    }
+
+    // a's values, then b's whose bit is clear; a is copied by chunks too
+    private static LongSet concat(LongSet a, LongSet b, Chunks chunks, long[] bits, int[] found) {
+        Chunks copies = new Chunks(a.size());
+        int[] offsets = new int[chunks.count];
+        int size = a.size();
+        for (int c = 0; c < chunks.count; c++) {
+            offsets[c] = size;
+            size += chunks.end(c) - chunks.start(c) - found[c];
+        }
+        LongArray values = LongArray.allocate(Math.max(size, 4));
+        each(copies.count + chunks.count, task -> {
+            if (task < copies.count) {
+                for (int i = copies.start(task); i < copies.end(task); i++) {
+                    values.set(i, a.longAt(i));
+                }
+                return;
+            }
+            int c = task - copies.count;
+            int next = offsets[c];
+            for (int i = chunks.start(c); i < chunks.end(c); i++) {
+                if ((bits[i >>> 6] & (1L << i)) == 0) values.set(next++, b.longAt(i));
+            }
+        });
+        int n = a.size();
+        boolean ascending = a.isAscending() && b.isAscending()
+            && (n == 0 || size == n || values.get(n - 1) < values.get(n));
+        return LongSet.fromDistinct(values, size, ascending);
+    }
+
+    private static int words(int size) {
+        return (size + 63) >>> 6;
+    }
+
+    // positions [0, size) in chunks of a multiple of 64 positions, about four
+    // per pool thread
+    private static final class Chunks {
+        private final int size;
+        private final int length;
+        final int count;
+
+        Chunks(int size) {
+            int target = Math.max(MIN_CHUNK, size / (ForkJoinPool.getCommonPoolParallelism() * 4));
+            this.size = size;
+            this.length = (target + 63) & ~63;
+            this.count = (int) (((long) size + length - 1) / length);
+        }
+
+        int start(int chunk) {
+            return chunk * length;
+        }
+
+        int end(int chunk) {
+            return (int) Math.min(size, (long) (chunk + 1) * length);
+        }
+    }
+
+    // runs chunk(0) ... chunk(count - 1) on the pool and waits for all of them
+    private static void each(int count, IntConsumer chunk) {
+        if (count > 0) ForkJoinPool.commonPool().invoke(new Split(0, count, chunk));
+    }
+
+    // a task of the pool, never serialized
+    @SuppressWarnings("serial")
+    private static final class Split extends RecursiveAction {
+        private final int low;
+        private final int high;
+        private final IntConsumer chunk;
+
+        Split(int low, int high, IntConsumer chunk) {
+            this.low = low;
+            this.high = high;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (high - low == 1) {
+                chunk.accept(low);
+                return;
+            }
+            int middle = (low + high) >>> 1;
+            invokeAll(new Split(low, middle, chunk), new Split(middle, high, chunk));
+        }
+    }
+    //#endregion
+}
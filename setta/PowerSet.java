@@ -0,0 +1,87 @@
+package setta;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// powerset(S), without building its 2^|S| subsets. Its size is a power of
+// two, membership is a subset test against S, and iterating it counts a
+// bitmask up from 0, building each subset only when it is asked for. So
+// { T | T in powerset(S), |T| == k } only ever holds the subsets it keeps.
+final class PowerSet extends AbstractSet<Object> {
+    // the most elements whose subsets can still be enumerated with a long mask
+    static final int MAX_ENUMERABLE = 62;
+
+    // a private copy, so later in-place updates of S can't reach it
+    private final Object[] elements;
+    private final Set<Object> members;
+
+    PowerSet(Set<?> base) {
+        SetBuilder copy = new SetBuilder(base.size());
+        copy.addAll(base);
+        members = copy.build();
+        elements = members.toArray();
+    }
+
+    // 2^n as a Setta number; doubles take over past the long range
+    Object cardinality() {
+        if (elements.length < 63) return SettaNumber.of(1L << elements.length);
+        return SettaNumber.of(Math.pow(2, elements.length));
+    }
+
+    @Override
+    public int size() {
+        return elements.length < 31 ? 1 << elements.length : Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof Set<?>)) return false;
+        Set<?> candidate = (Set<?>) o;
+        return candidate.size() <= elements.length && SetOps.subseteq(candidate, members);
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        if (elements.length > MAX_ENUMERABLE) {
+            throw new RuntimeError(null, "Power set of " + elements.length
+                + " elements is too large to enumerate.");
+        }
+        long end = 1L << elements.length;
+        return new Iterator<Object>() {
+            private long mask = 0;
+
+            @Override
+            public boolean hasNext() {
+                return mask < end;
+            }
+
+            @Override
+            public Object next() {
+                if (mask >= end) throw new NoSuchElementException();
+                SetBuilder subset = new SetBuilder(Long.bitCount(mask));
+                for (long bits = mask; bits != 0; bits &= bits - 1) {
+                    subset.add(elements[Long.numberOfTrailingZeros(bits)]);
+                }
+                mask++;
+                return subset.build();
+            }
+        };
+    }
+
+    // Every element of S is in half of the subsets, so the sum of the
+    // subsets' hashes is 2^(n-1) times the sum of S's (mod 2^32).
+    @Override
+    public int hashCode() {
+        if (elements.length == 0) return 0;
+        if (elements.length > 32) return 0;
+        return members.hashCode() << (elements.length - 1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof PowerSet) return members.equals(((PowerSet) o).members);
+        return super.equals(o);
+    }
+}
@@ -0,0 +1,386 @@
+package setta;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static setta.SettaTokenType.*;
+
+// Opt-in (-Dsetta.reactive=true) upkeep of let bindings. Every let records
+// the variables its expression reads; when one of those is assigned, or
+// defined again with let, every binding that depends on it, directly or
+// through other bindings, is brought up to date straight away, in the order
+// the bindings were made.
+//
+// Most bindings are simply evaluated again. A binding that is a union,
+// intersect or "-" of variables, or a filter { x | x in V, conditions },
+// is updated from what its inputs gained and lost instead: only those
+// elements are checked, and the set is changed in place when nothing else
+// holds it. An assignment S = S union R or S = S - R starts such a chain
+// from R alone; any other assignment is compared with the old value.
+// Elements an update adds come after the ones that were already there.
+//
+// Only the variables written in a let's own expression are followed, not
+// the ones used inside the functions it calls. Assigning to a binding ends
+// it: from then on it is an ordinary variable.
+final class Reactive {
+    static final boolean ENABLED = Boolean.getBoolean("setta.reactive");
+
+    private final Interpreter interpreter;
+    private final Environment environment;
+    private final Map<String, Binding> bindings = new HashMap<>();
+    // variable -> the bindings whose expressions read it
+    private final Map<String, List<Binding>> readers = new HashMap<>();
+    private long made = 0;
+
+    Reactive(Interpreter interpreter, Environment environment) {
+        this.interpreter = interpreter;
+        this.environment = environment;
+    }
+
+    //#region Bindings
+    private static final class Binding {
+        final SettaToken name;
+        final Expr expr;
+        final long order;
+        final Set<String> reads = new HashSet<>();
+        // UNION, INTERSECT or MINUS over operands, IN for a filter over
+        // filter's domain, or null when the binding is evaluated again
+        SettaTokenType op;
+        final List<Expr.Variable> operands = new ArrayList<>();
+        Expr.Comprehension filter;
+
+        Binding(SettaToken name, Expr expr, long order) {
+            this.name = name;
+            this.expr = expr;
+            this.order = order;
+            Set<String> bound = new HashSet<>();
+            Subexpressions.forEach(expr, part -> {
+                if (part instanceof Expr.Variable) {
+                    reads.add(((Expr.Variable) part).name.lexeme);
+                } else if (part instanceof Expr.Comprehension) {
+                    for (SettaToken variable : ((Expr.Comprehension) part).variables) {
+                        bound.add(variable.lexeme);
+                    }
+                }
+            });
+            reads.removeAll(bound);
+            // let S = S union ... reads the old S, which never changes again
+            reads.remove(name.lexeme);
+            classify(unwrap(expr));
+        }
+
+        private void classify(Expr expr) {
+            if (expr instanceof Expr.Comprehension) {
+                Expr.Comprehension comprehension = (Expr.Comprehension) expr;
+                Expr domain = unwrap(comprehension.domains.get(0));
+                if (comprehension.variables.size() == 1 && isVariable(comprehension.expr, comprehension.variables.get(0))
+                        && domain instanceof Expr.Variable && reads.contains(((Expr.Variable) domain).name.lexeme)) {
+                    op = IN;
+                    filter = comprehension;
+                    operands.add((Expr.Variable) domain);
+                }
+                return;
+            }
+            // A op B op C ..., nested to the left by the parser
+            Deque<Expr.Variable> chain = new ArrayDeque<>();
+            SettaTokenType type = null;
+            while (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary) expr;
+                SettaTokenType next = binary.operator.type;
+                Expr right = unwrap(binary.right);
+                if ((next != UNION && next != INTERSECT && next != MINUS) || (type != null && next != type)
+                        || !(right instanceof Expr.Variable)) return;
+                type = next;
+                chain.push((Expr.Variable) right);
+                expr = unwrap(binary.left);
+            }
+            if (type == null || !(expr instanceof Expr.Variable)) return;
+            chain.push((Expr.Variable) expr);
+            for (Expr.Variable operand : chain) {
+                if (!reads.contains(operand.name.lexeme)) return;
+            }
+            op = type;
+            operands.addAll(chain);
+        }
+
+        private static boolean isVariable(Expr expr, SettaToken variable) {
+            expr = unwrap(expr);
+            return expr instanceof Expr.Variable && ((Expr.Variable) expr).name.lexeme.equals(variable.lexeme);
+        }
+
+        private boolean isOperand(String name) {
+            for (Expr.Variable operand : operands) {
+                if (operand.name.lexeme.equals(name)) return true;
+            }
+            return false;
+        }
+    }
+
+    private static Expr unwrap(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping) expr).expression;
+        }
+        return expr;
+    }
+
+    // let name = value, where value came from stmt's expression
+    void define(Stmt.Let stmt, Object value) {
+        String name = stmt.name.lexeme;
+        boolean read = readers.containsKey(name);
+        Object old = read ? environment.get(stmt.name) : null;
+        forget(name);
+        environment.define(name, value);
+        Binding binding = new Binding(stmt.name, stmt.value, ++made);
+        if (!binding.reads.isEmpty()) {
+            bindings.put(name, binding);
+            for (String input : binding.reads) {
+                readers.computeIfAbsent(input, key -> new ArrayList<>()).add(binding);
+            }
+        }
+        if (read) interpreter.atTopLevel(() -> propagate(name, new Change(old, value, null)));
+    }
+
+    private void forget(String name) {
+        Binding binding = bindings.remove(name);
+        if (binding == null) return;
+        for (String input : binding.reads) {
+            List<Binding> list = readers.get(input);
+            list.remove(binding);
+            if (list.isEmpty()) readers.remove(input);
+        }
+    }
+
+    // assignments to this variable have to go through assign()
+    boolean watches(String name) {
+        return bindings.containsKey(name) || readers.containsKey(name);
+    }
+    //#endregion
+
+    //#region Assignment
+    // name = expr.value, for a variable watches() is true of
+    Object assign(Expr.Assign expr) {
+        String name = expr.name.lexeme;
+        forget(name);
+        Object old = environment.get(expr.name);
+        Object value;
+        Delta delta = null;
+        Expr right = selfUpdate(expr);
+        if (right != null && old instanceof Set<?>) {
+            Object other = interpreter.evaluate(right);
+            if (!(other instanceof Set<?>)) throw new RuntimeError(null, "Operands must be sets.");
+            delta = ((Expr.Binary) unwrap(expr.value)).operator.type == UNION
+                ? new Delta(missing((Set<?>) other, (Set<?>) old), Set.of())
+                : new Delta(Set.of(), common((Set<?>) other, (Set<?>) old));
+            value = apply((Set<?>) old, delta);
+        } else {
+            value = interpreter.evaluate(expr.value);
+        }
+        environment.assign(expr.name, value);
+        if (readers.containsKey(name)) {
+            Change change = new Change(old, value, delta);
+            interpreter.atTopLevel(() -> propagate(name, change));
+        }
+        return value;
+    }
+
+    // R in name = name union R or name = name - R
+    private static Expr selfUpdate(Expr.Assign expr) {
+        Expr value = unwrap(expr.value);
+        if (!(value instanceof Expr.Binary)) return null;
+        Expr.Binary binary = (Expr.Binary) value;
+        if (binary.operator.type != UNION && binary.operator.type != MINUS) return null;
+        Expr left = unwrap(binary.left);
+        if (!(left instanceof Expr.Variable) || !((Expr.Variable) left).name.lexeme.equals(expr.name.lexeme)) return null;
+        return binary.right;
+    }
+
+    // elements of from that aren't in set
+    private static Set<?> missing(Set<?> from, Set<?> set) {
+        SetBuilder result = new SetBuilder();
+        for (Object element : from) {
+            if (!set.contains(element)) result.add(element);
+        }
+        return result.build();
+    }
+
+    // elements of from that are in set
+    private static Set<?> common(Set<?> from, Set<?> set) {
+        SetBuilder result = new SetBuilder();
+        for (Object element : from) {
+            if (set.contains(element)) result.add(element);
+        }
+        return result.build();
+    }
+    //#endregion
+
+    //#region Propagation
+    // what a set gained and lost
+    private static final class Delta {
+        final Set<?> added;
+        final Set<?> removed;
+
+        Delta(Set<?> added, Set<?> removed) {
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+
+    // a variable's value before and after; the delta is worked out from them
+    // only if a binding that reads the variable wants it
+    private static final class Change {
+        final Object old;
+        final Object value;
+        private Delta delta;
+
+        Change(Object old, Object value, Delta delta) {
+            this.old = old;
+            this.value = value;
+            this.delta = delta;
+        }
+
+        Delta delta() {
+            if (delta == null && old instanceof Set<?> && value instanceof Set<?> && old != value) {
+                Set<?> before = (Set<?>) old;
+                Set<?> after = (Set<?>) value;
+                delta = new Delta(SetOps.difference(after, before), SetOps.difference(before, after));
+            }
+            return delta;
+        }
+    }
+
+    private void propagate(String name, Change change) {
+        // every binding that depends on name, in the order they were made
+        TreeMap<Long, Binding> affected = new TreeMap<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(name);
+        while (!pending.isEmpty()) {
+            List<Binding> list = readers.get(pending.pop());
+            if (list == null) continue;
+            for (Binding binding : list) {
+                if (!binding.name.lexeme.equals(name) && affected.put(binding.order, binding) == null) {
+                    pending.push(binding.name.lexeme);
+                }
+            }
+        }
+
+        Map<String, Change> changes = new HashMap<>();
+        changes.put(name, change);
+        for (Binding binding : affected.values()) {
+            changes.put(binding.name.lexeme, update(binding, changes));
+        }
+    }
+
+    private Change update(Binding binding, Map<String, Change> changes) {
+        Object current = environment.get(binding.name);
+        List<Delta> deltas = deltas(binding, changes, current);
+        Object value;
+        Delta delta = null;
+        if (deltas != null) {
+            delta = changed(binding, (Set<?>) current, deltas);
+            value = apply((Set<?>) current, delta);
+        } else {
+            value = interpreter.evaluate(binding.expr);
+        }
+        environment.define(binding.name.lexeme, value);
+        return new Change(current, value, delta);
+    }
+
+    // the deltas of the binding's changed inputs, or null if it has to be
+    // evaluated again
+    private List<Delta> deltas(Binding binding, Map<String, Change> changes, Object current) {
+        if (binding.op == null || !(current instanceof Set<?>)) return null;
+        for (Expr.Variable operand : binding.operands) {
+            if (!(environment.get(operand.name) instanceof Set<?>)) return null;
+        }
+        List<Delta> deltas = new ArrayList<>();
+        for (String input : binding.reads) {
+            Change change = changes.get(input);
+            if (change == null) continue;
+            Delta delta = binding.isOperand(input) ? change.delta() : null;
+            if (delta == null) return null;
+            deltas.add(delta);
+        }
+        return deltas;
+    }
+
+    // the binding's own delta: only elements its inputs gained or lost can
+    // have moved in or out of it
+    private Delta changed(Binding binding, Set<?> current, List<Delta> deltas) {
+        List<Set<?>> operands = new ArrayList<>();
+        for (Expr.Variable operand : binding.operands) {
+            operands.add((Set<?>) environment.get(operand.name));
+        }
+        SetBuilder added = new SetBuilder();
+        SetBuilder removed = new SetBuilder();
+        for (Delta delta : deltas) {
+            for (Set<?> elements : List.of(delta.added, delta.removed)) {
+                for (Object element : elements) {
+                    boolean was = current.contains(element);
+                    boolean is = contains(binding, operands, element);
+                    if (is && !was) {
+                        added.add(element);
+                    } else if (was && !is) {
+                        removed.add(element);
+                    }
+                }
+            }
+        }
+        return new Delta(added.build(), removed.build());
+    }
+
+    // element is in the binding's new value
+    private boolean contains(Binding binding, List<Set<?>> operands, Object element) {
+        switch (binding.op) {
+            case UNION:
+                for (Set<?> operand : operands) {
+                    if (operand.contains(element)) return true;
+                }
+                return false;
+            case INTERSECT:
+                for (Set<?> operand : operands) {
+                    if (!operand.contains(element)) return false;
+                }
+                return true;
+            case MINUS:
+                if (!operands.get(0).contains(element)) return false;
+                for (Set<?> operand : operands.subList(1, operands.size())) {
+                    if (operand.contains(element)) return false;
+                }
+                return true;
+            default:
+                if (!operands.get(0).contains(element)) return false;
+                interpreter.bind(binding.filter.variables.get(0).lexeme, element);
+                for (Expr condition : binding.filter.conditions) {
+                    if (!interpreter.isTrue(interpreter.evaluate(condition))) return false;
+                }
+                return true;
+        }
+    }
+
+    // value with the delta applied, changed in place if nothing else holds it
+    private static Set<?> apply(Set<?> value, Delta delta) {
+        Set<?> result = value;
+        if (!delta.removed.isEmpty()) {
+            result = writable(result) && SetOps.differenceInPlace((SettaSet) result, delta.removed)
+                ? result : SetOps.difference(result, delta.removed);
+        }
+        if (!delta.added.isEmpty()) {
+            result = writable(result) && SetOps.unionInPlace((SettaSet) result, delta.added)
+                ? result : SetOps.union(result, delta.added);
+        }
+        return result;
+    }
+
+    // held by at most the one variable being updated
+    private static boolean writable(Set<?> set) {
+        return set instanceof SettaSet && (((SettaSet) set).isTemporary() || ((SettaSet) set).isUniquelyBound());
+    }
+    //#endregion
+}
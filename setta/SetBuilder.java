@@ -0,0 +1,61 @@
+package setta;
+
+import java.util.Set;
+
+// Collects elements into the most compact representation that fits: a
+// LongSet while every element is a whole number, an ObjectSet as soon as
+// anything else shows up. Insertion order is kept either way. Whole numbers
+// past the memory budget go to disk instead (see Spill).
+final class SetBuilder {
+    // elements between reports to the run's Governor
+    private static final int REPORT_EVERY = 4096;
+
+    private LongSet longs;
+    private SpilledSet.Builder spilled;
+    private ObjectSet objects;
+    private int unreported = 0;
+
+    SetBuilder() {
+        longs = new LongSet();
+    }
+
+    SetBuilder(int capacity) {
+        longs = new LongSet(Math.min(capacity, Spill.LIMIT));
+    }
+
+    void add(Object value) {
+        if (++unreported == REPORT_EVERY) {
+            // a spilled builder can't tell its size before it removes repeats
+            Governor.added(unreported, spilled != null ? 0 : objects != null ? objects.size() : longs.size());
+            unreported = 0;
+        }
+        if (objects == null) {
+            if (value instanceof Long) {
+                if (spilled != null) {
+                    spilled.add((Long) value);
+                } else if (longs.addLong((Long) value) && longs.size() > Spill.LIMIT) {
+                    spilled = new SpilledSet.Builder(longs, false);
+                    longs = null;
+                }
+                return;
+            }
+            objects = new ObjectSet(spilled != null ? spilled.build() : longs);
+            longs = null;
+            spilled = null;
+        }
+        objects.add(value);
+    }
+
+    void addAll(Iterable<?> values) {
+        for (Object value : values) {
+            add(value);
+        }
+    }
+
+    Set<Object> build() {
+        Set<Object> result = objects != null ? objects : spilled != null ? spilled.build() : longs;
+        Governor.added(unreported, result.size());
+        unreported = 0;
+        return result;
+    }
+}
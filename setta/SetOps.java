@@ -0,0 +1,415 @@
+package setta;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+// The set operators behind Interpreter's union, intersect, subseteq, "-" and
+// symdiff. Results always keep the left operand's order (followed by
+// whatever the right operand adds), whichever representation the operands
+// use. Two LongSets get primitive paths that pick an algorithm by size and
+// shape: two ascending sets of similar size are merged in one linear pass,
+// otherwise the smaller side is probed against the bigger one. Sets of whole
+// numbers that are, or would be, past the memory budget are merged on disk
+// instead (see Spill), and LongSets with millions of elements are split
+// over several cores (see ParallelOps).
+final class SetOps {
+    // merging only pays off when neither side is much bigger than the other
+    private static final int MERGE_RATIO = 8;
+
+    private SetOps() {
+    }
+
+    // probing b for each of a's values in parallel beats the serial paths
+    // unless b is so much smaller that finding b's values in a is cheaper
+    private static boolean splits(LongSet a, LongSet b) {
+        return ParallelOps.pays(a.size()) && (long) b.size() * MERGE_RATIO >= a.size();
+    }
+
+    private static boolean mergeable(LongSet a, LongSet b) {
+        return a.isAscending() && b.isAscending()
+            && a.size() <= (long) b.size() * MERGE_RATIO
+            && b.size() <= (long) a.size() * MERGE_RATIO;
+    }
+
+    //#region UNION / INTERSECTION / SUBSET
+    static Set<Object> union(Set<?> left, Set<?> right) {
+        if (Spill.applies(left, right, (long) left.size() + right.size())) return counted(Spill.union(left, right));
+        if (left instanceof LongSet && right instanceof LongSet) {
+            if (ParallelOps.pays((long) left.size() + right.size())) {
+                return counted(ParallelOps.union((LongSet) left, (LongSet) right));
+            }
+            LongSet result = ((LongSet) left).copy();
+            LongSet b = (LongSet) right;
+            for (int i = 0; i < b.size(); i++) {
+                result.addLong(b.longAt(i));
+            }
+            return counted(result);
+        }
+        SetBuilder result = new SetBuilder(left.size() + right.size());
+        result.addAll(left);
+        result.addAll(right);
+        return result.build();
+    }
+
+    static Set<Object> intersect(Set<?> left, Set<?> right) {
+        if (Spill.applies(left, right, 0)) return counted(Spill.intersect(left, right));
+        if (left instanceof LongSet && right instanceof LongSet) {
+            LongSet a = (LongSet) left;
+            LongSet b = (LongSet) right;
+            if (splits(a, b)) return counted(ParallelOps.intersect(a, b));
+            if (mergeable(a, b)) return counted(mergeIntersect(a, b));
+            if (b.size() < a.size()) return counted(a.select(positionsOf(a, b), true));
+            LongSet result = new LongSet();
+            for (int i = 0; i < a.size(); i++) {
+                long value = a.longAt(i);
+                if (b.containsLong(value)) result.addUnique(value);
+            }
+            return counted(result);
+        }
+        SetBuilder result = new SetBuilder();
+        for (Object element : left) {
+            if (right.contains(element)) result.add(element);
+        }
+        return result.build();
+    }
+
+    // sets[0] union sets[1] union ... in one pass, in the same order the
+    // pairwise unions would give
+    static Set<Object> unionAll(List<Set<?>> sets) {
+        boolean longs = true;
+        boolean numeric = true;
+        long total = 0;
+        for (Set<?> set : sets) {
+            longs &= set instanceof LongSet;
+            numeric &= Spill.isNumeric(set);
+            total += set.size();
+        }
+        if (numeric && (!longs || total > Spill.LIMIT || ParallelOps.pays(total))) return fold(sets, true);
+        if (longs) {
+            LongSet result = ((LongSet) sets.get(0)).copy();
+            for (int s = 1; s < sets.size(); s++) {
+                LongSet b = (LongSet) sets.get(s);
+                for (int i = 0; i < b.size(); i++) {
+                    result.addLong(b.longAt(i));
+                }
+            }
+            return counted(result);
+        }
+        SetBuilder result = new SetBuilder(sets.get(0).size());
+        for (Set<?> set : sets) {
+            result.addAll(set);
+        }
+        return result.build();
+    }
+
+    // sets[0] intersect sets[1] intersect ... in sets[0]'s order. Each element
+    // is checked against the smallest of the other sets first, so most
+    // rejections take one lookup.
+    static Set<Object> intersectAll(List<Set<?>> sets) {
+        Set<?> first = sets.get(0);
+        List<Set<?>> others = new ArrayList<>(sets.subList(1, sets.size()));
+        others.sort(Comparator.comparingInt(Set::size));
+        boolean longs = first instanceof LongSet;
+        boolean numeric = Spill.isNumeric(first);
+        for (Set<?> set : others) {
+            longs &= set instanceof LongSet;
+            numeric &= Spill.isNumeric(set);
+        }
+        if (numeric && (!longs || ParallelOps.pays(first.size()))) return fold(sets, false);
+
+        if (longs) {
+            LongSet a = (LongSet) first;
+            LongSet smallest = (LongSet) others.get(0);
+            // few candidates: start from the smallest set and keep first's order
+            if (smallest.size() < a.size()) {
+                int[] positions = positionsOf(a, smallest);
+                int kept = 0;
+                for (int position : positions) {
+                    if (inAll(others, a.longAt(position))) positions[kept++] = position;
+                }
+                return counted(a.select(Arrays.copyOf(positions, kept), true));
+            }
+            LongSet result = new LongSet();
+            for (int i = 0; i < a.size(); i++) {
+                long value = a.longAt(i);
+                if (inAll(others, value)) result.addUnique(value);
+            }
+            return counted(result);
+        }
+
+        SetBuilder result = new SetBuilder();
+        for (Object element : first) {
+            boolean everywhere = true;
+            for (Set<?> set : others) {
+                if (!set.contains(element)) {
+                    everywhere = false;
+                    break;
+                }
+            }
+            if (everywhere) result.add(element);
+        }
+        return result.build();
+    }
+
+    // the pairwise unions or intersections, left to right, each intermediate
+    // result freed as soon as the next one is built
+    private static Set<Object> fold(List<Set<?>> sets, boolean union) {
+        Set<?> result = sets.get(0);
+        for (int s = 1; s < sets.size(); s++) {
+            Set<Object> next = union ? union(result, sets.get(s)) : intersect(result, sets.get(s));
+            if (s > 1 && result instanceof SpilledSet && result != next) ((SpilledSet) result).free();
+            result = next;
+        }
+        @SuppressWarnings("unchecked")
+        Set<Object> folded = (Set<Object>) result;
+        return folded;
+    }
+
+    private static boolean inAll(List<Set<?>> sets, long value) {
+        for (Set<?> set : sets) {
+            if (!((LongSet) set).containsLong(value)) return false;
+        }
+        return true;
+    }
+
+    static long intersectionSize(Set<?> left, Set<?> right) {
+        if (Spill.applies(left, right, 0)) return Spill.intersectionSize(left, right);
+        if (left instanceof LongSet && right instanceof LongSet && ParallelOps.pays(Math.min(left.size(), right.size()))) {
+            return ParallelOps.intersectionSize((LongSet) left, (LongSet) right);
+        }
+        if (left instanceof LongSet && right instanceof LongSet
+                && mergeable((LongSet) left, (LongSet) right)) {
+            return mergeCount((LongSet) left, (LongSet) right);
+        }
+        Set<?> small = left.size() <= right.size() ? left : right;
+        Set<?> big = small == left ? right : left;
+        long count = 0;
+        for (Object element : small) {
+            if (big.contains(element)) count++;
+        }
+        return count;
+    }
+
+    static boolean subseteq(Set<?> left, Set<?> right) {
+        if (left.size() > right.size()) return false;
+        if (Spill.applies(left, right, 0)) return Spill.subseteq(left, right);
+        if (left instanceof LongSet && right instanceof LongSet) {
+            LongSet a = (LongSet) left;
+            LongSet b = (LongSet) right;
+            if (ParallelOps.pays(a.size())) return ParallelOps.containsAll(b, a);
+            for (int i = 0; i < a.size(); i++) {
+                if (!b.containsLong(a.longAt(i))) return false;
+            }
+            return true;
+        }
+        return right.containsAll(left);
+    }
+    //#endregion
+
+    //#region DIFFERENCE
+    static Set<Object> difference(Set<?> left, Set<?> right) {
+        if (Spill.applies(left, right, 0)) return counted(Spill.difference(left, right));
+        if (left instanceof LongSet && right instanceof LongSet) {
+            LongSet a = (LongSet) left;
+            LongSet b = (LongSet) right;
+            if (splits(a, b)) return counted(ParallelOps.difference(a, b));
+            if (mergeable(a, b)) return counted(mergeDifference(a, b));
+            // few values to take out: find them in left instead of probing right |left| times
+            if (b.size() < a.size()) return counted(a.select(positionsOf(a, b), false));
+            LongSet result = new LongSet();
+            for (int i = 0; i < a.size(); i++) {
+                long value = a.longAt(i);
+                if (!b.containsLong(value)) result.addUnique(value);
+            }
+            return counted(result);
+        }
+        SetBuilder result = new SetBuilder();
+        for (Object element : left) {
+            if (!right.contains(element)) result.add(element);
+        }
+        return result.build();
+    }
+
+    static long differenceSize(Set<?> left, Set<?> right) {
+        return left.size() - intersectionSize(left, right);
+    }
+
+    // left's elements that aren't in right, then right's that aren't in left
+    static Set<Object> symmetricDifference(Set<?> left, Set<?> right) {
+        Set<Object> first = difference(left, right);
+        Set<Object> second = difference(right, left);
+        if (Spill.applies(first, second, (long) first.size() + second.size())) return counted(Spill.union(first, second));
+        if (first instanceof LongSet && second instanceof LongSet) {
+            if (ParallelOps.pays((long) first.size() + second.size())) {
+                return counted(ParallelOps.concat((LongSet) first, (LongSet) second));
+            }
+            LongSet result = ((LongSet) first).copy();
+            LongSet extra = (LongSet) second;
+            for (int i = 0; i < extra.size(); i++) {
+                result.addUnique(extra.longAt(i));
+            }
+            return counted(result);
+        }
+        SetBuilder result = new SetBuilder(first.size() + second.size());
+        result.addAll(first);
+        result.addAll(second);
+        return result.build();
+    }
+
+    static long symmetricDifferenceSize(Set<?> left, Set<?> right) {
+        return left.size() + right.size() - 2 * intersectionSize(left, right);
+    }
+    //#endregion
+
+    //#region IN PLACE
+    // Only for sets nobody else can see: a temporary, or the old value of an
+    // assignment that overwrites its only binding. Each returns false, leaving
+    // target untouched, when target's representation can't hold the result;
+    // the caller then builds a new set as usual. Spilled sets are never
+    // changed, and neither is a LongSet that would pass the memory budget.
+    static boolean unionInPlace(SettaSet target, Set<?> other) {
+        if (target == other || spills(target, other, (long) target.size() + other.size())) return false;
+        if (target instanceof LongSet) {
+            LongSet a = (LongSet) target;
+            if (other instanceof LongSet) {
+                LongSet b = (LongSet) other;
+                for (int i = 0; i < b.size(); i++) {
+                    a.addLong(b.longAt(i));
+                }
+                Governor.added(b.size(), a.size());
+                return true;
+            }
+            for (Object element : other) {
+                if (!(element instanceof Long)) return false;
+            }
+            for (Object element : other) {
+                a.addLong((Long) element);
+            }
+            Governor.added(other.size(), a.size());
+            return true;
+        }
+        target.addAll(other);
+        Governor.added(other.size(), target.size());
+        return true;
+    }
+
+    static boolean intersectInPlace(SettaSet target, Set<?> other) {
+        if (target == other || spills(target, other, 0)) return false;
+        if (target instanceof LongSet) {
+            LongSet a = (LongSet) target;
+            if (other instanceof LongSet) {
+                a.retainIf(((LongSet) other)::containsLong);
+            } else {
+                a.retainIf(value -> other.contains(SettaNumber.of(value)));
+            }
+            return true;
+        }
+        target.retainAll(other);
+        return true;
+    }
+
+    static boolean differenceInPlace(SettaSet target, Set<?> other) {
+        if (target == other || spills(target, other, 0)) return false;
+        if (target instanceof LongSet) {
+            LongSet a = (LongSet) target;
+            if (other instanceof LongSet) {
+                LongSet b = (LongSet) other;
+                a.retainIf(value -> !b.containsLong(value));
+            } else {
+                a.retainIf(value -> !other.contains(SettaNumber.of(value)));
+            }
+            return true;
+        }
+        target.removeAll(other);
+        return true;
+    }
+
+    private static boolean spills(SettaSet target, Set<?> other, long resultSize) {
+        return target instanceof SpilledSet || other instanceof SpilledSet
+            || target instanceof LongSet && resultSize > Spill.LIMIT;
+    }
+    //#endregion
+
+    //#region LONGSET HELPERS
+    // sets built without a SetBuilder report to the run's Governor here
+    private static Set<Object> counted(Set<Object> set) {
+        Governor.added(set.size(), set.size());
+        return set;
+    }
+
+    // sorted positions in a of the values of b that a contains
+    private static int[] positionsOf(LongSet a, LongSet b) {
+        int[] positions = new int[b.size()];
+        int count = 0;
+        for (int i = 0; i < b.size(); i++) {
+            int position = a.indexOf(b.longAt(i));
+            if (position >= 0) positions[count++] = position;
+        }
+        positions = Arrays.copyOf(positions, count);
+        Arrays.sort(positions);
+        return positions;
+    }
+
+    private static LongSet mergeIntersect(LongSet a, LongSet b) {
+        LongSet result = new LongSet();
+        int i = 0;
+        int j = 0;
+        while (i < a.size() && j < b.size()) {
+            long x = a.longAt(i);
+            long y = b.longAt(j);
+            if (x < y) {
+                i++;
+            } else if (x > y) {
+                j++;
+            } else {
+                result.addUnique(x);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    private static long mergeCount(LongSet a, LongSet b) {
+        long count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.size() && j < b.size()) {
+            long x = a.longAt(i);
+            long y = b.longAt(j);
+            if (x < y) {
+                i++;
+            } else if (x > y) {
+                j++;
+            } else {
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    private static LongSet mergeDifference(LongSet a, LongSet b) {
+        LongSet result = new LongSet(a.size());
+        int i = 0;
+        int j = 0;
+        while (i < a.size()) {
+            long x = a.longAt(i);
+            if (j == b.size() || x < b.longAt(j)) {
+                result.addUnique(x);
+                i++;
+            } else if (x == b.longAt(j)) {
+                i++;
+                j++;
+            } else {
+                j++;
+            }
+        }
+        return result;
+    }
+    //#endregion
+}
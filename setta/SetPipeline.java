@@ -0,0 +1,396 @@
+package setta;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+// A set that hasn't been built yet. Comprehensions evaluate to one of these,
+// so chained stages (a comprehension over a comprehension, a filter followed
+// by intersect, |...|, membership) run as one pass over the original elements
+// instead of building a new set at every step.
+//
+// A pipeline never escapes the expression that made it: Interpreter.evaluate
+// builds the real set wherever the value is bound, printed, passed to a
+// function, put inside another set or used by an operator that doesn't know
+// about pipelines.
+abstract class SetPipeline {
+    // unions only fuse when the materialized side is at most this big,
+    // since every element of it that the other side also produces is remembered
+    static final int SMALL_UNION = 1024;
+    // longest chain of stages an expression fuses before building the set
+    static final int MAX_STAGES = 64;
+
+    // Pushes elements to sink, in the order the built set would hold them,
+    // until sink returns false. Returns false if it was stopped early.
+    abstract boolean forEach(Predicate<Object> sink);
+
+    // true when no element is pushed twice, so counting needs no dedup
+    abstract boolean isDistinct();
+
+    Set<Object> materialize() {
+        SetBuilder result = new SetBuilder();
+        forEach(element -> {
+            result.add(element);
+            return true;
+        });
+        return result.build();
+    }
+
+    long count() {
+        if (!isDistinct()) {
+            // compact, and spilled past the memory budget like any set
+            SetBuilder seen = new SetBuilder();
+            forEach(element -> {
+                seen.add(element);
+                return true;
+            });
+            return seen.build().size();
+        }
+        long[] count = {0};
+        forEach(element -> {
+            count[0]++;
+            return true;
+        });
+        return count[0];
+    }
+
+    boolean contains(Object value) {
+        return !forEach(element -> !Objects.equals(element, value));
+    }
+
+    static boolean forEachOf(Object source, Predicate<Object> sink) {
+        if (source instanceof SetPipeline) {
+            return ((SetPipeline) source).forEach(sink);
+        }
+        for (Object element : (Set<?>) source) {
+            if (!sink.test(element)) return false;
+        }
+        return true;
+    }
+
+    static boolean containsOf(Object source, Object value) {
+        if (source instanceof SetPipeline) {
+            return ((SetPipeline) source).contains(value);
+        }
+        return ((Set<?>) source).contains(value);
+    }
+
+    static Set<?> builtOf(Object source) {
+        return source instanceof SetPipeline ? ((SetPipeline) source).materialize() : (Set<?>) source;
+    }
+
+    // { expr | variable in domain, condition, ... }
+    static class Comprehension extends SetPipeline {
+        private final Interpreter interpreter;
+        private final Expr.Comprehension expr;
+        private final Object domain;
+        // the body is just the loop variable, so this stage only filters
+        private final boolean filterOnly;
+
+        Comprehension(Interpreter interpreter, Expr.Comprehension expr, Object domain) {
+            this.interpreter = interpreter;
+            this.expr = expr;
+            this.domain = domain;
+            this.filterOnly = expr.expr instanceof Expr.Variable
+                && ((Expr.Variable) expr.expr).name.lexeme.equals(expr.variables.get(0).lexeme);
+        }
+
+        // non-null when the whole stage is primitive arithmetic over a LongSet
+        private NumericKernel kernel() {
+            return domain instanceof LongSet ? NumericKernel.compile(expr, (LongSet) domain) : null;
+        }
+
+        @Override
+        Set<Object> materialize() {
+            NumericKernel kernel = kernel();
+            if (kernel == null) return super.materialize();
+            Governor.stepped(((LongSet) domain).size());
+            Set<Object> result = kernel.materialize();
+            Governor.added(result.size(), result.size());
+            bindLast();
+            return result;
+        }
+
+        @Override
+        long count() {
+            NumericKernel kernel = kernel();
+            if (kernel == null) return super.count();
+            Governor.stepped(((LongSet) domain).size());
+            long count = kernel.isFilter() ? kernel.count() : kernel.materialize().size();
+            bindLast();
+            return count;
+        }
+
+        // the variable ends up bound as it would after the interpreted loop
+        private void bindLast() {
+            LongSet values = (LongSet) domain;
+            interpreter.bind(expr.variables.get(0).lexeme, SettaNumber.of(values.longAt(values.size() - 1)));
+        }
+
+        @Override
+        boolean forEach(Predicate<Object> sink) {
+            return forEachOf(domain, item -> {
+                if (!accepts(item)) return true;
+                Object value = filterOnly ? item : interpreter.evaluate(expr.expr);
+                return sink.test(value);
+            });
+        }
+
+        private boolean accepts(Object item) {
+            interpreter.bind(expr.variables.get(0).lexeme, item);
+            for (Expr condition : expr.conditions) {
+                if (!interpreter.isTrue(interpreter.evaluate(condition))) return false;
+            }
+            return true;
+        }
+
+        @Override
+        boolean isDistinct() {
+            return filterOnly && (!(domain instanceof SetPipeline) || ((SetPipeline) domain).isDistinct());
+        }
+
+        @Override
+        boolean contains(Object value) {
+            if (filterOnly) return containsOf(domain, value) && accepts(value);
+            return super.contains(value);
+        }
+    }
+
+    // A comprehension compiled to Java (see SettaRuntime): the same stage as
+    // Comprehension, with accepts binding the variable and checking the
+    // conditions, and body computing the element (null when it is the
+    // variable itself).
+    static class Compiled extends SetPipeline {
+        private final Object domain;
+        private final Predicate<Object> accepts;
+        private final Supplier<Object> body;
+
+        Compiled(Object domain, Predicate<Object> accepts, Supplier<Object> body) {
+            this.domain = domain;
+            this.accepts = accepts;
+            this.body = body;
+        }
+
+        @Override
+        boolean forEach(Predicate<Object> sink) {
+            return forEachOf(domain, item -> {
+                if (!accepts.test(item)) return true;
+                return sink.test(body == null ? item : body.get());
+            });
+        }
+
+        @Override
+        boolean isDistinct() {
+            return body == null && (!(domain instanceof SetPipeline) || ((SetPipeline) domain).isDistinct());
+        }
+
+        @Override
+        boolean contains(Object value) {
+            if (body == null) return containsOf(domain, value) && accepts.test(value);
+            return super.contains(value);
+        }
+    }
+
+    // { expr | x in A, y in B, ... }: nested loops over the generators, in the
+    // order and with the lookups JoinPlanner chose
+    static class Join extends SetPipeline {
+        private final Interpreter interpreter;
+        private final Expr body;
+        private final List<JoinPlanner.Level> levels;
+
+        Join(Interpreter interpreter, Expr body, List<JoinPlanner.Level> levels) {
+            this.interpreter = interpreter;
+            this.body = body;
+            this.levels = levels;
+        }
+
+        @Override
+        boolean forEach(Predicate<Object> sink) {
+            return run(0, sink);
+        }
+
+        private boolean run(int depth, Predicate<Object> sink) {
+            if (depth == levels.size()) return sink.test(interpreter.evaluate(body));
+            JoinPlanner.Level level = levels.get(depth);
+            return level.forEachCandidate(interpreter, value -> {
+                interpreter.bind(level.variable.lexeme, value);
+                for (Expr filter : level.filters) {
+                    if (!interpreter.isTrue(interpreter.evaluate(filter))) return true;
+                }
+                return run(depth + 1, sink);
+            });
+        }
+
+        // different bindings can produce the same element
+        @Override
+        boolean isDistinct() {
+            return false;
+        }
+    }
+
+    // pipeline intersect set
+    static class Intersect extends SetPipeline {
+        private final SetPipeline upstream;
+        private final Set<?> other;
+
+        Intersect(SetPipeline upstream, Set<?> other) {
+            this.upstream = upstream;
+            this.other = other;
+        }
+
+        @Override
+        boolean forEach(Predicate<Object> sink) {
+            // a spilled set is searched on disk for every lookup: merge with it instead
+            if (other instanceof SpilledSet) return forEachOf(SetOps.intersect(upstream.materialize(), other), sink);
+            return upstream.forEach(element -> !other.contains(element) || sink.test(element));
+        }
+
+        @Override
+        boolean isDistinct() {
+            return upstream.isDistinct();
+        }
+
+        @Override
+        boolean contains(Object value) {
+            return other.contains(value) && upstream.contains(value);
+        }
+    }
+
+    // Either side may be a pipeline, the other is a set. Elements of left come
+    // first, then whatever right adds, the same order SetOps.union gives.
+    static class Union extends SetPipeline {
+        private final Object left;
+        private final Object right;
+
+        Union(Object left, Object right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean forEach(Predicate<Object> sink) {
+            if (left instanceof SpilledSet) return forEachOf(SetOps.union((Set<?>) left, builtOf(right)), sink);
+            if (left instanceof Set<?>) {
+                Set<?> first = (Set<?>) left;
+                for (Object element : first) {
+                    if (!sink.test(element)) return false;
+                }
+                return forEachOf(right, element -> first.contains(element) || sink.test(element));
+            }
+
+            // right is the small set: remember which of its elements left produced
+            Set<?> second = (Set<?>) right;
+            Set<Object> produced = new HashSet<>();
+            boolean finished = forEachOf(left, element -> {
+                if (second.contains(element)) produced.add(element);
+                return sink.test(element);
+            });
+            if (!finished) return false;
+            for (Object element : second) {
+                if (!produced.contains(element) && !sink.test(element)) return false;
+            }
+            return true;
+        }
+
+        @Override
+        boolean isDistinct() {
+            Object pipeline = left instanceof SetPipeline ? left : right;
+            return ((SetPipeline) pipeline).isDistinct();
+        }
+
+        @Override
+        boolean contains(Object value) {
+            return containsOf(left, value) || containsOf(right, value);
+        }
+    }
+
+    // left - right, where left may still be a pipeline. Between two built
+    // sets the size comes from SetOps without visiting every element.
+    static class Difference extends SetPipeline {
+        private final Object left;
+        private final Set<?> right;
+
+        Difference(Object left, Set<?> right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean forEach(Predicate<Object> sink) {
+            if (right instanceof SpilledSet) return forEachOf(SetOps.difference(builtOf(left), right), sink);
+            return forEachOf(left, element -> right.contains(element) || sink.test(element));
+        }
+
+        @Override
+        boolean isDistinct() {
+            return !(left instanceof SetPipeline) || ((SetPipeline) left).isDistinct();
+        }
+
+        @Override
+        Set<Object> materialize() {
+            if (left instanceof SettaSet && ((SettaSet) left).isTemporary()
+                    && SetOps.differenceInPlace((SettaSet) left, right)) {
+                return (SettaSet) left;
+            }
+            if (left instanceof Set<?>) return SetOps.difference((Set<?>) left, right);
+            return super.materialize();
+        }
+
+        @Override
+        long count() {
+            if (left instanceof Set<?>) return SetOps.differenceSize((Set<?>) left, right);
+            return super.count();
+        }
+
+        @Override
+        boolean contains(Object value) {
+            return !right.contains(value) && containsOf(left, value);
+        }
+    }
+
+    // left symdiff right, between two built sets
+    static class SymmetricDifference extends SetPipeline {
+        private final Set<?> left;
+        private final Set<?> right;
+
+        SymmetricDifference(Set<?> left, Set<?> right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean forEach(Predicate<Object> sink) {
+            if (left instanceof SpilledSet || right instanceof SpilledSet) return forEachOf(materialize(), sink);
+            for (Object element : left) {
+                if (!right.contains(element) && !sink.test(element)) return false;
+            }
+            for (Object element : right) {
+                if (!left.contains(element) && !sink.test(element)) return false;
+            }
+            return true;
+        }
+
+        @Override
+        boolean isDistinct() {
+            return true;
+        }
+
+        @Override
+        Set<Object> materialize() {
+            return SetOps.symmetricDifference(left, right);
+        }
+
+        @Override
+        long count() {
+            return SetOps.symmetricDifferenceSize(left, right);
+        }
+
+        @Override
+        boolean contains(Object value) {
+            return left.contains(value) != right.contains(value);
+        }
+    }
+}
@@ -6,17 +6,43 @@ import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
 public class Setta {
-  private static Interpreter interpreter = new Interpreter();
+  private static final ErrorReporter console = new ErrorReporter() {
+    @Override
+    public void error(int line, String message) {
+      Setta.error(line, message);
+    }
+
+    @Override
+    public void runtimeError(RuntimeError error) {
+      Setta.runtimeError(error);
+    }
+  };
+  private static final Environment globals = newGlobals();
+  private static final OutputSink stdout = new OutputSink(System.out);
+  private static Interpreter interpreter = newInterpreter();
+  // what the parser takes as defined, kept from one prompt line to the next
+  private static Set<String> declared = globals.names();
   static boolean hadError = false;
   static boolean hadRuntimeError = false;
 
   public static void main(String[] args) throws IOException {
+    if (args.length >= 1 && args[0].equals("--daemon")) {
+      SettaDaemon.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
+    if (args.length >= 1 && args[0].equals("--batch")) {
+      SettaBatch.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
+
      runFile("setta/expo.setta");
     if (args.length > 1) {
-      System.out.println("Usage: setta [script]");
+      System.out.println("Usage: setta [script] | setta --daemon [port | socket path] | setta --batch <path> ...");
       System.exit(64);
     } else if (args.length == 1) {
       runFile(args[0]);
@@ -25,11 +51,25 @@ public class Setta {
     }
   }
 
+  private static Environment newGlobals() {
+    Environment globals = new Environment();
+    Builtins.define(globals);
+    globals.freeze();
+    return globals;
+  }
+
+  private static Interpreter newInterpreter() {
+    return new Interpreter(globals, stdout, console);
+  }
+
   private static void runFile(String path) throws IOException {
-    interpreter = new Interpreter();
+    interpreter = newInterpreter();
+    declared = globals.names();
     byte[] bytes = Files.readAllBytes(Paths.get(path));
     String source = new String(bytes, Charset.defaultCharset());
     run(source);
+    stdout.flush();
+    interpreter.close();
 
     if (hadError)
       System.exit(65);
@@ -39,7 +79,8 @@ public class Setta {
   }
 
   private static void runPrompt() throws IOException {
-    interpreter = new Interpreter();
+    interpreter = newInterpreter();
+    declared = globals.names();
     InputStreamReader input = new InputStreamReader(System.in);
     BufferedReader reader = new BufferedReader(input);
     System.out.println("Welcome to Setta!");
@@ -50,13 +91,14 @@ public class Setta {
       if (line == null)
         break;
       run(line);
+      stdout.flush();
 
       hadError = false;
     }
   }
 
   private static void run(String source) {
-    SettaScanner scanner = new SettaScanner(source);
+    SettaScanner scanner = new SettaScanner(source, console);
     List<SettaToken> tokens = scanner.scanTokens();
 
     /*
@@ -67,13 +109,14 @@ public class Setta {
      */
 
     // from book
-    SettaParser parser = new SettaParser(tokens);
+    SettaParser parser = new SettaParser(tokens, console, declared);
     List<Stmt> statements = parser.program();
 
     if (hadError)
       return;
 
-    interpreter.interpret(statements);
+    interpreter.interpret(CommonSubexpressions.ENABLED
+        ? CommonSubexpressions.analyze(statements) : statements);
 
     /*
      * uncomment to see AST
@@ -89,8 +132,9 @@ public class Setta {
   }
 
   static void runtimeError(RuntimeError error) {
-    System.err.println(error.getMessage() +
-        "\n[line " + error.token.line + "]");
+    // set operand checks and natives have no token to point at
+    String where = error.token == null ? "" : "\n[line " + error.token.line + "]";
+    System.err.println(error.getMessage() + where);
     hadRuntimeError = true;
   }
 
@@ -0,0 +1,128 @@
+package setta;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Batch mode: setta --batch [--threads n] <file or directory> ...
+//
+// Runs every script (directories are searched for *.setta files) in parallel,
+// each in its own session, then prints the results in the order the scripts
+// were given: a "==> path <==" header and the script's output on stdout, its
+// errors on stderr. Timings and overall throughput are reported on stderr.
+public class SettaBatch {
+  public static void main(String[] args) throws IOException {
+    int threads = Runtime.getRuntime().availableProcessors();
+    List<Path> scripts = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--threads") && i + 1 < args.length) {
+        threads = Integer.parseInt(args[++i]);
+      } else {
+        scripts.addAll(collect(Paths.get(args[i])));
+      }
+    }
+    if (scripts.isEmpty()) {
+      System.out.println("Usage: setta --batch [--threads n] <file or directory> ...");
+      System.exit(64);
+    }
+
+    System.exit(run(scripts, threads));
+  }
+
+  private static List<Path> collect(Path path) throws IOException {
+    if (!Files.isDirectory(path)) return List.of(path);
+    try (Stream<Path> files = Files.walk(path)) {
+      return files
+          .filter(file -> file.toString().endsWith(".setta") && Files.isRegularFile(file))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  // Returns the highest exit code of any script.
+  static int run(List<Path> scripts, int threads) {
+    long start = System.nanoTime();
+    List<Future<Outcome>> outcomes = new ArrayList<>();
+    int exitCode = 0;
+
+    try (SettaEngine engine = new SettaEngine();
+        ExecutorService workers = Executors.newFixedThreadPool(threads)) {
+      for (Path script : scripts) {
+        outcomes.add(workers.submit(() -> runOne(engine, script)));
+      }
+
+      List<String> timings = new ArrayList<>();
+      for (Future<Outcome> future : outcomes) {
+        Outcome outcome = join(future);
+        System.out.println("==> " + outcome.script + " <==");
+        System.out.print(outcome.result.output());
+        System.out.flush();
+        for (SettaError error : outcome.result.errors()) {
+          System.err.println(error);
+        }
+        exitCode = Math.max(exitCode, outcome.result.exitCode());
+        timings.add(String.format("%10.3f ms  exit %-3d %s",
+            outcome.nanos / 1e6, outcome.result.exitCode(), outcome.script));
+      }
+
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.err.println();
+      for (String timing : timings) {
+        System.err.println(timing);
+      }
+      System.err.println(String.format("%d scripts in %.3f s on %d threads (%.1f scripts/s)",
+          scripts.size(), seconds, threads, scripts.size() / seconds));
+    }
+    return exitCode;
+  }
+
+  private static Outcome runOne(SettaEngine engine, Path script) {
+    long start = System.nanoTime();
+    SettaResult result;
+    try {
+      String source = new String(Files.readAllBytes(script), StandardCharsets.UTF_8);
+      result = engine.run(source);
+    } catch (IOException e) {
+      SettaError error = new SettaError(SettaError.Kind.RUNTIME, 0, "Could not read " + script + ": " + e);
+      result = new SettaResult("", List.of(error), 66);
+    } catch (RuntimeException | Error e) {
+      // out of memory or stack, say; the other scripts still get their results
+      SettaError error = new SettaError(SettaError.Kind.RUNTIME, 0, String.valueOf(e));
+      result = new SettaResult("", List.of(error), 70);
+    }
+    return new Outcome(script, result, System.nanoTime() - start);
+  }
+
+  private static Outcome join(Future<Outcome> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private static class Outcome {
+    final Path script;
+    final SettaResult result;
+    final long nanos;
+
+    Outcome(Path script, SettaResult result, long nanos) {
+      this.script = script;
+      this.result = result;
+      this.nanos = nanos;
+    }
+  }
+}
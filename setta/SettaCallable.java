@@ -1,9 +1,15 @@
 package setta;
 
-import java.util.List;
-
 interface SettaCallable {
-    Object call(Interpreter interpreter, List<Object> arguments);
+    int arity();
+
+    // arguments has exactly arity() elements
+    Object call(Interpreter interpreter, Object[] arguments);
+
+    // true if arguments may be passed as unbuilt SetPipelines
+    default boolean streamsArguments() {
+        return false;
+    }
 }
 
 
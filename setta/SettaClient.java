@@ -0,0 +1,83 @@
+package setta;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+// Thin command line front end for SettaDaemon:
+//   setta-client [--connect port | socket path] [--keep] script.setta ...
+// Sends each script to the daemon, copies what it prints to stdout/stderr and
+// exits with the last non-zero exit code. With --keep all the scripts share
+// one session, so later scripts see the variables of earlier ones.
+public class SettaClient {
+  public static void main(String[] args) throws IOException {
+    String connect = null;
+    boolean keep = false;
+    List<String> scripts = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--connect") && i + 1 < args.length) {
+        connect = args[++i];
+      } else if (args[i].equals("--keep")) {
+        keep = true;
+      } else {
+        scripts.add(args[i]);
+      }
+    }
+    if (scripts.isEmpty()) {
+      System.out.println("Usage: setta-client [--connect port | socket path] [--keep] script ...");
+      System.exit(64);
+    }
+
+    SocketAddress address = SettaDaemon.address(connect);
+    int exitCode = 0;
+    try (SocketChannel channel = open(address)) {
+      InputStream in = Channels.newInputStream(channel);
+      OutputStream out = Channels.newOutputStream(channel);
+      for (String script : scripts) {
+        byte[] source = Files.readAllBytes(Paths.get(script));
+        String header = "RUN " + source.length + (keep ? " KEEP" : "") + "\n";
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        out.write(source);
+        out.flush();
+
+        int code = readResponse(in);
+        if (code != 0) exitCode = code;
+      }
+    }
+    System.exit(exitCode);
+  }
+
+  private static SocketChannel open(SocketAddress address) throws IOException {
+    SocketChannel channel = address instanceof UnixDomainSocketAddress
+        ? SocketChannel.open(StandardProtocolFamily.UNIX)
+        : SocketChannel.open();
+    channel.connect(address);
+    return channel;
+  }
+
+  private static int readResponse(InputStream in) throws IOException {
+    for (;;) {
+      String header = SettaDaemon.readLine(in);
+      if (header == null) throw new IOException("Daemon closed the connection.");
+      String[] parts = header.split(" ");
+      if (parts[0].equals("EXIT")) {
+        System.out.flush();
+        return Integer.parseInt(parts[1]);
+      }
+      byte[] bytes = in.readNBytes(Integer.parseInt(parts[1]));
+      PrintStream target = parts[0].equals("ERR") ? System.err : System.out;
+      target.write(bytes);
+    }
+  }
+}
@@ -0,0 +1,721 @@
+package setta;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static setta.SettaTokenType.*;
+
+// Compiles a script ahead of time into the source of a Java class whose main
+// runs it (see tool.CompileSetta). The class walks the syntax tree in its own
+// code: variables are fields holding on to their Environment cell, def
+// functions are static methods with an Object[] frame and a loop for self
+// tail calls, comprehensions with one generator are lambdas, and everything
+// else calls into SettaRuntime, i.e. the interpreter's own operators, so the
+// output is the same as interpreting the script.
+//
+// Repeated expressions are found by CommonSubexpressions here, and their
+// results cached while the class runs, as the interpreter would.
+//
+// A few pieces are left to the interpreter, parsed from their tokens once
+// when the class loads: comprehensions with more than one generator (their
+// loops are ordered by JoinPlanner as they run), def functions containing
+// one, and statements too big for a JVM method.
+public final class SettaCompiler {
+    // a statement or function bigger than this (counting a set literal of
+    // literals as one) is left to the interpreter; compiled, it could
+    // overflow a JVM method's 64KB of code
+    private static final int MAX_WEIGHT = 400;
+    // generated lines per nested class, for the same reason and so that no
+    // class file needs more than its 65535 constants
+    private static final int PART_LINES = 1000;
+    // a set literal of more literals than this is decoded from a table
+    private static final int CONSTANT_SET = 8;
+    // characters per string constant, well under the class file's 65535 bytes
+    private static final int PIECE = 16000;
+
+    private final String className;
+    private final List<SettaToken> scanned;
+    // the names defined where each fragment can start (see SettaParser), so
+    // that parsing it again tells generators and conditions apart the same way
+    private final Map<SettaToken, Set<String>> scopes;
+
+    // the four tables of SettaRuntime
+    private final Map<String, Integer> variables = new LinkedHashMap<>();
+    private final List<SettaToken> tokens = new ArrayList<>();
+    private final Map<SettaToken, Integer> tokenIndexes = new IdentityHashMap<>();
+    private final List<String> fragments = new ArrayList<>();
+    private final List<String> cached = new ArrayList<>();
+
+    // the names each expression binds, reads and assigns, as the interpreter sees them
+    private final NameUses uses = new NameUses();
+
+    private final StringBuilder fields = new StringBuilder();
+    private final StringBuilder parts = new StringBuilder();
+    private int constants = 0;
+    private int functions = 0;
+    private int temps = 0;
+
+    // the nested class being written, its def functions and the method
+    // being written
+    private String part;
+    private StringBuilder functionsCode;
+    private StringBuilder code;
+    private int indent;
+    private int lines;
+    // the def function whose body is being compiled, or null
+    private SettaFunction function;
+
+    private SettaCompiler(String className, List<SettaToken> scanned, Map<SettaToken, Set<String>> scopes) {
+        this.className = className;
+        this.scanned = scanned;
+        this.scopes = scopes;
+    }
+
+    // The Java source of a class named className running source, or null
+    // after adding its syntax errors to errors.
+    public static String compile(String source, String className, List<SettaError> errors) {
+        SettaSession.Collector collector = new SettaSession.Collector();
+        List<SettaToken> scanned = new SettaScanner(source, collector).scanTokens();
+        Environment library = new Environment();
+        Builtins.define(library);
+        Map<SettaToken, Set<String>> scopes = new IdentityHashMap<>();
+        List<Stmt> statements = new SettaParser(scanned, collector, library.names(), scopes).program();
+        if (!collector.errors.isEmpty()) {
+            errors.addAll(collector.errors);
+            return null;
+        }
+        List<Stmt> analyzed = CommonSubexpressions.ENABLED
+            ? CommonSubexpressions.analyze(statements) : statements;
+        return new SettaCompiler(className, scanned, scopes).compile(analyzed);
+    }
+
+    private String compile(List<Stmt> statements) {
+        // every statement ends with its ';', and nothing else has one
+        List<Integer> ends = new ArrayList<>();
+        for (int i = 0; i < scanned.size(); i++) {
+            if (scanned.get(i).type == SEMICOLON) ends.add(i);
+        }
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < statements.size(); i++) {
+            if (code == null || lines >= PART_LINES) {
+                if (code != null) endPart();
+                part = "Part" + names.size();
+                names.add(part);
+                code = new StringBuilder();
+                functionsCode = new StringBuilder();
+                indent = 1;
+                lines = 0;
+                line("private static final class " + part + " {");
+                indent++;
+                line("static void run() {");
+                indent++;
+            }
+            line("{");
+            indent++;
+            statement(statements.get(i), i == 0 ? 0 : ends.get(i - 1) + 1, ends.get(i));
+            indent--;
+            line("}");
+            line("rt.endStatement();");
+        }
+        if (code != null) endPart();
+
+        StringBuilder out = new StringBuilder();
+        out.append("// Generated by SettaCompiler; runs with the setta classes on the class path.\n");
+        out.append("import setta.SettaRuntime;\n\n");
+        out.append("public final class ").append(className).append(" {\n");
+        out.append("    private static final SettaRuntime rt = new SettaRuntime(\n");
+        out.append("        ").append(table(new ArrayList<>(variables.keySet()))).append(",\n");
+        List<String> entries = new ArrayList<>();
+        for (SettaToken token : tokens) {
+            entries.add(token.type + " " + token.line + " " + token.lexeme);
+        }
+        out.append("        ").append(table(entries)).append(",\n");
+        out.append("        ").append(table(fragments)).append(",\n");
+        out.append("        ").append(table(cached)).append(");\n");
+        out.append("    private static final SettaRuntime.Variable[] V = rt.variables();\n");
+        out.append(fields).append('\n');
+        out.append("    public static void main(String[] args) {\n");
+        out.append("        int status = rt.run(() -> {\n");
+        for (String name : names) {
+            out.append("            ").append(name).append(".run();\n");
+        }
+        out.append("        });\n");
+        out.append("        if (status != 0) System.exit(status);\n");
+        out.append("    }\n");
+        out.append(parts);
+        out.append("}\n");
+        return out.toString();
+    }
+
+    private void endPart() {
+        indent--;
+        line("}");
+        code.append(functionsCode);
+        indent--;
+        line("}");
+        parts.append('\n').append(code);
+    }
+
+    //#region Statements
+    // first and last are the statement's tokens in scanned
+    private void statement(Stmt stmt, int first, int last) {
+        if (stmt instanceof Stmt.Fun) {
+            Stmt.Fun fun = (Stmt.Fun) stmt;
+            if (weight(fun.body) > MAX_WEIGHT || hasJoin(fun.body)) {
+                line("rt.execute(" + fragment(first, last, false) + ");");
+            } else {
+                line("V[" + variable(fun.name.lexeme) + "].define(rt.function(" + quote(fun.name.lexeme) + ", "
+                    + fun.params.size() + ", " + part + "::" + function(fun) + "));");
+            }
+            return;
+        }
+
+        Expr expr = stmt instanceof Stmt.Print ? ((Stmt.Print) stmt).expression
+            : stmt instanceof Stmt.Let ? ((Stmt.Let) stmt).value
+            : ((Stmt.Expression) stmt).expression;
+        if (weight(expr) > MAX_WEIGHT) {
+            line("rt.execute(" + fragment(first, last, false) + ");");
+        } else if (stmt instanceof Stmt.Print) {
+            line("rt.print(" + eager(expr) + ");");
+        } else if (stmt instanceof Stmt.Let) {
+            String value = eager(expr);
+            line("V[" + variable(((Stmt.Let) stmt).name.lexeme) + "].define(" + value + ");");
+        } else {
+            line("rt.materialize(" + lazy(expr) + ");");
+        }
+    }
+
+    // A static method running a def function's body, as Interpreter.call
+    // does: a call of the function to itself in tail position rebinds the
+    // parameters and starts over. Returns its name.
+    private String function(Stmt.Fun stmt) {
+        StringBuilder outerCode = code;
+        int outerIndent = indent;
+        SettaFunction outerFunction = function;
+
+        String name = "fn" + functions++;
+        function = new SettaFunction(stmt);
+        code = new StringBuilder();
+        indent = 2;
+        line("// def " + stmt.name.lexeme);
+        line("private static Object " + name + "(SettaRuntime.Function self, Object[] arguments) {");
+        indent++;
+        line("Object[] frame = new Object[" + function.frameSize() + "];");
+        line("try {");
+        indent++;
+        line("SettaRuntime.bindParameters(frame, arguments);");
+        line("while (true) {");
+        indent++;
+        tail(stmt.body);
+        indent--;
+        line("}");
+        indent--;
+        line("} finally {");
+        line("    SettaRuntime.release(frame);");
+        line("}");
+        indent--;
+        line("}");
+        functionsCode.append('\n').append(code);
+
+        code = outerCode;
+        indent = outerIndent;
+        function = outerFunction;
+        return name;
+    }
+
+    private void tail(Expr expr) {
+        expr = unwrap(expr);
+        if (expr instanceof Expr.Conditional) {
+            Expr.Conditional conditional = (Expr.Conditional) expr;
+            String condition = eager(conditional.condition);
+            line("if (rt.isTrue(" + condition + ")) {");
+            indent++;
+            tail(conditional.thenBranch);
+            indent--;
+            line("} else {");
+            indent++;
+            tail(conditional.elseBranch);
+            indent--;
+            line("}");
+            return;
+        }
+        if (function.callsItself(expr)) {
+            Expr.Call call = (Expr.Call) expr;
+            String callee = eager(call.callee);
+            line("if (" + callee + " == self) {");
+            indent++;
+            String arguments = temp();
+            line("Object[] " + arguments + " = new Object[" + call.arguments.size() + "];");
+            for (int i = 0; i < call.arguments.size(); i++) {
+                String argument = eager(call.arguments.get(i));
+                line(arguments + "[" + i + "] = " + argument + ";");
+            }
+            line("rt.checkArity(" + token(call.paren) + ", self, " + arguments + ");");
+            line("SettaRuntime.bindParameters(frame, " + arguments + ");");
+            line("continue;");
+            indent--;
+            line("}");
+        }
+        line("return " + eager(expr) + ";");
+    }
+    //#endregion
+
+    //#region Expressions
+    // Writes the code computing expr as Interpreter.evaluateLazy would, so
+    // possibly an unbuilt pipeline, and returns a Java expression for it: a
+    // local or a constant.
+    private String lazy(Expr expr) {
+        if (expr instanceof Expr.Literal) return literal(((Expr.Literal) expr).value);
+        if (expr instanceof Expr.Variable) return local(read(((Expr.Variable) expr).name));
+        if (expr instanceof Expr.Grouping) return lazy(unwrap(expr));
+        if (expr instanceof Expr.Binary) return binary((Expr.Binary) expr);
+        if (expr instanceof Expr.Unary) return unary((Expr.Unary) expr);
+        if (expr instanceof Expr.SetLiteral) return setLiteral((Expr.SetLiteral) expr);
+        if (expr instanceof Expr.TupleLiteral) {
+            return local("rt.tuple(" + array(((Expr.TupleLiteral) expr).elements) + ")");
+        }
+        if (expr instanceof Expr.Comprehension) return comprehension((Expr.Comprehension) expr);
+        if (expr instanceof Expr.Cardinality) {
+            return local("rt.cardinality(" + lazy(((Expr.Cardinality) expr).expression) + ")");
+        }
+        if (expr instanceof Expr.Call) return call((Expr.Call) expr);
+        if (expr instanceof Expr.Conditional) return conditional((Expr.Conditional) expr);
+        if (expr instanceof Expr.Assign) return assign((Expr.Assign) expr);
+        if (expr instanceof Expr.Cached) return cached((Expr.Cached) expr);
+        throw new IllegalArgumentException("Cannot compile " + expr.getClass().getSimpleName() + ".");
+    }
+
+    // as Interpreter.evaluate: always a built value
+    private String eager(Expr expr) {
+        String value = lazy(expr);
+        return mayBeUnbuilt(expr) ? local("rt.materialize(" + value + ")") : value;
+    }
+
+    private static boolean mayBeUnbuilt(Expr expr) {
+        expr = unwrap(expr);
+        if (expr instanceof Expr.Binary) return Interpreter.fuses(((Expr.Binary) expr).operator);
+        return expr instanceof Expr.Comprehension || expr instanceof Expr.Conditional || expr instanceof Expr.Call;
+    }
+
+    private String literal(Object value) {
+        if (value instanceof Long) return "SettaRuntime.number(" + value + "L)";
+        if (value instanceof Double) {
+            double number = (Double) value;
+            return "SettaRuntime.number(" + (Double.isInfinite(number) ? "Double.POSITIVE_INFINITY" : value) + ")";
+        }
+        if (value instanceof Boolean) return (Boolean) value ? "Boolean.TRUE" : "Boolean.FALSE";
+        return quote((String) value);
+    }
+
+    private String read(SettaToken name) {
+        int slot = function != null ? function.slotOf(name.lexeme) : -1;
+        if (slot < 0) return "V[" + variable(name.lexeme) + "].get(" + token(name) + ")";
+        // a comprehension variable its comprehension may not have bound yet,
+        // which then means the script's variable
+        if (slot >= function.arity()) return "rt.slot(frame[" + slot + "], " + token(name) + ")";
+        return "frame[" + slot + "]";
+    }
+
+    // the spine of operators nested to the left, as in Interpreter.visitBinaryExpr
+    private String binary(Expr.Binary expr) {
+        Deque<Expr.Binary> spine = new ArrayDeque<>();
+        Expr leftmost = expr;
+        while (leftmost instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) leftmost;
+            spine.push(binary);
+            leftmost = unwrap(binary.left);
+        }
+        List<Expr.Binary> operators = new ArrayList<>(spine);
+
+        if (operators.size() == 1) {
+            boolean fuses = Interpreter.fuses(expr.operator) && !Interpreter.inWrittenOrder(uses, expr);
+            String left = fuses ? lazy(leftmost) : eager(leftmost);
+            String right = fuses ? lazy(expr.right) : eager(expr.right);
+            return local("rt.binary(" + token(expr.operator) + ", " + left + ", " + right + ")");
+        }
+
+        boolean fusing = false;
+        for (Expr.Binary binary : operators) {
+            fusing |= Interpreter.fuses(binary.operator);
+        }
+        if (!fusing) {
+            // built values all the way
+            String left = eager(leftmost);
+            for (Expr.Binary binary : operators) {
+                String right = eager(binary.right);
+                left = local("rt.binary(" + token(binary.operator) + ", " + left + ", " + right + ")");
+            }
+            return left;
+        }
+
+        String state = temp();
+        line("SettaRuntime.Spine " + state + " = rt.spine(" + token(operators.get(0).operator) + ", "
+            + lazy(leftmost) + ");");
+        for (int i = 0; i < operators.size(); i++) {
+            Expr.Binary binary = operators.get(i);
+            String operator = token(binary.operator);
+            String next = i + 1 < operators.size() ? token(operators.get(i + 1).operator) : "-1";
+            line(state + ".begin(" + operator + ", " + next + ");");
+            String right;
+            if (Interpreter.fuses(binary.operator) && Interpreter.inWrittenOrder(uses, binary)) {
+                line(state + ".build();");
+                right = eager(binary.right);
+            } else {
+                right = lazy(binary.right);
+            }
+            line(state + ".end(" + operator + ", " + next + ", " + right + ");");
+        }
+        return local(state + ".result()");
+    }
+
+    private String unary(Expr.Unary expr) {
+        Deque<SettaToken> operators = new ArrayDeque<>();
+        Expr operand = expr;
+        while (operand instanceof Expr.Unary) {
+            operators.push(((Expr.Unary) operand).operator);
+            operand = unwrap(((Expr.Unary) operand).right);
+        }
+        String value = eager(operand);
+        while (!operators.isEmpty()) {
+            value = local("rt.unary(" + token(operators.pop()) + ", " + value + ")");
+        }
+        return value;
+    }
+
+    private String setLiteral(Expr.SetLiteral expr) {
+        if (!isConstant(expr)) return local("rt.set(" + array(expr.elements) + ")");
+
+        // L<whole number>, D<bits of a double in hex>, S<length>:<string>, T or F
+        StringBuilder table = new StringBuilder();
+        for (Expr element : expr.elements) {
+            Object value = constant(element);
+            if (value instanceof Long) {
+                table.append('L').append(value).append(',');
+            } else if (value instanceof Double) {
+                table.append('D').append(Long.toHexString(Double.doubleToRawLongBits((Double) value))).append(',');
+            } else if (value instanceof Boolean) {
+                table.append((Boolean) value ? 'T' : 'F');
+            } else {
+                table.append('S').append(((String) value).length()).append(':').append(value);
+            }
+        }
+        String name = "C" + constants++;
+        fields.append("    private static final Object[] ").append(name).append(" = SettaRuntime.constants(")
+            .append(pieces(table.toString())).append(");\n");
+        return local("rt.set(" + name + ")");
+    }
+
+    private String comprehension(Expr.Comprehension expr) {
+        // joins are planned as they run (see JoinPlanner)
+        if (expr.variables.size() > 1) return local("rt.evaluate(" + fragment(expr) + ")");
+
+        SettaToken variable = expr.variables.get(0);
+        String domain = lazy(expr.domains.get(0));
+        String item = "e" + temps++;
+        String result = temp();
+        line("Object " + result + " = rt.comprehension(" + domain + ", " + token(variable) + ", " + item + " -> {");
+        indent++;
+        int slot = function != null ? function.slotOf(variable.lexeme) : -1;
+        if (slot >= 0) {
+            line("SettaRuntime.setSlot(frame, " + slot + ", " + item + ");");
+        } else {
+            line("V[" + variable(variable.lexeme) + "].define(" + item + ");");
+        }
+        for (Expr condition : expr.conditions) {
+            line("if (!rt.isTrue(" + eager(condition) + ")) return false;");
+        }
+        line("return true;");
+        indent--;
+
+        boolean filterOnly = expr.expr instanceof Expr.Variable
+            && ((Expr.Variable) expr.expr).name.lexeme.equals(variable.lexeme);
+        if (filterOnly) {
+            line("}, null);");
+        } else {
+            line("}, () -> {");
+            indent++;
+            line("return " + eager(expr.expr) + ";");
+            indent--;
+            line("});");
+        }
+        // as in Interpreter.visitComprehensionExpr
+        return uses.of(expr).assigns ? local("rt.materialize(" + result + ")") : result;
+    }
+
+    private String call(Expr.Call expr) {
+        String callee = eager(expr.callee);
+        String arguments = temp();
+        line("Object[] " + arguments + " = new Object[" + expr.arguments.size() + "];");
+        if (!expr.arguments.isEmpty()) {
+            String streams = temp();
+            line("boolean " + streams + " = rt.streams(" + callee + ");");
+            for (int i = 0; i < expr.arguments.size(); i++) {
+                Expr argument = expr.arguments.get(i);
+                String value = lazy(argument);
+                line(arguments + "[" + i + "] = " + (mayBeUnbuilt(argument)
+                    ? streams + " ? " + value + " : rt.materialize(" + value + ")" : value) + ";");
+            }
+        }
+        return local("rt.call(" + token(expr.paren) + ", " + callee + ", " + arguments + ")");
+    }
+
+    private String conditional(Expr.Conditional expr) {
+        String condition = eager(expr.condition);
+        String result = temp();
+        line("Object " + result + ";");
+        line("if (rt.isTrue(" + condition + ")) {");
+        indent++;
+        line(result + " = " + lazy(expr.thenBranch) + ";");
+        indent--;
+        line("} else {");
+        indent++;
+        line(result + " = " + lazy(expr.elseBranch) + ";");
+        indent--;
+        line("}");
+        return result;
+    }
+
+    // as Interpreter.visitAssignExpr, updating the set in place when it can
+    private String assign(Expr.Assign expr) {
+        String value = temp();
+        Expr.Binary update = Interpreter.inPlaceUpdate(expr);
+        if (update == null) {
+            line("Object " + value + " = " + eager(expr.value) + ";");
+        } else {
+            line("Object " + value + " = null;");
+            String target = eager(update.left);
+            line("if (SettaRuntime.isUniquelyBound(" + target + ")) {");
+            indent++;
+            String right = eager(update.right);
+            line(value + " = rt.update(" + token(update.operator) + ", " + target + ", " + right + ");");
+            indent--;
+            line("}");
+            line("if (" + value + " == null) {");
+            indent++;
+            line(value + " = " + eager(expr.value) + ";");
+            indent--;
+            line("}");
+        }
+
+        int slot = function != null ? function.slotOf(expr.name.lexeme) : -1;
+        if (slot >= 0) {
+            line("SettaRuntime.setSlot(frame, " + slot + ", " + value + ");");
+        } else {
+            line("V[" + variable(expr.name.lexeme) + "].assign(" + value + ", " + token(expr.name) + ");");
+        }
+        return value;
+    }
+
+    private String cached(Expr.Cached expr) {
+        String index = Integer.toString(cached.size());
+        cached.add(expr.key + (expr.inputs.isEmpty() ? "" : " " + String.join(" ", expr.inputs)));
+        String value = temp();
+        line("Object " + value + " = rt.lookup(" + index + ");");
+        line("if (" + value + " == null) {");
+        indent++;
+        line(value + " = " + eager(expr.expression) + ";");
+        line("rt.store(" + index + ", " + value + ");");
+        indent--;
+        line("}");
+        return value;
+    }
+
+    // new Object[] {...} of the built elements
+    private String array(List<Expr> elements) {
+        List<String> values = new ArrayList<>();
+        for (Expr element : elements) {
+            values.add(eager(element));
+        }
+        return values.isEmpty() ? "new Object[0]" : "new Object[] {" + String.join(", ", values) + "}";
+    }
+    //#endregion
+
+    //#region Sizes
+    // expressions in expr, a set literal of literals counting as one
+    private static int weight(Expr expr) {
+        int weight = 0;
+        Deque<Expr> pending = new ArrayDeque<>();
+        pending.push(expr);
+        while (!pending.isEmpty()) {
+            Expr next = pending.pop();
+            weight++;
+            if (isConstant(next)) continue;
+            Subexpressions.children(next).forEach(pending::push);
+        }
+        return weight;
+    }
+
+    // a set literal decoded from a table
+    private static boolean isConstant(Expr expr) {
+        if (!(expr instanceof Expr.SetLiteral) || ((Expr.SetLiteral) expr).elements.size() <= CONSTANT_SET) {
+            return false;
+        }
+        for (Expr element : ((Expr.SetLiteral) expr).elements) {
+            if (constant(element) == null) return false;
+        }
+        return true;
+    }
+
+    // the value of a literal or of a negative number literal, or null
+    private static Object constant(Expr expr) {
+        if (expr instanceof Expr.Literal) return ((Expr.Literal) expr).value;
+        if (!(expr instanceof Expr.Unary) || ((Expr.Unary) expr).operator.type != MINUS) return null;
+        Expr operand = ((Expr.Unary) expr).right;
+        if (!(operand instanceof Expr.Literal) || !(((Expr.Literal) operand).value instanceof Number)) return null;
+        return SettaNumber.negate(((Expr.Literal) operand).value);
+    }
+
+    private static boolean hasJoin(Expr expr) {
+        boolean[] found = {false};
+        Subexpressions.forEach(expr, nested -> {
+            if (nested instanceof Expr.Comprehension && ((Expr.Comprehension) nested).variables.size() > 1) {
+                found[0] = true;
+            }
+        });
+        return found[0];
+    }
+    //#endregion
+
+    //#region Tables
+    private int variable(String name) {
+        return variables.computeIfAbsent(name, key -> variables.size());
+    }
+
+    private String token(SettaToken token) {
+        Integer index = tokenIndexes.get(token);
+        if (index == null) {
+            index = tokens.size();
+            tokens.add(token);
+            tokenIndexes.put(token, index);
+        }
+        return index.toString();
+    }
+
+    // scanned tokens first to last become a fragment; an expression gets a
+    // ';' to parse as a statement. Its entry also lists the defined names
+    // that some "name in" of it could be taken for. Returns the fragment's index.
+    private String fragment(int first, int last, boolean expression) {
+        int start = tokens.size();
+        tokens.addAll(scanned.subList(first, last + 1));
+        if (expression) tokens.add(new SettaToken(SEMICOLON, ";", null, scanned.get(last).line));
+        StringBuilder entry = new StringBuilder().append(start).append(' ').append(tokens.size() - 1);
+        Set<String> defined = scopes.getOrDefault(scanned.get(first), Set.of());
+        Set<String> listed = new HashSet<>();
+        for (int i = first; i < last; i++) {
+            String name = scanned.get(i).lexeme;
+            if (scanned.get(i).type == IDENTIFIER && scanned.get(i + 1).type == IN
+                && defined.contains(name) && listed.add(name)) {
+                entry.append(' ').append(name);
+            }
+        }
+        fragments.add(entry.toString());
+        return Integer.toString(fragments.size() - 1);
+    }
+
+    // from the '{' before the comprehension's '|' to its '}'
+    private String fragment(Expr.Comprehension expr) {
+        int pipe = position(expr.variables.get(0)) - 1;
+        int first = pipe;
+        for (int depth = 0; ; ) {
+            SettaTokenType type = scanned.get(--first).type;
+            if (type == RIGHT_BRACE) depth++;
+            if (type == LEFT_BRACE && depth-- == 0) break;
+        }
+        int last = pipe;
+        for (int depth = 0; ; ) {
+            SettaTokenType type = scanned.get(++last).type;
+            if (type == LEFT_BRACE) depth++;
+            if (type == RIGHT_BRACE && depth-- == 0) break;
+        }
+        return fragment(first, last, true);
+    }
+
+    // where token is in scanned, found among the tokens of its line
+    private int position(SettaToken token) {
+        int low = 0;
+        int high = scanned.size() - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (scanned.get(middle).line < token.line) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        while (scanned.get(low) != token) low++;
+        return low;
+    }
+
+    private static String table(List<String> entries) {
+        return "new String[] {" + pieces(String.join(String.valueOf(SettaRuntime.SEPARATOR), entries)) + "}";
+    }
+
+    // "...", "...": text cut into string constants a class file can hold
+    private static String pieces(String text) {
+        List<String> pieces = new ArrayList<>();
+        for (int i = 0; i < text.length(); i += PIECE) {
+            pieces.add(quote(text.substring(i, Math.min(text.length(), i + PIECE))));
+        }
+        return pieces.isEmpty() ? "\"\"" : String.join(",\n            ", pieces);
+    }
+
+    private static String quote(String text) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\%03o", (int) c));
+                    } else if (c > 0x7e) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+    //#endregion
+
+    //#region Helpers
+    private String temp() {
+        return "t" + temps++;
+    }
+
+    // javaExpr in a new local, so it is computed here and only once
+    private String local(String javaExpr) {
+        String name = temp();
+        line("Object " + name + " = " + javaExpr + ";");
+        return name;
+    }
+
+    private void line(String text) {
+        for (int i = 0; i < indent; i++) {
+            code.append("    ");
+        }
+        code.append(text).append('\n');
+        lines++;
+    }
+
+    private static Expr unwrap(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping) expr).expression;
+        }
+        return expr;
+    }
+    //#endregion
+}
@@ -0,0 +1,246 @@
+package setta;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+// Long-running server: setta --daemon [port | socket path]
+//
+// Keeps one JVM (and its JIT-compiled interpreter) alive and runs scripts
+// sent by SettaClient. Every connection gets its own virtual thread; at most
+// one script per core runs at a time.
+//
+// Protocol, one request after another on the same connection:
+//   client: RUN <byte count> [KEEP]\n<script bytes>
+//           FILE <path> [KEEP]\n
+//   server: OUT <byte count>\n<bytes>     (any number, as the script prints)
+//           ERR <byte count>\n<bytes>     (any number)
+//           EXIT <code>\n
+// With KEEP the request runs in the connection's session, so variables from
+// earlier KEEP requests are still defined. Without it every request starts
+// from a clean environment.
+public class SettaDaemon {
+    static final int DEFAULT_PORT = 7373;
+
+    private final SettaEngine engine = new SettaEngine();
+    private final Semaphore running =
+        new Semaphore(Runtime.getRuntime().availableProcessors());
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 1) {
+            System.out.println("Usage: setta --daemon [port | socket path]");
+            System.exit(64);
+        }
+        try {
+            new SettaDaemon().serve(address(args.length == 1 ? args[0] : null));
+        } catch (BindException e) {
+            System.err.println(e.getMessage());
+            System.exit(74);
+        }
+    }
+
+    // A number is a localhost port, anything else is a Unix socket path.
+    static SocketAddress address(String spec) {
+        if (spec == null) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), DEFAULT_PORT);
+        }
+        if (spec.chars().allMatch(Character::isDigit)) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(spec));
+        }
+        return UnixDomainSocketAddress.of(spec);
+    }
+
+    void serve(SocketAddress address) throws IOException {
+        ServerSocketChannel server;
+        if (address instanceof UnixDomainSocketAddress) {
+            removeStaleSocket(((UnixDomainSocketAddress) address).getPath());
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            server = ServerSocketChannel.open();
+        }
+        server.bind(address);
+        System.err.println("Setta daemon listening on " + address);
+
+        try (ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (;;) {
+                SocketChannel client = server.accept();
+                connections.submit(() -> handle(client));
+            }
+        }
+    }
+
+    // Only a socket nobody answers on is left over from an earlier daemon;
+    // anything else at the path (a script, a live daemon) is kept.
+    private static void removeStaleSocket(Path path) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (attributes.isOther()) {
+            SocketChannel probe;
+            try {
+                probe = SocketChannel.open(UnixDomainSocketAddress.of(path));
+            } catch (IOException e) {
+                Files.delete(path);
+                return;
+            }
+            // another daemon is serving it
+            probe.close();
+        }
+        throw new BindException("Address already in use: " + path);
+    }
+
+    private void handle(SocketChannel client) {
+        SettaSession kept = null;
+        try (client) {
+            InputStream in = Channels.newInputStream(client);
+            OutputStream socket = Channels.newOutputStream(client);
+            FrameStream out = new FrameStream(socket, "OUT");
+            PrintStream printer = new PrintStream(out, true, StandardCharsets.UTF_8);
+
+            String header;
+            while ((header = readLine(in)) != null) {
+                boolean keep = header.endsWith(" KEEP");
+                if (keep) header = header.substring(0, header.length() - " KEEP".length());
+                String source;
+                try {
+                    source = readSource(in, header);
+                } catch (IOException e) {
+                    frame(socket, "ERR", (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+                    exit(socket, 66);
+                    continue;
+                }
+
+                SettaSession session;
+                if (keep) {
+                    if (kept == null) kept = engine.newSession(printer);
+                    session = kept;
+                } else {
+                    session = engine.newSession(printer);
+                }
+
+                SettaResult result;
+                running.acquireUninterruptibly();
+                try {
+                    result = session.run(engine.compile(source, session));
+                } catch (RuntimeException | Error e) {
+                    // out of memory, say: this request fails, the daemon goes on
+                    SettaError error = new SettaError(SettaError.Kind.RUNTIME, 0, String.valueOf(e));
+                    result = new SettaResult("", List.of(error), 70);
+                } finally {
+                    running.release();
+                    if (session != kept) session.close();
+                }
+                for (SettaError error : result.errors()) {
+                    frame(socket, "ERR", (error + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                exit(socket, result.exitCode());
+            }
+        } catch (IOException e) {
+            // client went away; nothing left to report to
+        } finally {
+            if (kept != null) kept.close();
+        }
+    }
+
+    private static String readSource(InputStream in, String header) throws IOException {
+        if (header.startsWith("RUN ")) {
+            int length;
+            try {
+                length = Integer.parseInt(header.substring("RUN ".length()));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad request '" + header + "'.");
+            }
+            if (length < 0) throw new IOException("Bad request '" + header + "'.");
+            byte[] bytes = in.readNBytes(length);
+            if (bytes.length < length) throw new EOFException("Connection closed mid-script.");
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        if (header.startsWith("FILE ")) {
+            Path path = Paths.get(header.substring("FILE ".length()));
+            return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        }
+        throw new IOException("Unknown request '" + header + "'.");
+    }
+
+    //#region Framing
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                if (line.size() == 0) return null;
+                throw new EOFException("Connection closed mid-line.");
+            }
+            line.write(c);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    static void frame(OutputStream out, String tag, byte[] bytes) throws IOException {
+        out.write((tag + " " + bytes.length + "\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(bytes);
+    }
+
+    private static void exit(OutputStream out, int code) throws IOException {
+        out.write(("EXIT " + code + "\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    // Buffers what a script prints and sends it as one frame per flush.
+    private static class FrameStream extends OutputStream {
+        private final OutputStream out;
+        private final String tag;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+        FrameStream(OutputStream out, String tag) {
+            this.out = out;
+            this.tag = tag;
+        }
+
+        @Override
+        public void write(int b) {
+            pending.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            pending.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (pending.size() == 0) return;
+            byte[] bytes = pending.toByteArray();
+            pending.reset();
+            frame(out, tag, bytes);
+            out.flush();
+        }
+    }
+    //#endregion
+}
@@ -0,0 +1,97 @@
+package setta;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Embeddable entry point. Compile a script once, then run it as many times as
+// needed, from any number of threads. Every run gets its own Environment on
+// top of a shared global library that scripts can read but not assign to.
+//
+//   try (SettaEngine engine = new SettaEngine()) {
+//     SettaProgram program = engine.compile("print {1, 2} union {3};");
+//     SettaResult result = engine.submit(program).get();
+//   }
+public final class SettaEngine implements AutoCloseable {
+    private final Environment globals = new Environment();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public SettaEngine() {
+        this(Map.of());
+    }
+
+    public SettaEngine(Map<String, Object> library) {
+        Builtins.define(globals);
+        for (Map.Entry<String, Object> entry : library.entrySet()) {
+            globals.define(entry.getKey(), entry.getValue());
+        }
+        globals.freeze();
+    }
+
+    public SettaProgram compile(String source) {
+        return compile(source, globals.names());
+    }
+
+    // For running in session: names defined by the session's earlier
+    // programs are taken as defined, as at the REPL prompt.
+    public SettaProgram compile(String source, SettaSession session) {
+        return compile(source, session.declared);
+    }
+
+    private SettaProgram compile(String source, Set<String> declared) {
+        SettaSession.Collector errors = new SettaSession.Collector();
+        List<SettaToken> tokens = new SettaScanner(source, errors).scanTokens();
+        List<Stmt> statements = new SettaParser(tokens, errors, declared).program();
+        if (!errors.errors.isEmpty()) return new SettaProgram(List.of(), errors.errors);
+        return new SettaProgram(CommonSubexpressions.ENABLED
+            ? CommonSubexpressions.analyze(statements) : statements, errors.errors);
+    }
+
+    // A session keeps its variables from one program to the next.
+    public SettaSession newSession(PrintStream out) {
+        return newSession(out, SettaLimits.defaults());
+    }
+
+    public SettaSession newSession(PrintStream out, SettaLimits limits) {
+        return new SettaSession(globals, out, limits);
+    }
+
+    // Runs on the calling thread, in a fresh session.
+    public SettaResult run(SettaProgram program) {
+        return run(program, SettaLimits.defaults());
+    }
+
+    public SettaResult run(SettaProgram program, SettaLimits limits) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer, false, StandardCharsets.UTF_8);
+        SettaResult result;
+        try (SettaSession session = newSession(out, limits)) {
+            result = session.run(program);
+        }
+        return new SettaResult(buffer.toString(StandardCharsets.UTF_8), result.errors(), result.exitCode());
+    }
+
+    public SettaResult run(String source) {
+        return run(compile(source));
+    }
+
+    // Runs on a fresh virtual thread.
+    public Future<SettaResult> submit(SettaProgram program) {
+        return submit(program, SettaLimits.defaults());
+    }
+
+    public Future<SettaResult> submit(SettaProgram program, SettaLimits limits) {
+        return executor.submit(() -> run(program, limits));
+    }
+
+    @Override
+    public void close() {
+        executor.close();
+    }
+}
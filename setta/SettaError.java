@@ -0,0 +1,46 @@
+package setta;
+
+// A single syntax or runtime error, as handed back by SettaEngine.
+public final class SettaError {
+    // LIMIT: the run went over its SettaLimits
+    public enum Kind {
+        SYNTAX, RUNTIME, LIMIT
+    }
+
+    private final Kind kind;
+    private final int line;
+    private final String message;
+
+    SettaError(Kind kind, int line, String message) {
+        this.kind = kind;
+        this.line = line;
+        this.message = message;
+    }
+
+    static SettaError of(RuntimeError error) {
+        int line = error.token == null ? 0 : error.token.line;
+        Kind kind = error instanceof BudgetExceededError ? Kind.LIMIT : Kind.RUNTIME;
+        return new SettaError(kind, line, error.getMessage());
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    public int line() {
+        return line;
+    }
+
+    public String message() {
+        return message;
+    }
+
+    // same format the command line prints
+    @Override
+    public String toString() {
+        if (kind == Kind.SYNTAX) {
+            return "[line " + line + "] Error: " + message;
+        }
+        return message + "\n[line " + line + "]";
+    }
+}
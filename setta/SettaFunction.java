@@ -0,0 +1,74 @@
+package setta;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A function declared with def. Its parameters, and the variables of every
+// comprehension in its body, are laid out once at declaration as the slots
+// of a frame: each call gets one Object[] of frameSize() (see
+// Interpreter.call) instead of an Environment, and inside the body those
+// names are found by comparing against a handful of slot names instead of
+// hashing. Every other name the body mentions, the function's own included,
+// is looked up in the script's variables when the call runs, and so is a
+// comprehension variable its comprehension hasn't bound yet.
+final class SettaFunction implements SettaCallable {
+    private final Stmt.Fun declaration;
+    // parameters first, then the comprehension variables
+    private final String[] slots;
+
+    SettaFunction(Stmt.Fun declaration) {
+        this.declaration = declaration;
+        List<String> names = new ArrayList<>();
+        for (SettaToken param : declaration.params) {
+            names.add(param.lexeme);
+        }
+        Subexpressions.forEach(declaration.body, expr -> {
+            if (!(expr instanceof Expr.Comprehension)) return;
+            for (SettaToken variable : ((Expr.Comprehension) expr).variables) {
+                if (!names.contains(variable.lexeme)) names.add(variable.lexeme);
+            }
+        });
+        this.slots = names.toArray(new String[0]);
+    }
+
+    Expr body() {
+        return declaration.body;
+    }
+
+    int frameSize() {
+        return slots.length;
+    }
+
+    // the frame slot of a variable of the body, or -1 if it isn't one
+    int slotOf(String name) {
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    // expr calls this function by its name, which no slot hides; whether the
+    // name still holds this function is only known when the call runs
+    boolean callsItself(Expr expr) {
+        if (!(expr instanceof Expr.Call)) return false;
+        Expr callee = ((Expr.Call) expr).callee;
+        if (!(callee instanceof Expr.Variable)) return false;
+        String name = ((Expr.Variable) callee).name.lexeme;
+        return name.equals(declaration.name.lexeme) && slotOf(name) < 0;
+    }
+
+    @Override
+    public int arity() {
+        return declaration.params.size();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return interpreter.call(this, arguments);
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + declaration.name.lexeme + ">";
+    }
+}
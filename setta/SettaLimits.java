@@ -0,0 +1,70 @@
+package setta;
+
+import java.time.Duration;
+
+// Per-run ceilings on what a script may use, so that one runaway script
+// (an accidental A X B X C, an unfiltered join) fails fast instead of holding
+// a worker's CPU and heap. Every run starts counting from zero; a script that
+// goes over a limit stops with a BudgetExceededError, reported as a
+// SettaError of kind LIMIT.
+//
+//   SettaLimits limits = SettaLimits.none().withSteps(10_000_000).withTime(Duration.ofSeconds(5));
+//   SettaResult result = engine.run(program, limits);
+//
+// Unset limits are unlimited. The command line, batch mode and the daemon
+// read theirs from -Dsetta.limit.steps, .elements, .cardinality and .millis.
+public final class SettaLimits {
+    private static final SettaLimits NONE = new SettaLimits(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 0);
+    private static final SettaLimits DEFAULTS = new SettaLimits(
+        Long.getLong("setta.limit.steps", Long.MAX_VALUE),
+        Long.getLong("setta.limit.elements", Long.MAX_VALUE),
+        Long.getLong("setta.limit.cardinality", Long.MAX_VALUE),
+        Long.getLong("setta.limit.millis", 0));
+
+    final long steps;
+    final long elements;
+    final long cardinality;
+    // 0 = no time limit
+    final long millis;
+
+    private SettaLimits(long steps, long elements, long cardinality, long millis) {
+        this.steps = steps;
+        this.elements = elements;
+        this.cardinality = cardinality;
+        this.millis = millis;
+    }
+
+    public static SettaLimits none() {
+        return NONE;
+    }
+
+    // the limits given as system properties
+    public static SettaLimits defaults() {
+        return DEFAULTS;
+    }
+
+    // expressions evaluated, counting every element a comprehension visits
+    public SettaLimits withSteps(long steps) {
+        return new SettaLimits(positive(steps), elements, cardinality, millis);
+    }
+
+    // elements put into the sets the run builds, all of them together
+    public SettaLimits withElements(long elements) {
+        return new SettaLimits(steps, positive(elements), cardinality, millis);
+    }
+
+    // elements in any one set
+    public SettaLimits withCardinality(long cardinality) {
+        return new SettaLimits(steps, elements, positive(cardinality), millis);
+    }
+
+    public SettaLimits withTime(Duration time) {
+        if (time.isNegative() || time.isZero()) throw new IllegalArgumentException("A limit must be positive.");
+        return new SettaLimits(steps, elements, cardinality, Math.max(1, time.toMillis()));
+    }
+
+    private static long positive(long limit) {
+        if (limit <= 0) throw new IllegalArgumentException("A limit must be positive.");
+        return limit;
+    }
+}
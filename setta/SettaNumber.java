@@ -0,0 +1,149 @@
+package setta;
+
+// Numbers are either a Long (whole values) or a Double (everything else).
+// Every result goes through of(), so 1 and 1.0 end up as the same Long and
+// equality/hashing inside sets does not depend on how a value was written.
+// -0.0, NaN, infinities and whole values beyond 2^53 stay Double so they
+// print, round and compare exactly like they did when everything was a
+// double; every Long is a value a double holds exactly.
+final class SettaNumber {
+    private static final long CACHE_LOW = -1024;
+    private static final long CACHE_HIGH = 4095;
+    private static final Long[] CACHE = new Long[(int) (CACHE_HIGH - CACHE_LOW + 1)];
+    private static final long NEGATIVE_ZERO_BITS = Double.doubleToRawLongBits(-0.0);
+    private static final Double NEGATIVE_ZERO = -0.0;
+
+    static {
+        for (int i = 0; i < CACHE.length; i++) {
+            CACHE[i] = Long.valueOf(CACHE_LOW + i);
+        }
+    }
+
+    private SettaNumber() {
+    }
+
+    // whole values up to this magnitude are exact as doubles, and are Longs
+    static final long EXACT = 1L << 53;
+
+    static Object of(long value) {
+        if (value >= CACHE_LOW && value <= CACHE_HIGH) {
+            return CACHE[(int) (value - CACHE_LOW)];
+        }
+        // what a double would have rounded the result to
+        if (value < -EXACT || value > EXACT) return of((double) value);
+        return Long.valueOf(value);
+    }
+
+    static Object of(double value) {
+        if (isWhole(value)) return of((long) value);
+        return Double.valueOf(value);
+    }
+
+    // true when the double is a whole value a Long holds (and is not -0.0)
+    static boolean isWhole(double value) {
+        return value >= -EXACT && value <= EXACT && value == Math.rint(value)
+            && Double.doubleToRawLongBits(value) != NEGATIVE_ZERO_BITS;
+    }
+
+    static boolean isNumber(Object value) {
+        return value instanceof Long || value instanceof Double;
+    }
+
+    static double toDouble(Object value) {
+        return ((Number) value).doubleValue();
+    }
+
+    //#region ARITHMETIC
+    static Object add(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            long x = (Long) left;
+            long y = (Long) right;
+            long r = x + y;
+            if (((x ^ r) & (y ^ r)) < 0) return of((double) x + (double) y);
+            return of(r);
+        }
+        return of(toDouble(left) + toDouble(right));
+    }
+
+    static Object subtract(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            long x = (Long) left;
+            long y = (Long) right;
+            long r = x - y;
+            if (((x ^ y) & (x ^ r)) < 0) return of((double) x - (double) y);
+            return of(r);
+        }
+        return of(toDouble(left) - toDouble(right));
+    }
+
+    static Object multiply(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            long x = (Long) left;
+            long y = (Long) right;
+            long r = x * y;
+            if (Math.multiplyHigh(x, y) != (r >> 63)) return of((double) x * (double) y);
+            // 0 * -5 is -0.0 with doubles
+            if (r == 0 && (x < 0 || y < 0)) return NEGATIVE_ZERO;
+            return of(r);
+        }
+        return of(toDouble(left) * toDouble(right));
+    }
+
+    static Object divide(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            long x = (Long) left;
+            long y = (Long) right;
+            if (y != 0 && x % y == 0 && x != 0 && !(x == Long.MIN_VALUE && y == -1)) {
+                return of(x / y);
+            }
+        }
+        return of(toDouble(left) / toDouble(right));
+    }
+
+    static Object modulo(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            long x = (Long) left;
+            long y = (Long) right;
+            if (y != 0) {
+                long r = x % y;
+                // -4 % 2 is -0.0 with doubles
+                if (r == 0 && x < 0) return NEGATIVE_ZERO;
+                return of(r);
+            }
+        }
+        return of(toDouble(left) % toDouble(right));
+    }
+
+    static Object negate(Object operand) {
+        if (operand instanceof Long) {
+            long x = (Long) operand;
+            if (x == 0) return NEGATIVE_ZERO;
+            if (x == Long.MIN_VALUE) return of(-(double) x);
+            return of(-x);
+        }
+        return of(-toDouble(operand));
+    }
+    //#endregion
+
+    //#region COMPARISON
+    static boolean greater(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) return (Long) left > (Long) right;
+        return toDouble(left) > toDouble(right);
+    }
+
+    static boolean greaterEqual(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) return (Long) left >= (Long) right;
+        return toDouble(left) >= toDouble(right);
+    }
+
+    static boolean less(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) return (Long) left < (Long) right;
+        return toDouble(left) < toDouble(right);
+    }
+
+    static boolean lessEqual(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) return (Long) left <= (Long) right;
+        return toDouble(left) <= toDouble(right);
+    }
+    //#endregion
+}
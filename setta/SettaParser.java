@@ -1,7 +1,12 @@
 package setta;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import static setta.SettaTokenType.*;
 
 public class SettaParser {
@@ -9,10 +14,33 @@ public class SettaParser {
   }
 
   private final List<SettaToken> tokens;
+  private final ErrorReporter reporter;
+  // names a later "v in E" of a comprehension tests rather than binds: those
+  // of earlier let and def statements (and whatever the caller already had
+  // defined), the parameters of the def being parsed and the variables of
+  // the comprehensions around it
+  private final Set<String> declared;
+  private final List<SettaToken> bound = new ArrayList<>();
+  // if not null, those names where each statement and each comprehension
+  // with several generators starts, by its first token
+  private final Map<SettaToken, Set<String>> scopes;
   private int current = 0;
 
-  SettaParser(List<SettaToken> tokens) {
+  SettaParser(List<SettaToken> tokens, ErrorReporter reporter) {
+    this(tokens, reporter, new HashSet<>());
+  }
+
+  // let and def statements add their names to declared
+  SettaParser(List<SettaToken> tokens, ErrorReporter reporter, Set<String> declared) {
+    this(tokens, reporter, declared, null);
+  }
+
+  SettaParser(List<SettaToken> tokens, ErrorReporter reporter, Set<String> declared,
+      Map<SettaToken, Set<String>> scopes) {
     this.tokens = tokens;
+    this.reporter = reporter;
+    this.declared = declared;
+    this.scopes = scopes;
   }
 
   // declaration* EOF
@@ -26,6 +54,8 @@ public class SettaParser {
 
   // declaration -> funDecl | letDecl | statement ;
   private Stmt declaration() {
+    if (scopes != null)
+      scopes.put(peek(), new HashSet<>(declared));
     try {
       if (match(DEF))
         return funDecl();
@@ -35,22 +65,38 @@ public class SettaParser {
     } catch (ParseError e) {
       synchronize();
       return null;
+    } catch (StackOverflowError e) {
+      // set literals, calls and comprehensions still recurse
+      error(peek(), "Expression is nested too deeply.");
+      synchronize();
+      return null;
     }
   }
 
   // funDecl -> "def" IDENTIFIER "(" parameters? ")" "=" expression ;
   private Stmt funDecl() {
     SettaToken name = consume(IDENTIFIER, "Expect function name.");
+    declared.add(name.lexeme);
     consume(LEFT_PAREN, "Expect '(' after function name.");
     List<SettaToken> parameters = new ArrayList<>();
     if (!check(RIGHT_PAREN)) {
       do {
-        parameters.add(consume(IDENTIFIER, "Expect parameter name."));
+        SettaToken parameter = consume(IDENTIFIER, "Expect parameter name.");
+        if (declares(parameters, parameter)) {
+          error(parameter, "Already a parameter with this name.");
+        }
+        parameters.add(parameter);
       } while (match(COMMA));
     }
     consume(RIGHT_PAREN, "Expect ')' after parameters.");
     consume(EQUAL, "Expect '=' after ')'.");
-    Expr body = expression();
+    bound.addAll(parameters);
+    Expr body;
+    try {
+      body = expression();
+    } finally {
+      bound.clear();
+    }
     consume(SEMICOLON, "Expect ';' after function declaration.");
     return new Stmt.Fun(name, parameters, body);
   }
@@ -61,6 +107,7 @@ public class SettaParser {
     consume(EQUAL, "Expect '=' after name.");
     Expr value = expression();
     consume(SEMICOLON, "Expect ';' after value.");
+    declared.add(name.lexeme);
     return new Stmt.Let(name, value);
   }
 
@@ -88,148 +135,166 @@ public class SettaParser {
     return new Stmt.Expression(expr);
   }
 
-  // expression -> assignment
-  private Expr expression() {
-    return assignment(); //equality();
-  }
-
-  // assignment -> IDENTIFIER "=" assignment | equality ;
-  private Expr assignment() {
-    Expr expr = equality();
-
-    if (match(EQUAL)) {
-      SettaToken equals = previous();
-      Expr value = assignment();
-
-      if (expr instanceof Expr.Variable) {
-        SettaToken name = ((Expr.Variable) expr).name;
-        return new Expr.Assign(name, value);
-      }
-      error(equals, "Invalid assignment target.");
-    }
-    return expr;
-  }
-
-  // equality -> comparison ( ("==" | "!=") comparison )* ;
-  private Expr equality() {
-    Expr expr = comparison();
-    while (match(EQUAL_EQUAL, BANG_EQUAL)) {
-      SettaToken operator = previous();
-      Expr right = comparison();
-      expr = new Expr.Binary(expr, operator, right);
+  //#region Operators
+  // Expressions are parsed with explicit operand and operator stacks
+  // (shunting-yard) instead of recursing once per operator or parenthesis,
+  // so machine-generated input like A1 union A2 union ... or ((((x)))) can be
+  // nested arbitrarily deep. Precedence of the binary operators, lowest to
+  // highest:
+  //   assignment   =                        (right associative)
+  //   equality     == !=
+  //   comparison   subseteq > >= < <=
+  //   subset       in
+  //   union        union
+  //   intersection intersect
+  //   product      X
+  //   difference   symdiff
+  //   term         + -                      ("-" is also set difference)
+  //   factor       * / %
+  // followed by unary "-" / "!" and calls, which bind tighter than all of them.
+  private static final int ASSIGNMENT = 1;
+  private static final int EQUALITY = 2;
+  private static final int COMPARISON = 3;
+  private static final int SUBSET = 4;
+  private static final int UNION_LEVEL = 5;
+  private static final int INTERSECTION = 6;
+  private static final int PRODUCT = 7;
+  private static final int DIFFERENCE = 8;
+  private static final int TERM = 9;
+  private static final int FACTOR = 10;
+  private static final int PREFIX = 11;
+
+  // token type ordinal -> precedence as an infix operator, 0 if it isn't one
+  private static final int[] PRECEDENCE = new int[SettaTokenType.values().length];
+
+  static {
+    PRECEDENCE[EQUAL.ordinal()] = ASSIGNMENT;
+    PRECEDENCE[EQUAL_EQUAL.ordinal()] = EQUALITY;
+    PRECEDENCE[BANG_EQUAL.ordinal()] = EQUALITY;
+    PRECEDENCE[SUBSETEQ.ordinal()] = COMPARISON;
+    PRECEDENCE[GREATER.ordinal()] = COMPARISON;
+    PRECEDENCE[GREATER_EQUAL.ordinal()] = COMPARISON;
+    PRECEDENCE[LESS.ordinal()] = COMPARISON;
+    PRECEDENCE[LESS_EQUAL.ordinal()] = COMPARISON;
+    PRECEDENCE[IN.ordinal()] = SUBSET;
+    PRECEDENCE[UNION.ordinal()] = UNION_LEVEL;
+    PRECEDENCE[INTERSECT.ordinal()] = INTERSECTION;
+    PRECEDENCE[TIMES.ordinal()] = PRODUCT;
+    PRECEDENCE[SYMDIFF.ordinal()] = DIFFERENCE;
+    PRECEDENCE[PLUS.ordinal()] = TERM;
+    PRECEDENCE[MINUS.ordinal()] = TERM;
+    PRECEDENCE[STAR.ordinal()] = FACTOR;
+    PRECEDENCE[SLASH.ordinal()] = FACTOR;
+    PRECEDENCE[PERCENT.ordinal()] = FACTOR;
+  }
+
+  // An operator waiting for its operands, or an open "(" (precedence 0)
+  // collecting the elements of a grouping or tuple.
+  private static class Pending {
+    final SettaToken token;
+    final int precedence;
+    final List<Expr> elements;
+
+    Pending(SettaToken token, int precedence) {
+      this.token = token;
+      this.precedence = precedence;
+      this.elements = precedence == 0 ? new ArrayList<>() : null;
     }
-    return expr;
-  }
-
-  // comparison -> subset ( ( "subseteq" | ">" | ">=" | "<" | "<=" ) subset)* ;
-  private Expr comparison() {
-    Expr expr = subset();
-    while (match(SUBSETEQ, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-      SettaToken operator = previous();
-      Expr right = subset();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-    return expr;
   }
 
-  // subset -> union ( "in" union )* ;
-  private Expr subset() {
-    Expr expr = union();
-    while (match(IN)) {
-      SettaToken operator = previous();
-      Expr right = union();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-    return expr;
-  }
+  // expression -> assignment
+  private Expr expression() {
+    Deque<Expr> operands = new ArrayDeque<>();
+    Deque<Pending> operators = new ArrayDeque<>();
 
-  // union -> intersection ( "union" intersection )* ;
-  private Expr union() {
-    Expr expr = intersection();
-    while (match(UNION)) {
-      SettaToken operator = previous();
-      Expr right = intersection();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-    return expr;
-  }
+    while (true) {
+      // unary -> ( "-" | "!" ) unary | call ; and "(" opening a grouping or tuple
+      while (true) {
+        SettaTokenType type = peek().type;
+        if (type == MINUS || type == BANG) {
+          operators.push(new Pending(advance(), PREFIX));
+        } else if (type == LEFT_PAREN) {
+          operators.push(new Pending(advance(), 0));
+        } else {
+          break;
+        }
+      }
+      operands.push(calls(primary()));
+
+      // then binary operators, and "," / ")" of the innermost open parenthesis
+      while (true) {
+        SettaTokenType type = peek().type;
+        int precedence = PRECEDENCE[type.ordinal()];
+        if (precedence != 0) {
+          // assignment is right associative, the others left associative
+          reduce(operands, operators, precedence == ASSIGNMENT ? ASSIGNMENT + 1 : precedence);
+          operators.push(new Pending(advance(), precedence));
+          break;
+        }
 
-  // difference ( "intersect" difference )* ;
-  private Expr intersection() {
-    Expr expr = product();
-    while (match(INTERSECT)) {
-      SettaToken operator = previous();
-      Expr right = product();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-    return expr;
-  }
+        reduce(operands, operators, ASSIGNMENT);
+        Pending group = operators.peek();
+        if (group == null || (type != COMMA && type != RIGHT_PAREN)) {
+          if (group != null) {
+            throw error(peek(), group.elements.isEmpty()
+                ? "Expect ')' after expression." : "Expect ')' after tuple.");
+          }
+          return operands.pop();
+        }
 
-  // product -> intersection ( "X" intersection )*
-  private Expr product() {
-    Expr expr = difference();
-    while (match(TIMES)) {
-      SettaToken operator = previous();
-      Expr right = difference();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-    return expr;
-  }
+        advance();
+        group.elements.add(operands.pop());
+        if (type == COMMA)
+          break;
 
-  // difference -> term ( "-" term )* ;
-  private Expr difference() {
-    Expr expr = term();
-    while (match(MINUS)) {
-      SettaToken operator = previous();
-      Expr right = term();
-      expr = new Expr.Binary(expr, operator, right);
+        // "(" expression ")" -> grouping, "(" expression ( "," expression )+ ")" -> tuple
+        operators.pop();
+        Expr closed = group.elements.size() == 1
+            ? new Expr.Grouping(group.elements.get(0))
+            : new Expr.TupleLiteral(group.elements);
+        operands.push(calls(closed));
+      }
     }
-    return expr;
   }
 
-  // term -> factor ( ( "+" | "-" ) factor )* ;
-  private Expr term() {
-    Expr expr = factor();
-    while (match(PLUS, MINUS)) {
-      SettaToken operator = previous();
-      Expr right = factor();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-    return expr;
-  }
+  // Applies pending operators down to the nearest "(" while they bind at
+  // least as tightly as minPrecedence.
+  private void reduce(Deque<Expr> operands, Deque<Pending> operators, int minPrecedence) {
+    while (!operators.isEmpty()) {
+      Pending pending = operators.peek();
+      if (pending.precedence == 0 || pending.precedence < minPrecedence)
+        return;
+      operators.pop();
 
-  // factor -> unary ( ( "*" | "/" | "%" ) unary )* ;
-  private Expr factor() {
-    Expr expr = unary();
-    while (match(STAR, SLASH, PERCENT)) {
-      SettaToken operator = previous();
-      Expr right = unary();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-    return expr;
-  }
+      Expr right = operands.pop();
+      if (pending.precedence == PREFIX) {
+        operands.push(new Expr.Unary(pending.token, right));
+        continue;
+      }
 
-  // unary -> ( "-" | "!" ) unary | call ;
-  private Expr unary() {
-    if (match(MINUS, BANG)) {
-      SettaToken operator = previous();
-      Expr right = unary();
-      return new Expr.Unary(operator, right);
+      Expr left = operands.pop();
+      // IDENTIFIER "=" assignment
+      if (pending.precedence == ASSIGNMENT) {
+        if (left instanceof Expr.Variable) {
+          operands.push(new Expr.Assign(((Expr.Variable) left).name, right));
+        } else {
+          error(pending.token, "Invalid assignment target.");
+          operands.push(left);
+        }
+        continue;
+      }
+      operands.push(new Expr.Binary(left, pending.token, right));
     }
-    return call();
   }
 
   // call -> primary ( "(" arguments? ")" )* ;
-  private Expr call() {
-    Expr expr = primary();
-    while (true) {
-      if (match(LEFT_PAREN)) {
-        expr = finishCall(expr);
-      } else
-        break;
+  private Expr calls(Expr expr) {
+    while (match(LEFT_PAREN)) {
+      expr = finishCall(expr);
     }
     return expr;
   }
+  //#endregion
 
   // finishCall same as lox, has 255 arg limit
   private Expr finishCall(Expr callee) {
@@ -267,12 +332,19 @@ public class SettaParser {
     if (match(IDENTIFIER))
       return new Expr.Variable(previous());
 
-    if (match(LEFT_PAREN)) {
-      Expr expr = expression();
-      consume(RIGHT_PAREN, "Expect ')' after expression.");
-      return new Expr.Grouping(expr);
+    // "if" expression "then" expression "else" expression; the else branch
+    // reaches as far right as it can, so wrap the whole thing in ( ) to use it
+    // as an operand
+    if (match(IF)) {
+      Expr condition = expression();
+      consume(THEN, "Expect 'then' after condition.");
+      Expr thenBranch = expression();
+      consume(ELSE, "Expect 'else' after then branch.");
+      return new Expr.Conditional(condition, thenBranch, expression());
     }
 
+    // groupings and tuples are opened by expression() itself
+
     if (match(LEFT_BRACE))
       return setLiteralOrComprehension();
 
@@ -284,20 +356,42 @@ public class SettaParser {
     if (match(RIGHT_BRACE)) {
       return new Expr.SetLiteral(new ArrayList<>()); // empty set {}
     }
+    SettaToken brace = previous();
+    Set<String> around = scopes == null ? null : names();
 
     Expr first = expression();
 
-    // builder form: { expr | x in expr (, expr)? }
+    // builder form: { expr | x in expr ( "," ( y in expr | expr ) )* }
+    // "y in expr" is another generator unless y already names something:
+    // a let or def, a parameter or a variable of this comprehension or one
+    // around it. Then it is a membership condition.
     if (match(PIPE)) {
-      SettaToken variable = consume(IDENTIFIER, "Expect variable name after '|'.");
-      consume(IN, "Expect 'in' after variable name.");
-      Expr domain = expression();
-      Expr condition = null;
-      if (match(COMMA)) {
-        condition = expression();
+      List<SettaToken> variables = new ArrayList<>();
+      List<Expr> domains = new ArrayList<>();
+      List<Expr> conditions = new ArrayList<>();
+      int outer = bound.size();
+      try {
+        variables.add(consume(IDENTIFIER, "Expect variable name after '|'."));
+        consume(IN, "Expect 'in' after variable name.");
+        domains.add(expression());
+        bound.add(variables.get(0));
+        while (match(COMMA)) {
+          if (check(IDENTIFIER) && peekNext().type == IN && !names(peek())) {
+            variables.add(advance());
+            bound.add(previous());
+            advance();
+            domains.add(expression());
+          } else {
+            conditions.add(expression());
+          }
+        }
+      } finally {
+        bound.subList(outer, bound.size()).clear();
       }
       consume(RIGHT_BRACE, "Expect '}' after comprehension.");
-      return new Expr.Comprehension(first, variable, domain, condition);
+      if (around != null && variables.size() > 1)
+        scopes.put(brace, around);
+      return new Expr.Comprehension(first, variables, domains, conditions);
     }
 
     // roster form: { e1, e2, ... }
@@ -329,12 +423,10 @@ public class SettaParser {
   }
 
   //#region Helper Methods
-  private boolean match(SettaTokenType... types) {
-    for (SettaTokenType type : types) {
-      if (check(type)) {
-        advance();
-        return true;
-      }
+  private boolean match(SettaTokenType type) {
+    if (check(type)) {
+      advance();
+      return true;
     }
     return false;
   }
@@ -359,6 +451,30 @@ public class SettaParser {
     return tokens.get(current);
   }
 
+  private SettaToken peekNext() {
+    return tokens.get(Math.min(current + 1, tokens.size() - 1));
+  }
+
+  private boolean names(SettaToken name) {
+    return declared.contains(name.lexeme) || declares(bound, name);
+  }
+
+  private Set<String> names() {
+    Set<String> names = new HashSet<>(declared);
+    for (SettaToken variable : bound) {
+      names.add(variable.lexeme);
+    }
+    return names;
+  }
+
+  private static boolean declares(List<SettaToken> variables, SettaToken name) {
+    for (SettaToken variable : variables) {
+      if (variable.lexeme.equals(name.lexeme))
+        return true;
+    }
+    return false;
+  }
+
   private SettaToken previous() {
     return tokens.get(current - 1);
   }
@@ -370,7 +486,7 @@ public class SettaParser {
   }
 
   private ParseError error(SettaToken token, String message) {
-    Setta.error(token.line, message);
+    reporter.error(token.line, message);
     return new ParseError();
   }
 //#endregion
@@ -0,0 +1,25 @@
+package setta;
+
+import java.util.List;
+
+// A compiled script, with its repeated expressions already marked for
+// caching (see CommonSubexpressions). The statement list and the AST under
+// it are never modified after that, so one program can be run by many
+// threads at once.
+public final class SettaProgram {
+    final List<Stmt> statements;
+    private final List<SettaError> errors;
+
+    SettaProgram(List<Stmt> statements, List<SettaError> errors) {
+        this.statements = List.copyOf(statements);
+        this.errors = List.copyOf(errors);
+    }
+
+    public boolean isValid() {
+        return errors.isEmpty();
+    }
+
+    public List<SettaError> errors() {
+        return errors;
+    }
+}
@@ -0,0 +1,33 @@
+package setta;
+
+import java.util.List;
+
+// Everything a single run produced: what it printed, the errors it hit and
+// the exit code the command line would have used (0, 65 or 70).
+public final class SettaResult {
+    private final String output;
+    private final List<SettaError> errors;
+    private final int exitCode;
+
+    SettaResult(String output, List<SettaError> errors, int exitCode) {
+        this.output = output;
+        this.errors = List.copyOf(errors);
+        this.exitCode = exitCode;
+    }
+
+    public String output() {
+        return output;
+    }
+
+    public List<SettaError> errors() {
+        return errors;
+    }
+
+    public int exitCode() {
+        return exitCode;
+    }
+
+    public boolean succeeded() {
+        return exitCode == 0;
+    }
+}
@@ -0,0 +1,417 @@
+package setta;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import static setta.SettaTokenType.*;
+
+// What a script compiled by SettaCompiler runs on. The compiled class does
+// the walking of the syntax tree itself, in Java, and calls in here for
+// everything else, which is the interpreter's own code: values, operators,
+// pipelines, builtins, error messages. So it prints exactly what the
+// interpreter would.
+//
+// The compiler writes four tables into the class, each as strings cut into
+// pieces small enough for a class file: the names of the script's
+// variables, the tokens errors can point at (everything else refers to them
+// by index), fragments, the few statements and expressions left to the
+// interpreter (see SettaCompiler), which are parsed from their tokens once,
+// here, and the repeated expressions CommonSubexpressions found.
+public final class SettaRuntime {
+    // separates the entries of a table
+    static final char SEPARATOR = '\u0000';
+
+    private final Interpreter interpreter;
+    private final Environment environment;
+    private final OutputSink out = new OutputSink(System.out);
+    private final SettaToken[] tokens;
+    private final Variable[] variables;
+    private final List<Stmt> fragments = new ArrayList<>();
+    // results of the repeated expressions, or null with -Dsetta.cse=false
+    private final CommonSubexpressions common =
+        CommonSubexpressions.ENABLED ? new CommonSubexpressions() : null;
+    private final List<Expr.Cached> cached = new ArrayList<>();
+    private boolean hadRuntimeError = false;
+
+    public SettaRuntime(String[] names, String[] tokens, String[] fragments, String[] cached) {
+        Environment globals = new Environment();
+        Builtins.define(globals);
+        globals.freeze();
+        ErrorReporter reporter = new ErrorReporter() {
+            @Override
+            public void error(int line, String message) {
+                throw new IllegalStateException("[line " + line + "] Error: " + message);
+            }
+
+            @Override
+            public void runtimeError(RuntimeError error) {
+                // as Setta prints it
+                String where = error.token == null ? "" : "\n[line " + error.token.line + "]";
+                System.err.println(error.getMessage() + where);
+                hadRuntimeError = true;
+            }
+        };
+        this.interpreter = new Interpreter(globals, out, reporter);
+        this.environment = interpreter.environment();
+
+        List<String> entries = entries(names);
+        this.variables = new Variable[entries.size()];
+        for (int i = 0; i < variables.length; i++) {
+            variables[i] = new Variable(entries.get(i));
+        }
+
+        // TYPE line lexeme
+        entries = entries(tokens);
+        this.tokens = new SettaToken[entries.size()];
+        for (int i = 0; i < this.tokens.length; i++) {
+            String[] parts = entries.get(i).split(" ", 3);
+            SettaTokenType type = SettaTokenType.valueOf(parts[0]);
+            Object literal = type == NUMBER ? SettaScanner.numberValue(parts[2], parts[2].indexOf('.') < 0)
+                : type == STRING ? parts[2].substring(1, parts[2].length() - 1)
+                : null;
+            this.tokens[i] = new SettaToken(type, parts[2], literal, Integer.parseInt(parts[1]));
+        }
+
+        // a fragment is a statement's tokens, first and last in the table,
+        // then the names the parser is to take as defined
+        for (String range : entries(fragments)) {
+            String[] bounds = range.split(" ");
+            int first = Integer.parseInt(bounds[0]);
+            int last = Integer.parseInt(bounds[1]);
+            Set<String> defined = new HashSet<>(Arrays.asList(bounds).subList(2, bounds.length));
+            List<SettaToken> statement = new ArrayList<>(Arrays.asList(this.tokens).subList(first, last + 1));
+            statement.add(new SettaToken(EOF, "", null, this.tokens[last].line));
+            this.fragments.add(new SettaParser(statement, reporter, defined).program().get(0));
+        }
+
+        // key input ...; the expression itself is compiled
+        for (String expression : entries(cached)) {
+            String[] parts = expression.split(" ");
+            List<String> inputs = Arrays.asList(parts).subList(1, parts.length);
+            this.cached.add(new Expr.Cached(null, Integer.parseInt(parts[0]), inputs));
+        }
+    }
+
+    private static List<String> entries(String[] pieces) {
+        String table = String.join("", pieces);
+        List<String> entries = new ArrayList<>();
+        if (table.isEmpty()) return entries;
+        int start = 0;
+        for (int i = 0; i <= table.length(); i++) {
+            if (i == table.length() || table.charAt(i) == SEPARATOR) {
+                entries.add(table.substring(start, i));
+                start = i + 1;
+            }
+        }
+        return entries;
+    }
+
+    public Variable[] variables() {
+        return variables;
+    }
+
+    // Runs the script and returns the exit code Setta would: 70 after a
+    // runtime error, 0 otherwise.
+    public int run(Runnable script) {
+        interpreter.run(script);
+        out.flush();
+        interpreter.close();
+        return hadRuntimeError ? 70 : 0;
+    }
+
+    public void endStatement() {
+        interpreter.endStatement();
+    }
+
+    public void print(Object value) {
+        interpreter.print(value);
+    }
+
+    //#region Values
+    public static Object number(long value) {
+        return SettaNumber.of(value);
+    }
+
+    public static Object number(double value) {
+        return SettaNumber.of(value);
+    }
+
+    // The literals of a large constant set literal, written by the compiler
+    // as L<whole number>, D<bits of a double in hex>, S<length>:<string>, T
+    // or F, one after the other.
+    public static Object[] constants(String... pieces) {
+        String table = String.join("", pieces);
+        List<Object> values = new ArrayList<>();
+        int i = 0;
+        while (i < table.length()) {
+            char tag = table.charAt(i++);
+            if (tag == 'T' || tag == 'F') {
+                values.add(tag == 'T');
+                continue;
+            }
+            int end = tag == 'S' ? table.indexOf(':', i) : table.indexOf(',', i);
+            String text = table.substring(i, end);
+            if (tag == 'L') {
+                values.add(SettaNumber.of(Long.parseLong(text)));
+                i = end + 1;
+            } else if (tag == 'D') {
+                values.add(SettaNumber.of(Double.longBitsToDouble(Long.parseUnsignedLong(text, 16))));
+                i = end + 1;
+            } else {
+                int length = Integer.parseInt(text);
+                values.add(table.substring(end + 1, end + 1 + length));
+                i = end + 1 + length;
+            }
+        }
+        return values.toArray();
+    }
+
+    public Object set(Object[] elements) {
+        SetBuilder result = new SetBuilder(elements.length);
+        for (Object element : elements) {
+            result.add(element);
+        }
+        return result.build();
+    }
+
+    public Object tuple(Object[] elements) {
+        return Tuple.of(elements);
+    }
+
+    public Object materialize(Object value) {
+        return Interpreter.materialize(value);
+    }
+
+    public boolean isTrue(Object value) {
+        return interpreter.isTrue(value);
+    }
+    //#endregion
+
+    //#region Operators
+    public Object unary(int token, Object value) {
+        return interpreter.applyUnary(tokens[token], value);
+    }
+
+    public Object binary(int token, Object left, Object right) {
+        return interpreter.applyBinary(tokens[token], left, right);
+    }
+
+    public Object cardinality(Object value) {
+        return Interpreter.cardinality(value);
+    }
+
+    // A run of binary operators nested to the left, like A - B - C. As in
+    // Interpreter.visitBinaryExpr, runs of union, intersect and - on sets are
+    // computed in one go, and comprehensions stay unbuilt where an operator
+    // can stream them. leftmost and every right operand come in unbuilt.
+    public Spine spine(int first, Object leftmost) {
+        return new Spine(Interpreter.fuses(tokens[first]) ? leftmost : Interpreter.materialize(leftmost));
+    }
+
+    public final class Spine {
+        private Object left;
+        private int stages = 0;
+        // the run of one operator being computed in one go, if any
+        private SettaTokenType chain;
+        private List<Set<?>> sets;
+
+        private Spine(Object left) {
+            this.left = left;
+        }
+
+        // before the right operand of token; next is the operator after it, or -1
+        public void begin(int token, int next) {
+            if (chain != null) return;
+            if (left instanceof SetPipeline && ++stages > SetPipeline.MAX_STAGES) {
+                left = Interpreter.materialize(left);
+                stages = 0;
+            }
+            SettaTokenType type = tokens[token].type;
+            if ((type == UNION || type == INTERSECT || (type == MINUS && Interpreter.isSetValue(left)))
+                    && next >= 0 && tokens[next].type == type) {
+                chain = type;
+                left = Interpreter.materialize(left);
+                sets = new ArrayList<>();
+            } else if (!Interpreter.fuses(type)) {
+                left = Interpreter.materialize(left);
+            }
+        }
+
+        // before a right operand that must run after the left (see
+        // Interpreter.inWrittenOrder)
+        public void build() {
+            left = Interpreter.materialize(left);
+        }
+
+        public void end(int token, int next, Object right) {
+            if (chain != null) {
+                right = Interpreter.materialize(right);
+                Interpreter.checkSetOperands(left, right);
+                if (sets.isEmpty()) sets.add((Set<?>) left);
+                sets.add((Set<?>) right);
+                if (next < 0 || tokens[next].type != chain) {
+                    left = Interpreter.chainAll(chain, sets);
+                    chain = null;
+                    sets = null;
+                }
+                return;
+            }
+            if (!Interpreter.fuses(tokens[token].type)) right = Interpreter.materialize(right);
+            left = interpreter.applyBinary(tokens[token], left, right);
+        }
+
+        public Object result() {
+            return left;
+        }
+    }
+
+    // S = S op R where S held the only reference to its set
+    public static boolean isUniquelyBound(Object value) {
+        return Interpreter.isUniquelyBound(value);
+    }
+
+    public Object update(int token, Object target, Object right) {
+        return interpreter.update(tokens[token], (SettaSet) target, right);
+    }
+    //#endregion
+
+    //#region Comprehensions
+    // { body | variable in domain, ... } with one generator. accepts binds
+    // the variable and checks the conditions; body is null when the element
+    // is the variable itself.
+    public Object comprehension(Object domain, int variable, Predicate<Object> accepts, Supplier<Object> body) {
+        if (!(domain instanceof Set<?>) && !(domain instanceof SetPipeline)) {
+            throw new RuntimeError(tokens[variable], "Right operand of 'in' must be a set.");
+        }
+        return new SetPipeline.Compiled(domain, accepts, body);
+    }
+
+    // an expression fragment, unbuilt
+    public Object evaluate(int fragment) {
+        return ((Stmt.Expression) fragments.get(fragment)).expression.accept(interpreter);
+    }
+
+    public void execute(int fragment) {
+        interpreter.execute(fragments.get(fragment));
+    }
+
+    // as Interpreter.visitCachedExpr: the result of a repeated expression if
+    // its inputs haven't changed, or null
+    public Object lookup(int expression) {
+        return common != null ? common.lookup(cached.get(expression), environment) : null;
+    }
+
+    public void store(int expression, Object value) {
+        if (common != null) common.store(cached.get(expression), environment, value);
+    }
+    //#endregion
+
+    //#region Variables and calls
+    // A variable of the script, outside of any function's frame. Once the
+    // script defines it, the variable keeps its Environment.Cell, so reading
+    // it is a field access; before that, it may be a builtin.
+    public final class Variable {
+        private final String name;
+        private Environment.Cell cell;
+
+        private Variable(String name) {
+            this.name = name;
+        }
+
+        public Object get(int token) {
+            if (cell == null) cell = environment.own(name);
+            if (cell != null) return cell.value();
+            return environment.get(tokens[token]);
+        }
+
+        // let, and the variable of a comprehension
+        public void define(Object value) {
+            environment.define(name, value);
+        }
+
+        public Object assign(Object value, int token) {
+            environment.assign(tokens[token], value);
+            return value;
+        }
+    }
+
+    // A def function. Its frame is an Object[] laid out as in SettaFunction.
+    public static final class Function implements SettaCallable {
+        private final String name;
+        private final int arity;
+        private final Body body;
+
+        Function(String name, int arity, Body body) {
+            this.name = name;
+            this.arity = arity;
+            this.body = body;
+        }
+
+        @Override
+        public int arity() {
+            return arity;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, Object[] arguments) {
+            return body.call(this, arguments);
+        }
+
+        @Override
+        public String toString() {
+            return "<fn " + name + ">";
+        }
+    }
+
+    public interface Body {
+        Object call(Function self, Object[] arguments);
+    }
+
+    public Function function(String name, int arity, Body body) {
+        return new Function(name, arity, body);
+    }
+
+    public boolean streams(Object callee) {
+        return callee instanceof SettaCallable && ((SettaCallable) callee).streamsArguments();
+    }
+
+    public Object call(int paren, Object callee, Object[] arguments) {
+        return interpreter.call(tokens[paren], callee, arguments);
+    }
+
+    public void checkArity(int paren, Function function, Object[] arguments) {
+        Interpreter.checkArity(tokens[paren], function, arguments);
+    }
+
+    // a comprehension variable of a function's body, which until its
+    // comprehension binds it means the script's variable
+    public Object slot(Object value, int token) {
+        if (value == null) return environment.get(tokens[token]);
+        return value;
+    }
+
+    // slots count as bindings, like variables (see SettaSet)
+    public static void setSlot(Object[] frame, int slot, Object value) {
+        SettaSet.retain(value);
+        SettaSet.release(frame[slot]);
+        frame[slot] = value;
+    }
+
+    public static void bindParameters(Object[] frame, Object[] arguments) {
+        for (int i = 0; i < arguments.length; i++) {
+            setSlot(frame, i, arguments[i]);
+        }
+    }
+
+    public static void release(Object[] frame) {
+        for (Object value : frame) {
+            SettaSet.release(value);
+        }
+    }
+    //#endregion
+}
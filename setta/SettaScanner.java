@@ -7,13 +7,15 @@ import static setta.SettaTokenType.*;
 
 class SettaScanner {
   private final String source;
+  private final ErrorReporter reporter;
   private final List<SettaToken> tokens = new ArrayList<>();
   private int start = 0;
   private int current = 0;
   private int line = 1;
   
-  SettaScanner(String source) {
+  SettaScanner(String source, ErrorReporter reporter) {
     this.source = source;
+    this.reporter = reporter;
   }
 
 
@@ -40,8 +42,12 @@ class SettaScanner {
   keywords.put("false", FALSE);
   keywords.put("union", UNION);
   keywords.put("intersect", INTERSECT);
+  keywords.put("symdiff", SYMDIFF);
   keywords.put("subseteq", SUBSETEQ);
   keywords.put("in", IN);
+  keywords.put("if", IF);
+  keywords.put("then", THEN);
+  keywords.put("else", ELSE);
 }
   
 
@@ -102,7 +108,7 @@ class SettaScanner {
         } else if (isAlpha(c)) {
           identifier();
         } else {
-          Setta.error(line, "Unexpected character.");
+          reporter.error(line, "Unexpected character.");
         }
         break;
     }
@@ -127,18 +133,28 @@ class SettaScanner {
   }
 
   private void number() {
+    boolean whole = true;
     while (isDigit(peek())) advance();
 
     // Look for a fractional part.
     if (peek() == '.' && isDigit(peekNext())) {
       // Consume the "."
       advance();
+      whole = false;
 
       while (isDigit(peek())) advance();
     }
 
-    addToken(NUMBER,
-        Double.parseDouble(source.substring(start, current)));
+    addToken(NUMBER, numberValue(source.substring(start, current), whole));
+  }
+
+  // Whole literals become Longs; anything else goes through the double
+  // path, which still folds values like 1.0 back into a Long.
+  static Object numberValue(String text, boolean whole) {
+    if (whole && text.length() <= 18) {
+      return SettaNumber.of(Long.parseLong(text));
+    }
+    return SettaNumber.of(Double.parseDouble(text));
   }
 
 
@@ -186,7 +202,7 @@ class SettaScanner {
     }
 
     if (isAtEnd()) {
-      Setta.error(line, "Unterminated string.");
+      reporter.error(line, "Unterminated string.");
       return;
     }
 
@@ -0,0 +1,64 @@
+package setta;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+// A run context that keeps its variables between programs, like the REPL
+// does. Output is buffered and written to the given stream by the end of
+// every run (or earlier, when the buffer fills or the script calls flush()).
+// A session is meant to be used by one thread at a time. Closing it frees
+// the memory of any sets its scripts kept off the heap. Every run gets the
+// session's limits afresh.
+public final class SettaSession implements AutoCloseable {
+    private final Interpreter interpreter;
+    private final OutputSink out;
+    private final Collector errors = new Collector();
+    // names that programs compiled for the session have defined
+    final Set<String> declared;
+
+    SettaSession(Environment globals, PrintStream out, SettaLimits limits) {
+        this.declared = globals.names();
+        this.out = new OutputSink(out);
+        this.interpreter = new Interpreter(globals, this.out, errors, limits);
+    }
+
+    // The result's output is empty; it has already been written to the stream.
+    public SettaResult run(SettaProgram program) {
+        if (!program.isValid()) {
+            return new SettaResult("", program.errors(), 65);
+        }
+
+        errors.errors.clear();
+        try {
+            interpreter.interpret(program.statements);
+        } catch (RuntimeException e) {
+            // anything the interpreter doesn't turn into a RuntimeError itself
+            errors.errors.add(new SettaError(SettaError.Kind.RUNTIME, 0, String.valueOf(e)));
+        }
+        out.flush();
+
+        int exitCode = errors.errors.isEmpty() ? 0 : 70;
+        return new SettaResult("", errors.errors, exitCode);
+    }
+
+    @Override
+    public void close() {
+        interpreter.close();
+    }
+
+    static class Collector implements ErrorReporter {
+        final List<SettaError> errors = new ArrayList<>();
+
+        @Override
+        public void error(int line, String message) {
+            errors.add(new SettaError(SettaError.Kind.SYNTAX, line, message));
+        }
+
+        @Override
+        public void runtimeError(RuntimeError error) {
+            errors.add(SettaError.of(error));
+        }
+    }
+}
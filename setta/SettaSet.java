@@ -0,0 +1,100 @@
+package setta;
+
+import java.util.AbstractSet;
+import java.util.Set;
+
+// Base of the set values the interpreter builds itself (LongSet, ObjectSet,
+// SpilledSet).
+//
+// It counts the variable bindings that share a set, which tells the
+// interpreter when nobody else can see a set so an operator may update it in
+// place instead of copying it (see Interpreter.updateInPlace). Sets that come
+// from anywhere else are never changed.
+//
+// It also caches its hash. Sets of sets are hashed every time an outer set
+// inserts or looks one up, so recomputing it would make nested membership
+// cost the size of the element. Subclasses call invalidateHash() whenever
+// they change, which only happens before the set is visible anywhere.
+abstract class SettaSet extends AbstractSet<Object> {
+    // inside another value, or shared between runs: never changes again
+    static final int PINNED = Integer.MAX_VALUE;
+
+    // 0 while only the evaluator holds the set, then one per binding
+    private int refs = 0;
+    // 0 until computed, like String; hashIsZero marks a real hash of 0
+    private int hash;
+    private boolean hashIsZero;
+
+    // nothing but the current expression holds this set
+    boolean isTemporary() {
+        return refs == 0;
+    }
+
+    // exactly one variable holds this set
+    boolean isUniquelyBound() {
+        return refs == 1;
+    }
+
+    static void retain(Object value) {
+        if (value instanceof SettaSet) {
+            SettaSet set = (SettaSet) value;
+            if (set.refs != PINNED) set.refs++;
+        }
+    }
+
+    static void release(Object value) {
+        if (value instanceof SettaSet) {
+            SettaSet set = (SettaSet) value;
+            if (set.refs != PINNED && set.refs > 0) set.refs--;
+        }
+    }
+
+    static void pin(Object value) {
+        if (value instanceof SettaSet) ((SettaSet) value).refs = PINNED;
+    }
+
+    // Gives back memory or files outside the heap once nothing can reach the
+    // set anymore (see OffHeap).
+    void free() {
+    }
+
+    //#region HASHING AND EQUALITY
+    // the sum of the elements' hashes, as AbstractSet defines it
+    abstract int computeHash();
+
+    final void invalidateHash() {
+        hash = 0;
+        hashIsZero = false;
+    }
+
+    @Override
+    public final int hashCode() {
+        int h = hash;
+        if (h == 0 && !hashIsZero) {
+            h = computeHash();
+            if (h == 0) {
+                hashIsZero = true;
+            } else {
+                hash = h;
+            }
+        }
+        return h;
+    }
+
+    // Size and (cached) hash first; elements are only compared when both match.
+    @Override
+    public final boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof Set<?>)) return false;
+        Set<?> other = (Set<?>) o;
+        if (other.size() != size()) return false;
+        if (other instanceof SettaSet && other.hashCode() != hashCode()) return false;
+        return containsEvery(other);
+    }
+
+    // other has the same size; true if all of its elements are in this set
+    boolean containsEvery(Set<?> other) {
+        return containsAll(other);
+    }
+    //#endregion
+}
@@ -5,14 +5,14 @@ public enum SettaTokenType {
     RIGHT_BRACE, COMMA, PIPE, MINUS, PLUS,
     SLASH, STAR , PERCENT , SEMICOLON , EQUAL , BANG,
 
-   SUBSETEQ , IN , UNION, INTERSECT, GREATER , GREATER_EQUAL 
+   SUBSETEQ , IN , UNION, INTERSECT, SYMDIFF, GREATER , GREATER_EQUAL 
    , LESS , LESS_EQUAL, BANG_EQUAL, EQUAL_EQUAL, TIMES,
 
     //Literals
     IDENTIFIER, STRING, NUMBER,
 
     //Keywords
-    LET , DEF , PRINT , TRUE , FALSE ,
+    LET , DEF , PRINT , TRUE , FALSE , IF , THEN , ELSE ,
 
     //Special 
     EOF
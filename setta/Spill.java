@@ -0,0 +1,203 @@
+package setta;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// Lets sets of whole numbers outgrow the heap. With a memory budget
+// (-Dsetta.memory.budget, e.g. 512m; off by default) a set that grows past
+// LIMIT elements is written to spill files in -Dsetta.spill.dir (the
+// system's temp directory by default) and becomes a SpilledSet (see
+// SetBuilder).
+//
+// Once either operand is spilled, the set operators run here: both sides
+// are read in ascending order, from a SpilledSet's sorted file or a LongSet
+// sorted in budget-sized runs, and merged in one pass. Only a bitmap with
+// one bit per element of an operand is kept in memory. Results keep the
+// same order as the in-memory operators, and spill again if they are big.
+final class Spill {
+    // bytes; 0 = never spill
+    static final long BUDGET = parseBytes(System.getProperty("setta.memory.budget", "0"));
+    // elements a set may hold in memory, at up to 32 bytes each: the value,
+    // room to grow into, the copy made while growing and the hash index
+    static final int LIMIT = BUDGET == 0 ? Integer.MAX_VALUE
+        : (int) Math.max(1024, Math.min(Integer.MAX_VALUE - 8, BUDGET / 32));
+    static final Path DIRECTORY = Paths.get(System.getProperty("setta.spill.dir", System.getProperty("java.io.tmpdir")));
+
+    private Spill() {
+    }
+
+    // "512m", "2g", "65536k" or a number of bytes
+    private static long parseBytes(String text) {
+        String digits = text.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        if (digits.endsWith("k")) unit = 1L << 10;
+        if (digits.endsWith("m")) unit = 1L << 20;
+        if (digits.endsWith("g")) unit = 1L << 30;
+        if (unit != 1) digits = digits.substring(0, digits.length() - 1);
+        try {
+            return Math.max(0, Long.parseLong(digits) * unit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("setta.memory.budget must be a size like 512m, not '" + text + "'.");
+        }
+    }
+
+    static boolean isNumeric(Set<?> set) {
+        return set instanceof LongSet || set instanceof SpilledSet;
+    }
+
+    // the operands should be merged here rather than in memory: one of them
+    // is spilled already, or together they would pass the limit
+    static boolean applies(Set<?> left, Set<?> right, long resultSize) {
+        return isNumeric(left) && isNumeric(right)
+            && (left instanceof SpilledSet || right instanceof SpilledSet || resultSize > LIMIT);
+    }
+
+    //#region Operators
+    static Set<Object> union(Set<?> left, Set<?> right) {
+        long[] repeated = matches(right, left);
+        SpilledSet.Builder result = new SpilledSet.Builder(new LongSet(), true);
+        SpillFile.Cursor a = order(left);
+        while (a.next()) {
+            result.add(a.value());
+        }
+        SpillFile.Cursor b = order(right);
+        while (b.next()) {
+            if (!isSet(repeated, b.position())) result.add(b.value());
+        }
+        return result.build();
+    }
+
+    static Set<Object> intersect(Set<?> left, Set<?> right) {
+        return select(left, matches(left, right), true);
+    }
+
+    static Set<Object> difference(Set<?> left, Set<?> right) {
+        return select(left, matches(left, right), false);
+    }
+
+    static long intersectionSize(Set<?> left, Set<?> right) {
+        long[] found = matches(left, right);
+        long count = 0;
+        for (long word : found) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    static boolean subseteq(Set<?> left, Set<?> right) {
+        return left.size() <= right.size() && intersectionSize(left, right) == left.size();
+    }
+
+    // left's values at the marked positions (keep) or at the others (!keep)
+    private static Set<Object> select(Set<?> left, long[] marked, boolean keep) {
+        SpilledSet.Builder result = new SpilledSet.Builder(new LongSet(), true);
+        SpillFile.Cursor a = order(left);
+        while (a.next()) {
+            if (isSet(marked, a.position()) == keep) result.add(a.value());
+        }
+        return result.build();
+    }
+    //#endregion
+
+    //#region Merging
+    // A bitmap over a's positions: bit i is set when a's i-th value is in b.
+    private static long[] matches(Set<?> a, Set<?> b) {
+        long[] found = new long[(a.size() + 63) >>> 6];
+        List<SpillFile> scratch = new ArrayList<>();
+        try {
+            SpillFile.Cursor x = byValue(a, scratch);
+            SpillFile.Cursor y = byValue(b, scratch);
+            boolean moreX = x.next();
+            boolean moreY = y.next();
+            while (moreX && moreY) {
+                if (x.value() < y.value()) {
+                    moreX = x.next();
+                } else if (x.value() > y.value()) {
+                    moreY = y.next();
+                } else {
+                    found[(int) (x.position() >>> 6)] |= 1L << x.position();
+                    moreX = x.next();
+                    moreY = y.next();
+                }
+            }
+        } finally {
+            for (SpillFile file : scratch) {
+                file.delete();
+            }
+        }
+        return found;
+    }
+
+    private static boolean isSet(long[] bits, long position) {
+        return (bits[(int) (position >>> 6)] & (1L << position)) != 0;
+    }
+
+    // the set's values in insertion order
+    private static SpillFile.Cursor order(Set<?> set) {
+        if (set instanceof SpilledSet) return ((SpilledSet) set).cursor();
+        LongSet longs = (LongSet) set;
+        return new SpillFile.Cursor() {
+            private int index = -1;
+
+            @Override
+            public boolean next() {
+                return ++index < longs.size();
+            }
+
+            @Override
+            public long value() {
+                return longs.longAt(index);
+            }
+
+            @Override
+            public long position() {
+                return index;
+            }
+        };
+    }
+
+    // the set's values in ascending order, with their positions; files it
+    // has to sort into go to scratch, for the caller to delete
+    private static SpillFile.Cursor byValue(Set<?> set, List<SpillFile> scratch) {
+        if (set instanceof SpilledSet) return ((SpilledSet) set).byValue();
+        LongSet longs = (LongSet) set;
+        if (longs.isAscending()) return order(longs);
+        int n = longs.size();
+        // keys and positions, plus SpillFile.sort's copies of both
+        if ((long) n * 4 * Long.BYTES <= BUDGET) {
+            long[] keys = new long[n];
+            long[] positions = new long[n];
+            for (int i = 0; i < n; i++) {
+                keys[i] = longs.longAt(i);
+                positions[i] = i;
+            }
+            SpillFile.sort(keys, positions, n);
+            return new SpillFile.Cursor() {
+                private int index = -1;
+
+                @Override
+                public boolean next() {
+                    return ++index < n;
+                }
+
+                @Override
+                public long value() {
+                    return keys[index];
+                }
+
+                @Override
+                public long position() {
+                    return positions[index];
+                }
+            };
+        }
+        SpillFile sorted = SpillFile.sortPairs(order(longs));
+        scratch.add(sorted);
+        return sorted.pairs();
+    }
+    //#endregion
+}
@@ -0,0 +1,270 @@
+package setta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// A temporary file of longs, written once front to back and then read any
+// number of times (see Spill). Reads go through the file position rather
+// than a shared stream, so several cursors, and several threads, can read
+// the same file at once. The file is deleted when it is freed, or when the
+// JVM exits.
+final class SpillFile {
+    // bytes each reader and writer buffers
+    private static final int BUFFER = 1 << 19;
+
+    private final FileChannel channel;
+    // in longs
+    private long length = 0;
+
+    private SpillFile() {
+        try {
+            Path path = Files.createTempFile(Spill.DIRECTORY, "setta", ".spill");
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                       StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            throw new RuntimeError(null, "Cannot create a spill file in " + Spill.DIRECTORY + ": " + e.getMessage());
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    void delete() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // the file is gone with the JVM at the latest
+        }
+    }
+
+    // the long at index, read on its own (for binary searches)
+    long get(long index) {
+        ByteBuffer one = ByteBuffer.allocate(Long.BYTES);
+        read(one, index * Long.BYTES);
+        return one.getLong(0);
+    }
+
+    private void read(ByteBuffer buffer, long position) {
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Spill file ended early.");
+                }
+            }
+        } catch (IOException e) {
+            throw failed(e);
+        }
+    }
+
+    // a full disk is the script's problem, reported like any runtime error
+    private static RuntimeError failed(IOException e) {
+        return new RuntimeError(null, "Spill file error: " + e.getMessage());
+    }
+
+    //#region Writing
+    static final class Writer {
+        final SpillFile file = new SpillFile();
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+
+        void write(long value) {
+            if (!buffer.hasRemaining()) drain();
+            buffer.putLong(value);
+        }
+
+        // the finished file; the writer can't be used afterwards
+        SpillFile finish() {
+            drain();
+            return file;
+        }
+
+        private void drain() {
+            buffer.flip();
+            long at = file.length * Long.BYTES;
+            try {
+                while (buffer.hasRemaining()) {
+                    at += file.channel.write(buffer, at);
+                }
+                file.length = at / Long.BYTES;
+            } catch (IOException e) {
+                throw failed(e);
+            }
+            buffer.clear();
+        }
+    }
+    //#endregion
+
+    //#region Reading
+    // Walks a sequence of whole numbers. For a plain file position() is the
+    // index of value(); for a file of (value, position) pairs it is the
+    // stored position.
+    interface Cursor {
+        boolean next();
+
+        long value();
+
+        long position();
+    }
+
+    Cursor values() {
+        return new Reader(BUFFER, false);
+    }
+
+    // this file holds (value, position) pairs
+    Cursor pairs() {
+        return new Reader(BUFFER, true);
+    }
+
+    private final class Reader implements Cursor {
+        private final ByteBuffer buffer;
+        private final boolean pairs;
+        // next byte of the file to load
+        private long offset = 0;
+        private long index = -1;
+        private long value;
+        private long position;
+
+        Reader(int size, boolean pairs) {
+            this.buffer = ByteBuffer.allocate(size - size % (2 * Long.BYTES));
+            this.pairs = pairs;
+            buffer.limit(0);
+        }
+
+        @Override
+        public boolean next() {
+            if (!buffer.hasRemaining()) {
+                long end = length * Long.BYTES;
+                if (offset >= end) return false;
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+                read(buffer, offset);
+                offset += buffer.limit();
+                buffer.flip();
+            }
+            index++;
+            value = buffer.getLong();
+            position = pairs ? buffer.getLong() : index;
+            return true;
+        }
+
+        @Override
+        public long value() {
+            return value;
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+    }
+    //#endregion
+
+    //#region Sorting
+    // Sorts what source yields into a file of (value, position) pairs,
+    // ordered by value and then position. Chunks that fit the budget are
+    // sorted in memory and written as runs, which are then merged.
+    static SpillFile sortPairs(Cursor source) {
+        // keys, positions and a second copy of each for merging: 32 bytes a value
+        int chunk = (int) Math.max(1024, Math.min(Integer.MAX_VALUE - 8, Spill.BUDGET / 32));
+        List<SpillFile> runs = new ArrayList<>();
+        long[] keys = new long[0];
+        long[] positions = new long[0];
+        boolean more = source.next();
+        while (more) {
+            if (keys.length == 0) {
+                keys = new long[chunk];
+                positions = new long[chunk];
+            }
+            int n = 0;
+            while (more && n < chunk) {
+                keys[n] = source.value();
+                positions[n] = source.position();
+                n++;
+                more = source.next();
+            }
+            sort(keys, positions, n);
+            Writer run = new Writer();
+            for (int i = 0; i < n; i++) {
+                run.write(keys[i]);
+                run.write(positions[i]);
+            }
+            runs.add(run.finish());
+        }
+        if (runs.size() == 1) return runs.get(0);
+        return merge(runs);
+    }
+
+    private static SpillFile merge(List<SpillFile> runs) {
+        int size = Math.max(4096, (int) Math.min(BUFFER, Spill.BUDGET / Math.max(1, runs.size())));
+        PriorityQueue<Reader> heads = new PriorityQueue<>((a, b) -> a.value != b.value
+            ? Long.compare(a.value, b.value) : Long.compare(a.position, b.position));
+        for (SpillFile run : runs) {
+            Reader reader = run.new Reader(size, true);
+            if (reader.next()) heads.add(reader);
+        }
+        Writer out = new Writer();
+        while (!heads.isEmpty()) {
+            Reader head = heads.poll();
+            out.write(head.value);
+            out.write(head.position);
+            if (head.next()) heads.add(head);
+        }
+        for (SpillFile run : runs) {
+            run.delete();
+        }
+        return out.finish();
+    }
+
+    // Sorts keys[0..n) ascending, moving positions along with them; equal
+    // keys keep their order. Bottom-up merge sort.
+    static void sort(long[] keys, long[] positions, int n) {
+        long[] k = keys;
+        long[] p = positions;
+        long[] kTo = new long[n];
+        long[] pTo = new long[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int low = 0; low < n; low += 2 * width) {
+                int middle = Math.min(low + width, n);
+                int high = Math.min(low + 2 * width, n);
+                int i = low;
+                int j = middle;
+                int out = low;
+                while (i < middle && j < high) {
+                    if (k[j] < k[i]) {
+                        kTo[out] = k[j];
+                        pTo[out++] = p[j++];
+                    } else {
+                        kTo[out] = k[i];
+                        pTo[out++] = p[i++];
+                    }
+                }
+                while (i < middle) {
+                    kTo[out] = k[i];
+                    pTo[out++] = p[i++];
+                }
+                while (j < high) {
+                    kTo[out] = k[j];
+                    pTo[out++] = p[j++];
+                }
+            }
+            long[] swap = k;
+            k = kTo;
+            kTo = swap;
+            swap = p;
+            p = pTo;
+            pTo = swap;
+        }
+        if (k != keys) {
+            System.arraycopy(k, 0, keys, 0, n);
+            System.arraycopy(p, 0, positions, 0, n);
+        }
+    }
+    //#endregion
+}
@@ -0,0 +1,208 @@
+package setta;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// A set of whole numbers that outgrew the memory budget (see Spill), kept in
+// spill files: its values in insertion order and, unless those are already
+// ascending, (value, position) pairs sorted by value. Membership is a binary
+// search over the sorted file, and the set operators merge sorted files
+// instead of probing a hash index. It never changes once built.
+final class SpilledSet extends SettaSet {
+    private final SpillFile order;
+    // null when order is ascending, and so sorted already
+    private final SpillFile sorted;
+    private final int size;
+
+    private SpilledSet(SpillFile order, SpillFile sorted) {
+        this.order = order;
+        this.sorted = sorted;
+        this.size = (int) order.length();
+        OffHeap.track(this);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // the values in insertion order
+    SpillFile.Cursor cursor() {
+        return order.values();
+    }
+
+    // the values in ascending order, each with its position in insertion order
+    SpillFile.Cursor byValue() {
+        return sorted == null ? order.values() : sorted.pairs();
+    }
+
+    boolean containsLong(long value) {
+        long low = 0;
+        long high = size - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            long found = sorted == null ? order.get(middle) : sorted.get(2 * middle);
+            if (found < value) {
+                low = middle + 1;
+            } else if (found > value) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Long && containsLong((Long) o);
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        SpillFile.Cursor cursor = cursor();
+        return new Iterator<Object>() {
+            private boolean ready = cursor.next();
+
+            @Override
+            public boolean hasNext() {
+                return ready;
+            }
+
+            @Override
+            public Object next() {
+                if (!ready) throw new NoSuchElementException();
+                Object value = SettaNumber.of(cursor.value());
+                ready = cursor.next();
+                return value;
+            }
+        };
+    }
+
+    @Override
+    int computeHash() {
+        int h = 0;
+        SpillFile.Cursor cursor = cursor();
+        while (cursor.next()) {
+            h += Long.hashCode(cursor.value());
+        }
+        return h;
+    }
+
+    @Override
+    boolean containsEvery(Set<?> other) {
+        if (Spill.isNumeric(other)) return Spill.subseteq(other, this);
+        return super.containsEvery(other);
+    }
+
+    @Override
+    void free() {
+        order.delete();
+        if (sorted != null) sorted.delete();
+    }
+
+    // Collects whole numbers in a LongSet while they fit the budget and in a
+    // spill file after that, then builds whichever set that makes.
+    static final class Builder {
+        // the caller never adds a value twice, so there is nothing to remove
+        private final boolean distinct;
+        private LongSet memory;
+        private SpillFile.Writer writer;
+        private boolean ascending = true;
+        private long last;
+        private long count = 0;
+
+        Builder(LongSet start, boolean distinct) {
+            this.memory = start;
+            this.distinct = distinct;
+            if (start.size() > Spill.LIMIT) spill();
+        }
+
+        void add(long value) {
+            if (memory == null) {
+                write(value);
+                return;
+            }
+            if (distinct) {
+                memory.addUnique(value);
+            } else {
+                memory.addLong(value);
+            }
+            if (memory.size() > Spill.LIMIT) spill();
+        }
+
+        private void spill() {
+            writer = new SpillFile.Writer();
+            for (int i = 0; i < memory.size(); i++) {
+                write(memory.longAt(i));
+            }
+            memory = null;
+        }
+
+        private void write(long value) {
+            if (count > 0 && value <= last) ascending = false;
+            writer.write(value);
+            last = value;
+            count++;
+        }
+
+        Set<Object> build() {
+            if (memory != null) return memory;
+            SpillFile raw = writer.finish();
+            // strictly ascending values are distinct and sorted already
+            if (ascending) return new SpilledSet(raw, null);
+            SpillFile pairs = SpillFile.sortPairs(raw.values());
+            if (distinct) return new SpilledSet(raw, pairs);
+            return removeRepeats(raw, pairs);
+        }
+
+        // Keeps the first occurrence of every value. The pairs are sorted by
+        // value and then position, so it is the first pair of each value.
+        private static SpilledSet removeRepeats(SpillFile raw, SpillFile pairs) {
+            long[] first = new long[(int) ((raw.length() + 63) >>> 6)];
+            long kept = 0;
+            SpillFile.Cursor pair = pairs.pairs();
+            boolean any = false;
+            long previous = 0;
+            while (pair.next()) {
+                if (!any || pair.value() != previous) {
+                    first[(int) (pair.position() >>> 6)] |= 1L << pair.position();
+                    kept++;
+                    any = true;
+                    previous = pair.value();
+                }
+            }
+            if (kept == raw.length()) return new SpilledSet(raw, pairs);
+
+            SpillFile.Writer order = new SpillFile.Writer();
+            SpillFile.Cursor value = raw.values();
+            while (value.next()) {
+                long position = value.position();
+                if ((first[(int) (position >>> 6)] & (1L << position)) != 0) order.write(value.value());
+            }
+
+            // a kept value's new position is the number of kept values before it
+            long[] keptBefore = new long[first.length];
+            for (int word = 1; word < first.length; word++) {
+                keptBefore[word] = keptBefore[word - 1] + Long.bitCount(first[word - 1]);
+            }
+            SpillFile.Writer sorted = new SpillFile.Writer();
+            pair = pairs.pairs();
+            any = false;
+            while (pair.next()) {
+                if (any && pair.value() == previous) continue;
+                long position = pair.position();
+                int word = (int) (position >>> 6);
+                long below = first[word] & ((1L << position) - 1);
+                sorted.write(pair.value());
+                sorted.write(keptBefore[word] + Long.bitCount(below));
+                any = true;
+                previous = pair.value();
+            }
+            raw.delete();
+            pairs.delete();
+            return new SpilledSet(order.finish(), sorted.finish());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package setta;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Visits an expression and everything nested in it, with an explicit stack
+// rather than recursion, since generated expressions can nest deeply.
+final class Subexpressions {
+    private Subexpressions() {
+    }
+
+    static void forEach(Expr root, Consumer<Expr> action) {
+        Deque<Expr> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Expr expr = pending.pop();
+            action.accept(expr);
+            children(expr).forEach(pending::push);
+        }
+    }
+
+    // the expressions directly inside expr; a comprehension's are its body,
+    // then its domains, then its conditions
+    static List<Expr> children(Expr expr) {
+        if (expr instanceof Expr.Literal || expr instanceof Expr.Variable) return List.of();
+        List<Expr> children = new ArrayList<>();
+        if (expr instanceof Expr.Comprehension) {
+            Expr.Comprehension comprehension = (Expr.Comprehension) expr;
+            children.add(comprehension.expr);
+            children.addAll(comprehension.domains);
+            children.addAll(comprehension.conditions);
+        } else if (expr instanceof Expr.Binary) {
+            children.add(((Expr.Binary) expr).left);
+            children.add(((Expr.Binary) expr).right);
+        } else if (expr instanceof Expr.Unary) {
+            children.add(((Expr.Unary) expr).right);
+        } else if (expr instanceof Expr.Grouping) {
+            children.add(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Cardinality) {
+            children.add(((Expr.Cardinality) expr).expression);
+        } else if (expr instanceof Expr.Assign) {
+            children.add(((Expr.Assign) expr).value);
+        } else if (expr instanceof Expr.SetLiteral) {
+            children.addAll(((Expr.SetLiteral) expr).elements);
+        } else if (expr instanceof Expr.TupleLiteral) {
+            children.addAll(((Expr.TupleLiteral) expr).elements);
+        } else if (expr instanceof Expr.Call) {
+            children.add(((Expr.Call) expr).callee);
+            children.addAll(((Expr.Call) expr).arguments);
+        } else if (expr instanceof Expr.Conditional) {
+            Expr.Conditional conditional = (Expr.Conditional) expr;
+            children.add(conditional.condition);
+            children.add(conditional.thenBranch);
+            children.add(conditional.elseBranch);
+        } else if (expr instanceof Expr.Cached) {
+            children.add(((Expr.Cached) expr).expression);
+        }
+        return children;
+    }
+
+    // expr with its children (in the order children() gives them) replaced
+    static Expr withChildren(Expr expr, List<Expr> children) {
+        if (expr instanceof Expr.Comprehension) {
+            Expr.Comprehension comprehension = (Expr.Comprehension) expr;
+            int domains = comprehension.domains.size();
+            return new Expr.Comprehension(children.get(0), comprehension.variables,
+                new ArrayList<>(children.subList(1, 1 + domains)),
+                new ArrayList<>(children.subList(1 + domains, children.size())));
+        } else if (expr instanceof Expr.Binary) {
+            return new Expr.Binary(children.get(0), ((Expr.Binary) expr).operator, children.get(1));
+        } else if (expr instanceof Expr.Unary) {
+            return new Expr.Unary(((Expr.Unary) expr).operator, children.get(0));
+        } else if (expr instanceof Expr.Grouping) {
+            return new Expr.Grouping(children.get(0));
+        } else if (expr instanceof Expr.Cardinality) {
+            return new Expr.Cardinality(children.get(0));
+        } else if (expr instanceof Expr.Assign) {
+            return new Expr.Assign(((Expr.Assign) expr).name, children.get(0));
+        } else if (expr instanceof Expr.SetLiteral) {
+            return new Expr.SetLiteral(new ArrayList<>(children));
+        } else if (expr instanceof Expr.TupleLiteral) {
+            return new Expr.TupleLiteral(new ArrayList<>(children));
+        } else if (expr instanceof Expr.Call) {
+            return new Expr.Call(children.get(0), ((Expr.Call) expr).paren,
+                new ArrayList<>(children.subList(1, children.size())));
+        } else if (expr instanceof Expr.Conditional) {
+            return new Expr.Conditional(children.get(0), children.get(1), children.get(2));
+        } else if (expr instanceof Expr.Cached) {
+            Expr.Cached cached = (Expr.Cached) expr;
+            return new Expr.Cached(children.get(0), cached.key, cached.inputs);
+        }
+        return expr;
+    }
+}
@@ -0,0 +1,122 @@
+package setta;
+
+// An immutable, fixed-length sequence of values: the pairs A X B produces and
+// tuple literals like (1, 2). Tuple.of picks the representation; a pair of
+// numbers is kept as two unboxed doubles instead of an array of boxes. The
+// hash is computed once, and equality checks length and hash before
+// comparing elements.
+abstract class Tuple {
+    // 0 until computed
+    private int hash;
+
+    static Tuple of(Object... elements) {
+        if (elements.length == 2 && NumberPair.holds(elements[0]) && NumberPair.holds(elements[1])) {
+            return new NumberPair(SettaNumber.toDouble(elements[0]), SettaNumber.toDouble(elements[1]));
+        }
+        return new ObjectTuple(elements);
+    }
+
+    abstract int size();
+
+    abstract Object get(int index);
+
+    // the value List.hashCode would give for the same elements
+    @Override
+    public final int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = 1;
+            for (int i = 0; i < size(); i++) {
+                Object element = get(i);
+                h = 31 * h + (element == null ? 0 : element.hashCode());
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof Tuple)) return false;
+        Tuple other = (Tuple) o;
+        if (other.size() != size() || other.hashCode() != hashCode()) return false;
+        for (int i = 0; i < size(); i++) {
+            Object element = get(i);
+            if (element == null ? other.get(i) != null : !element.equals(other.get(i))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(get(i));
+        }
+        return sb.append(")").toString();
+    }
+
+    // any other tuple
+    static final class ObjectTuple extends Tuple {
+        private final Object[] elements;
+
+        ObjectTuple(Object[] elements) {
+            this.elements = elements;
+            // a set inside a tuple can no longer be changed in place
+            for (Object element : elements) {
+                SettaSet.pin(element);
+            }
+        }
+
+        @Override
+        int size() {
+            return elements.length;
+        }
+
+        @Override
+        Object get(int index) {
+            return elements[index];
+        }
+    }
+
+    // (a, b) where both are numbers a double holds exactly
+    static final class NumberPair extends Tuple {
+        private final double first;
+        private final double second;
+
+        NumberPair(double first, double second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        // Doubles, and Longs no bigger than 2^53, come back unchanged from SettaNumber.of
+        static boolean holds(Object value) {
+            if (value instanceof Double) return true;
+            if (!(value instanceof Long)) return false;
+            long n = (Long) value;
+            return n >= -(1L << 53) && n <= 1L << 53;
+        }
+
+        @Override
+        int size() {
+            return 2;
+        }
+
+        @Override
+        Object get(int index) {
+            if (index == 0) return SettaNumber.of(first);
+            if (index == 1) return SettaNumber.of(second);
+            throw new IndexOutOfBoundsException(index);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof NumberPair)) return super.equals(o);
+            NumberPair other = (NumberPair) o;
+            return Double.doubleToLongBits(first) == Double.doubleToLongBits(other.first)
+                && Double.doubleToLongBits(second) == Double.doubleToLongBits(other.second);
+        }
+    }
+}
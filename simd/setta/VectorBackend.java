@@ -0,0 +1,220 @@
+package setta;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import static setta.NumericKernel.*;
+
+// NumericKernel's loop on the Vector API. Values are taken a chunk at a time
+// and every node is evaluated over the whole chunk before the next one, each
+// in its own loop over buffers, so the loops are simple enough for the JIT to
+// keep the vectors in registers. The conditions leave one flag per value, and
+// the passing values (or body results) are compressed into out.
+//
+// Needs jdk.incubator.vector at compile and run time; NumericKernel loads it
+// reflectively and keeps its scalar loop when it isn't there.
+final class VectorBackend implements NumericKernel.Backend {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+    private static final int CHUNK = 1024;
+
+    VectorBackend() {
+        // fails here, not mid-loop, when the module is missing
+        if (SPECIES.length() > SLACK) throw new IllegalStateException("vector too wide");
+    }
+
+    @Override
+    public int run(long[] values, int size, Node[] conditions, Node body, long[] out) {
+        int height = body == null ? 0 : height(body);
+        for (Node condition : conditions) {
+            height = Math.max(height, height(condition));
+        }
+        // buffers[d] holds the node being evaluated at depth d
+        long[][] buffers = new long[height + 2][CHUNK];
+        long[] x = new long[CHUNK];
+        boolean[] keep = new boolean[CHUNK];
+
+        int count = 0;
+        for (int start = 0; start < size; start += CHUNK) {
+            int n = Math.min(CHUNK, size - start);
+            System.arraycopy(values, start, x, 0, n);
+            Arrays.fill(keep, 0, n, true);
+            for (Node condition : conditions) {
+                test(condition, x, n, buffers, keep);
+            }
+            if (out == null) {
+                count += count(keep, n);
+                continue;
+            }
+            long[] result = x;
+            if (body != null) {
+                eval(body, x, n, buffers, 0);
+                result = buffers[0];
+            }
+            count = compress(result, keep, n, out, count);
+        }
+        return count;
+    }
+
+    private static int height(Node node) {
+        if (node.left == null) return 1;
+        return 1 + Math.max(height(node.left), node.right == null ? 0 : height(node.right));
+    }
+
+    private static int count(boolean[] keep, int n) {
+        int bound = SPECIES.loopBound(n);
+        int count = 0;
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            count += VectorMask.fromArray(SPECIES, keep, i).trueCount();
+        }
+        for (; i < n; i++) {
+            if (keep[i]) count++;
+        }
+        return count;
+    }
+
+    // appends the values of result whose flag is set to out at count
+    private static int compress(long[] result, boolean[] keep, int n, long[] out, int count) {
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            VectorMask<Long> mask = VectorMask.fromArray(SPECIES, keep, i);
+            if (!mask.anyTrue()) continue;
+            // writes a whole vector; out has SLACK spare values past size
+            LongVector.fromArray(SPECIES, result, i).compress(mask).intoArray(out, count);
+            count += mask.trueCount();
+        }
+        for (; i < n; i++) {
+            if (keep[i]) out[count++] = result[i];
+        }
+        return count;
+    }
+
+    // clears keep wherever the comparison is false
+    private static void test(Node node, long[] x, int n, long[][] buffers, boolean[] keep) {
+        eval(node.left, x, n, buffers, 0);
+        eval(node.right, x, n, buffers, 1);
+        long[] a = buffers[0];
+        long[] b = buffers[1];
+        int bound = SPECIES.loopBound(n);
+        // one loop per operator: the JIT only emits vector code for a constant one
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            LongVector left = LongVector.fromArray(SPECIES, a, i);
+            LongVector right = LongVector.fromArray(SPECIES, b, i);
+            VectorMask<Long> passes;
+            switch (node.op) {
+                case EQ: passes = left.compare(VectorOperators.EQ, right); break;
+                case NE: passes = left.compare(VectorOperators.NE, right); break;
+                case LT: passes = left.compare(VectorOperators.LT, right); break;
+                case LE: passes = left.compare(VectorOperators.LE, right); break;
+                case GT: passes = left.compare(VectorOperators.GT, right); break;
+                default: passes = left.compare(VectorOperators.GE, right); break;
+            }
+            VectorMask.fromArray(SPECIES, keep, i).and(passes).intoArray(keep, i);
+        }
+        for (int i = bound; i < n; i++) {
+            if (keep[i]) keep[i] = compare(node.op, a[i], b[i]);
+        }
+    }
+
+    private static boolean compare(int op, long a, long b) {
+        switch (op) {
+            case EQ: return a == b;
+            case NE: return a != b;
+            case LT: return a < b;
+            case LE: return a <= b;
+            case GT: return a > b;
+            default: return a >= b;
+        }
+    }
+
+    // writes node's value for x[0..n) into buffers[depth]
+    private static void eval(Node node, long[] x, int n, long[][] buffers, int depth) {
+        long[] target = buffers[depth];
+        switch (node.op) {
+            case VAR:
+                System.arraycopy(x, 0, target, 0, n);
+                return;
+            case CONST:
+                Arrays.fill(target, 0, n, node.value);
+                return;
+            case NEG: {
+                eval(node.left, x, n, buffers, depth);
+                int bound = SPECIES.loopBound(n);
+                int i = 0;
+                for (; i < bound; i += SPECIES.length()) {
+                    LongVector.fromArray(SPECIES, target, i).neg().intoArray(target, i);
+                }
+                for (; i < n; i++) {
+                    target[i] = -target[i];
+                }
+                return;
+            }
+            case MOD: {
+                // the left side is never negative here (see NumericKernel.bounds)
+                eval(node.left, x, n, buffers, depth);
+                long divisor = node.right.value;
+                if (Long.bitCount(divisor) == 1) {
+                    long low = divisor - 1;
+                    int bound = SPECIES.loopBound(n);
+                    int i = 0;
+                    for (; i < bound; i += SPECIES.length()) {
+                        LongVector.fromArray(SPECIES, target, i).and(low).intoArray(target, i);
+                    }
+                    for (; i < n; i++) {
+                        target[i] &= low;
+                    }
+                } else {
+                    // no vector instruction divides longs
+                    for (int i = 0; i < n; i++) {
+                        target[i] %= divisor;
+                    }
+                }
+                return;
+            }
+            default:
+                break;
+        }
+
+        eval(node.left, x, n, buffers, depth);
+        eval(node.right, x, n, buffers, depth + 1);
+        long[] other = buffers[depth + 1];
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+        switch (node.op) {
+            case ADD:
+                for (; i < bound; i += SPECIES.length()) {
+                    LongVector.fromArray(SPECIES, target, i).add(LongVector.fromArray(SPECIES, other, i))
+                        .intoArray(target, i);
+                }
+                for (; i < n; i++) {
+                    target[i] += other[i];
+                }
+                return;
+            case SUB:
+                for (; i < bound; i += SPECIES.length()) {
+                    LongVector.fromArray(SPECIES, target, i).sub(LongVector.fromArray(SPECIES, other, i))
+                        .intoArray(target, i);
+                }
+                for (; i < n; i++) {
+                    target[i] -= other[i];
+                }
+                return;
+            case MUL:
+                for (; i < bound; i += SPECIES.length()) {
+                    LongVector.fromArray(SPECIES, target, i).mul(LongVector.fromArray(SPECIES, other, i))
+                        .intoArray(target, i);
+                }
+                for (; i < n; i++) {
+                    target[i] *= other[i];
+                }
+                return;
+            default:
+                throw new IllegalStateException("not arithmetic: " + node.op);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package tool;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import setta.SettaCompiler;
+import setta.SettaError;
+
+//  javac -d out setta/*.java tool/CompileSetta.java
+//  java -cp out tool.CompileSetta script.setta [class name] [output directory]
+//  javac -cp out -d out Script.java && java -cp out Script
+//
+// Compiles a script ahead of time into a Java class that runs it without
+// scanning or parsing anything (see SettaCompiler). The class name defaults
+// to the script's file name, capitalized; the output directory to the
+// current one. Syntax errors are reported as setta reports them, with exit
+// code 65.
+
+public class CompileSetta {
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args.length > 3) {
+      System.out.println("Usage: CompileSetta <script> [class name] [output directory]");
+      System.exit(64);
+    }
+    Path script = Paths.get(args[0]);
+    String className = args.length > 1 ? args[1] : className(script);
+    Path directory = Paths.get(args.length > 2 ? args[2] : ".");
+
+    String source = new String(Files.readAllBytes(script), Charset.defaultCharset());
+    List<SettaError> errors = new ArrayList<>();
+    String java = SettaCompiler.compile(source, className, errors);
+    if (java == null) {
+      for (SettaError error : errors) {
+        System.err.println(error);
+      }
+      System.exit(65);
+    }
+
+    Files.createDirectories(directory);
+    Path file = directory.resolve(className + ".java");
+    Files.write(file, java.getBytes(StandardCharsets.UTF_8));
+    System.out.println(file);
+  }
+
+  // test2.setta -> Test2
+  private static String className(Path script) {
+    String name = script.getFileName().toString().replaceFirst("\\.setta$", "");
+    StringBuilder sb = new StringBuilder();
+    for (char c : name.toCharArray()) {
+      if (Character.isJavaIdentifierPart(c)) sb.append(sb.length() == 0 ? Character.toUpperCase(c) : c);
+    }
+    if (sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0))) sb.insert(0, "Script");
+    return sb.toString();
+  }
+}
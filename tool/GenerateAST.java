@@ -25,9 +25,12 @@ public class GenerateAST {
         "Variable      : SettaToken name",
         "Grouping      : Expr expression",
         "SetLiteral    : List<Expr> elements",
-        "Comprehension : Expr expr, SettaToken variable, Expr inSet, Expr condition",
+        "TupleLiteral  : List<Expr> elements",
+        "Comprehension : Expr expr, List<SettaToken> variables, List<Expr> domains, List<Expr> conditions",
         "Cardinality   : Expr expression",
-        "Call          : Expr callee, SettaToken paren, List<Expr> arguments"
+        "Call          : Expr callee, SettaToken paren, List<Expr> arguments",
+        "Conditional   : Expr condition, Expr thenBranch, Expr elseBranch",
+        "Cached        : Expr expression, int key, List<String> inputs"
     ));
 
     defineAst(outputDir, "Stmt", Arrays.asList(
@@ -0,0 +1,85 @@
+package tool;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import setta.SettaEngine;
+import setta.SettaProgram;
+
+//  javac -d out setta/*.java tool/ParserBenchmark.java
+//  java -cp out tool.ParserBenchmark [rounds]
+//
+// Times SettaEngine.compile (scanning and parsing, nothing is run) on a few
+// generated scripts shaped like our big data scripts, and prints the median
+// time and throughput of each.
+
+public class ParserBenchmark {
+  public static void main(String[] args) {
+    int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 15;
+
+    try (SettaEngine engine = new SettaEngine()) {
+      measure(engine, "set literal, 1M numbers", setLiteral(1_000_000), rounds);
+      measure(engine, "200k let statements", statements(200_000), rounds);
+      measure(engine, "50k operator chains", operatorChains(50_000), rounds);
+      measure(engine, "20k comprehensions", comprehensions(20_000), rounds);
+    }
+  }
+
+  private static void measure(SettaEngine engine, String name, String source, int rounds) {
+    // warm up the JIT before timing anything
+    for (int i = 0; i < 5; i++) {
+      compile(engine, source);
+    }
+    long[] nanos = new long[rounds];
+    for (int i = 0; i < rounds; i++) {
+      long start = System.nanoTime();
+      compile(engine, source);
+      nanos[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(nanos);
+    double millis = nanos[rounds / 2] / 1e6;
+    double megabytes = source.getBytes(StandardCharsets.UTF_8).length / 1e6;
+    System.out.printf("%-26s %9.2f ms  %7.1f MB/s%n", name, millis, megabytes / (millis / 1000));
+  }
+
+  private static void compile(SettaEngine engine, String source) {
+    SettaProgram program = engine.compile(source);
+    if (!program.isValid()) throw new IllegalStateException(program.errors().toString());
+  }
+
+  //#region Generated scripts
+  private static String setLiteral(int size) {
+    StringBuilder sb = new StringBuilder("let A = {");
+    for (int i = 0; i < size; i++) {
+      if (i > 0) sb.append(", ");
+      sb.append(i);
+    }
+    return sb.append("};\n").toString();
+  }
+
+  private static String statements(int count) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      sb.append("let x").append(i).append(" = ").append(i).append(";\n");
+    }
+    return sb.toString();
+  }
+
+  private static String operatorChains(int count) {
+    StringBuilder sb = new StringBuilder("let A = {1, 2, 3};\nlet B = {2, 3, 4};\n");
+    for (int i = 0; i < count; i++) {
+      sb.append("print (A union B) intersect A - {").append(i)
+          .append("} == A symdiff B X A subseteq A union {1 + 2 * 3 % 4, -").append(i).append("};\n");
+    }
+    return sb.toString();
+  }
+
+  private static String comprehensions(int count) {
+    StringBuilder sb = new StringBuilder("let A = {1, 2, 3};\n");
+    for (int i = 0; i < count; i++) {
+      sb.append("print { n * 2 + ").append(i)
+          .append(" | n in A, n % 2 == 0 } union { (n, n) | n in A, !(n > 1) };\n");
+    }
+    return sb.toString();
+  }
+  //#endregion
+}
@@ -0,0 +1,232 @@
+package tool;
+
+import com.sun.management.ThreadMXBean;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import setta.SettaEngine;
+import setta.SettaLimits;
+import setta.SettaProgram;
+import setta.SettaResult;
+import setta.SettaSession;
+
+//  javac -d out setta/*.java tool/WorkloadGenerator.java tool/PerfHarness.java
+//  java -Xmx2g -cp out tool.PerfHarness [--scale s] [--seed n] [--rounds n]
+//      [--baseline file [--record] [--tolerance percent]] [script or directory ...]
+//
+// Runs whole scripts the way Setta does (scan, parse, interpret, output
+// thrown away) and reports for each the median time and source throughput,
+// the median bytes allocated and GC time per run, and the peak heap over all
+// of its runs. Without scripts it runs the WorkloadGenerator corpus at the
+// given scale and seed, so every change can be measured on the same
+// programs.
+//
+// With --record the numbers are written to the baseline file. Otherwise they
+// are compared with it, and any that grew by more than the tolerance (10% by
+// default, and by more than a small absolute amount, so noise on tiny
+// numbers isn't flagged) is reported as a regression; the exit code is then
+// 1. A workload that doesn't compile or fails at runtime is reported as
+// FAILED and left out of the baseline while the others still run; the exit
+// code is then 1 as well. Allocation is only counted on the thread running
+// the script, which misses the work parallel set operators hand to other
+// threads.
+
+public class PerfHarness {
+  private static final String[] METRICS = {"millis", "allocMB", "gcMillis", "peakMB"};
+  // growth below these is noise whatever the tolerance says
+  private static final double[] FLOORS = {5, 1, 5, 4};
+
+  public static void main(String[] args) throws IOException {
+    double scale = 1;
+    long seed = 1;
+    int rounds = 5;
+    double tolerance = 10;
+    Path baseline = null;
+    boolean record = false;
+    List<Path> scripts = new ArrayList<>();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        switch (args[i]) {
+          case "--scale": scale = Double.parseDouble(args[++i]); break;
+          case "--seed": seed = Long.parseLong(args[++i]); break;
+          case "--rounds": rounds = Integer.parseInt(args[++i]); break;
+          case "--tolerance": tolerance = Double.parseDouble(args[++i]); break;
+          case "--baseline": baseline = Paths.get(args[++i]); break;
+          case "--record": record = true; break;
+          default: scripts.addAll(collect(Paths.get(args[i]))); break;
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+      usage();
+    }
+    if (rounds < 1 || (record && baseline == null)) usage();
+
+    Map<String, String> workloads = scripts.isEmpty() ? WorkloadGenerator.generate(scale, seed) : read(scripts);
+    Map<String, double[]> results = new LinkedHashMap<>();
+    System.out.printf("%-20s %10s %10s %10s %10s %10s%n", "workload", "ms", "MB/s", "alloc MB", "gc ms", "peak MB");
+    int failures = 0;
+    try (SettaEngine engine = new SettaEngine()) {
+      for (Map.Entry<String, String> workload : workloads.entrySet()) {
+        double[] measured;
+        try {
+          measured = measure(engine, workload.getValue(), rounds);
+        } catch (IllegalStateException e) {
+          System.out.printf("%-20s FAILED %s%n", workload.getKey(), e.getMessage().replace('\n', ' '));
+          failures++;
+          continue;
+        }
+        double megabytes = workload.getValue().getBytes(StandardCharsets.UTF_8).length / 1e6;
+        System.out.printf("%-20s %10.1f %10.1f %10.1f %10.1f %10.1f%n", workload.getKey(), measured[0],
+            megabytes / (measured[0] / 1000), measured[1], measured[2], measured[3]);
+        results.put(workload.getKey(), measured);
+      }
+    }
+
+    if (baseline != null && record) {
+      save(baseline, results);
+      System.out.println("Recorded " + baseline);
+    } else if (baseline != null) {
+      int regressions = compare(load(baseline), results, tolerance / 100);
+      System.out.println(regressions == 0 ? "No regressions against " + baseline
+          : regressions + " regression(s) against " + baseline);
+      failures += regressions;
+    }
+    if (failures > 0) System.exit(1);
+  }
+
+  private static void usage() {
+    System.out.println("Usage: PerfHarness [--scale s] [--seed n] [--rounds n]"
+        + " [--baseline file [--record] [--tolerance percent]] [script or directory ...]");
+    System.exit(64);
+  }
+
+  //#region Measuring
+  // one warm-up run, then the medians of METRICS over rounds runs
+  private static double[] measure(SettaEngine engine, String source, int rounds) {
+    run(engine, source);
+
+    System.gc();
+    List<MemoryPoolMXBean> heap = ManagementFactory.getMemoryPoolMXBeans().stream()
+        .filter(pool -> pool.getType() == MemoryType.HEAP).collect(Collectors.toList());
+    heap.forEach(MemoryPoolMXBean::resetPeakUsage);
+
+    ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    double[] millis = new double[rounds];
+    double[] allocated = new double[rounds];
+    double[] gc = new double[rounds];
+    for (int i = 0; i < rounds; i++) {
+      long gcBefore = gcMillis();
+      long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+      long start = System.nanoTime();
+      run(engine, source);
+      millis[i] = (System.nanoTime() - start) / 1e6;
+      allocated[i] = (threads.getCurrentThreadAllocatedBytes() - allocatedBefore) / 1e6;
+      gc[i] = gcMillis() - gcBefore;
+    }
+    double peak = heap.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum() / 1e6;
+    return new double[] {median(millis), median(allocated), median(gc), peak};
+  }
+
+  private static void run(SettaEngine engine, String source) {
+    SettaProgram program = engine.compile(source);
+    if (!program.isValid()) throw new IllegalStateException(program.errors().toString());
+    SettaResult result;
+    try (SettaSession session = engine.newSession(new PrintStream(OutputStream.nullOutputStream()),
+        SettaLimits.none())) {
+      result = session.run(program);
+    }
+    if (!result.succeeded()) throw new IllegalStateException(result.errors().toString());
+  }
+
+  private static long gcMillis() {
+    long total = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      total += Math.max(0, collector.getCollectionTime());
+    }
+    return total;
+  }
+
+  private static double median(double[] values) {
+    double[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+  //#endregion
+
+  //#region Baseline
+  private static int compare(Properties baseline, Map<String, double[]> results, double tolerance) {
+    int regressions = 0;
+    for (Map.Entry<String, double[]> result : results.entrySet()) {
+      for (int m = 0; m < METRICS.length; m++) {
+        String key = result.getKey() + "." + METRICS[m];
+        String stored = baseline.getProperty(key);
+        if (stored == null) continue;
+        double before = Double.parseDouble(stored);
+        double now = result.getValue()[m];
+        if (now > before * (1 + tolerance) && now - before > FLOORS[m]) {
+          System.out.printf("REGRESSION %-30s %10.1f -> %10.1f (%+.0f%%)%n", key, before, now,
+              (now / before - 1) * 100);
+          regressions++;
+        }
+      }
+    }
+    return regressions;
+  }
+
+  private static Properties load(Path file) throws IOException {
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(file)) {
+      properties.load(in);
+    }
+    return properties;
+  }
+
+  private static void save(Path file, Map<String, double[]> results) throws IOException {
+    Properties properties = new Properties();
+    for (Map.Entry<String, double[]> result : results.entrySet()) {
+      for (int m = 0; m < METRICS.length; m++) {
+        properties.setProperty(result.getKey() + "." + METRICS[m], String.format(Locale.ROOT, "%.1f", result.getValue()[m]));
+      }
+    }
+    try (OutputStream out = Files.newOutputStream(file)) {
+      properties.store(out, "PerfHarness baseline");
+    }
+  }
+  //#endregion
+
+  // the *.setta files in a directory, or the file itself
+  private static List<Path> collect(Path path) throws IOException {
+    if (!Files.isDirectory(path)) return List.of(path);
+    try (Stream<Path> files = Files.walk(path)) {
+      return files.filter(file -> file.toString().endsWith(".setta")).sorted().collect(Collectors.toList());
+    }
+  }
+
+  // file name without .setta -> script
+  private static Map<String, String> read(List<Path> scripts) throws IOException {
+    Map<String, String> workloads = new LinkedHashMap<>();
+    for (Path script : scripts) {
+      String name = script.getFileName().toString().replaceFirst("\\.setta$", "");
+      workloads.put(name, new String(Files.readAllBytes(script), StandardCharsets.UTF_8));
+    }
+    return workloads;
+  }
+}
@@ -0,0 +1,207 @@
+package tool;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+//  javac -d out setta/*.java tool/WorkloadGenerator.java
+//  java -cp out tool.WorkloadGenerator <directory> [scale] [seed]
+//
+// Writes whole Setta scripts of the kinds our users run, one file per kind,
+// for PerfHarness or setta --batch to measure. Scale 1 makes each script take
+// on the order of a second; sizes grow linearly with it (the operands of
+// Cartesian products with its square root, so their results do too). The same
+// scale and seed always give the same scripts.
+
+public class WorkloadGenerator {
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args.length > 3) {
+      System.out.println("Usage: WorkloadGenerator <directory> [scale] [seed]");
+      System.exit(64);
+    }
+    Path directory = Paths.get(args[0]);
+    double scale = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+    long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+    Files.createDirectories(directory);
+    for (Map.Entry<String, String> workload : generate(scale, seed).entrySet()) {
+      Path file = directory.resolve(workload.getKey() + ".setta");
+      Files.write(file, workload.getValue().getBytes(StandardCharsets.UTF_8));
+      System.out.println(file);
+    }
+  }
+
+  // name -> script, in a fixed order
+  static Map<String, String> generate(double scale, long seed) {
+    Map<String, String> workloads = new LinkedHashMap<>();
+    workloads.put("literals", literals(new Random(seed), scaled(200_000, scale)));
+    workloads.put("comprehensions", comprehensions(new Random(seed + 1), scaled(100_000, scale)));
+    workloads.put("products", products(new Random(seed + 2), scaled(400, Math.sqrt(scale))));
+    workloads.put("nested", nested(new Random(seed + 3), scaled(20_000, scale)));
+    workloads.put("statements", statements(new Random(seed + 4), scaled(20_000, scale)));
+    return workloads;
+  }
+
+  private static int scaled(int size, double scale) {
+    return Math.max(1, (int) Math.round(size * scale));
+  }
+
+  //#region Workloads
+  // a few data sets written out in full, then combined
+  private static String literals(Random random, int size) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("let A = ").append(numbers(random, size, size * 2)).append(";\n");
+    sb.append("let B = ").append(numbers(random, size, size * 2)).append(";\n");
+    sb.append("let C = ").append(numbers(random, size / 4, size)).append(";\n");
+    sb.append("let names = {");
+    for (int i = 0; i < size / 10; i++) {
+      if (i > 0) sb.append(", ");
+      sb.append("\"id").append(random.nextInt(size)).append('"');
+    }
+    sb.append("};\n");
+    sb.append("print |A|;\nprint |B|;\nprint |names|;\n");
+    sb.append("print |A union B|;\n");
+    sb.append("print |A intersect B|;\n");
+    sb.append("print |(A - B) union (C - A)|;\n");
+    sb.append("print |A symdiff C|;\n");
+    sb.append("print C subseteq A union B union C;\n");
+    return sb.toString();
+  }
+
+  // comprehensions that feed each other, and joins between them
+  private static String comprehensions(Random random, int size) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("let A = ").append(range(size)).append(";\n");
+    sb.append("let B = ").append(numbers(random, size / 2, size)).append(";\n");
+    String previous = "A";
+    // the chain's values, followed here so every filter drops the rarest
+    // remainder and no stage ends up empty
+    Set<Long> values = new HashSet<>();
+    for (long x = 0; x < size; x++) values.add(x);
+    for (int i = 0; i < 6; i++) {
+      String next = "S" + i;
+      int factor = 1 + random.nextInt(3);
+      int modulus = 2 + random.nextInt(5);
+      int dropped = rarestRemainder(values, modulus);
+      sb.append("let ").append(next).append(" = { x * ").append(factor).append(" + 1")
+          .append(" | x in ").append(previous).append(", x % ").append(modulus).append(" != ").append(dropped)
+          .append(" };\n");
+      sb.append("print |").append(next).append("|;\n");
+      Set<Long> kept = new HashSet<>();
+      for (long x : values) {
+        if (x % modulus != dropped) kept.add(x * factor + 1);
+      }
+      values = kept;
+      previous = next;
+    }
+    sb.append("print |{ x | x in A, x in B, x > ").append(size / 3).append(" }|;\n");
+    sb.append("print |{ (x, y) | x in S0, y in B, x == y }|;\n");
+    sb.append("print |{ x + 1 | x in { y * 2 | y in A, y % 3 == 0 } } union { x | x in B, x % 2 == 1 }|;\n");
+    sb.append("print sum({ x | x in S5, x % 7 == 0 });\n");
+    sb.append("print max(S2);\n");
+    return sb.toString();
+  }
+
+  // Cartesian products and comprehensions over their pairs
+  private static String products(Random random, int size) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("let A = ").append(range(size)).append(";\n");
+    sb.append("let B = ").append(numbers(random, size, size * 3)).append(";\n");
+    sb.append("let P = A X B;\n");
+    sb.append("print |P|;\n");
+    sb.append("print |{ p | p in P, first(p) < second(p) }|;\n");
+    sb.append("print |{ first(p) + second(p) | p in P }|;\n");
+    sb.append("print |{ (x, y) | x in A, y in B, x + y == ").append(size).append(" }|;\n");
+    sb.append("print (0, 0) in A X A;\n");
+    sb.append("print |(A X A) intersect P|;\n");
+    return sb.toString();
+  }
+
+  // sets of sets and of tuples
+  private static String nested(Random random, int size) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("let A = ").append(range(size)).append(";\n");
+    sb.append("let pairs = { {x, x + 1} | x in A };\n");
+    sb.append("let windows = { {x, x + 1, x + 2} | x in A, x % 2 == 0 };\n");
+    sb.append("let tagged = { (x % 100, {x % 7, x % 11}) | x in A };\n");
+    sb.append("print |pairs|;\nprint |windows|;\nprint |tagged|;\n");
+    sb.append("print |pairs union { {x, x + 1} | x in A, x % 5 == 0 }|;\n");
+    sb.append("print |{ s | s in pairs, s subseteq A }|;\n");
+    sb.append("print {0, 1} in pairs;\n");
+    int bits = 10 + random.nextInt(3);
+    sb.append("let subsets = powerset(").append(range(bits)).append(");\n");
+    sb.append("print |{ s | s in subsets, |s| == ").append(bits / 2).append(" }|;\n");
+    sb.append("print |{ |s| | s in subsets }|;\n");
+    return sb.toString();
+  }
+
+  // many short statements on small sets, like a script written by hand
+  private static String statements(Random random, int count) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("let total = {};\n");
+    for (int i = 0; i < count; i++) {
+      int a = random.nextInt(50);
+      int b = random.nextInt(50);
+      switch (i % 5) {
+        case 0:
+          sb.append("let v").append(i).append(" = {").append(a).append(", ").append(b).append(", ")
+              .append(a + b).append("};\n");
+          break;
+        case 1:
+          sb.append("let v").append(i).append(" = v").append(i - 1).append(" union {").append(b).append("};\n");
+          break;
+        case 2:
+          sb.append("total = total union v").append(i - 1).append(";\n");
+          break;
+        case 3:
+          sb.append("print |v").append(i - 2).append(" intersect total| + ").append(a).append(";\n");
+          break;
+        default:
+          sb.append("print if ").append(a).append(" in v").append(i - 4).append(" then |total| > ").append(b)
+              .append(" else false;\n");
+          break;
+      }
+    }
+    sb.append("print |total|;\n");
+    return sb.toString();
+  }
+  //#endregion
+
+  // the remainder mod modulus fewest values have, so filtering it out keeps most of them
+  private static int rarestRemainder(Set<Long> values, int modulus) {
+    int[] counts = new int[modulus];
+    for (long x : values) counts[(int) (x % modulus)]++;
+    int rarest = 0;
+    for (int r = 1; r < modulus; r++) {
+      if (counts[r] < counts[rarest]) rarest = r;
+    }
+    return rarest;
+  }
+
+  // {0, 1, ..., size - 1}
+  private static String range(int size) {
+    StringBuilder sb = new StringBuilder("{");
+    for (int i = 0; i < size; i++) {
+      if (i > 0) sb.append(", ");
+      sb.append(i);
+    }
+    return sb.append('}').toString();
+  }
+
+  // size numbers below bound, repeats and all
+  private static String numbers(Random random, int size, int bound) {
+    StringBuilder sb = new StringBuilder("{");
+    for (int i = 0; i < size; i++) {
+      if (i > 0) sb.append(", ");
+      sb.append(random.nextInt(bound));
+    }
+    return sb.append('}').toString();
+  }
+}